@@ -270,9 +270,12 @@ public class Config {
     }
 
     /**
-     * Suggest an invoice id that has not been used.
+     * Suggest an invoice id that has not been used. All the invoices of the legacy model manager are scanned, invoices
+     * stored by a {@link app.config.manager.local.LocalRelationalManager} get theirs from its sequence instead.
      *
      * @return A new invoice id
+     *
+     * @see app.config.manager.local.LocalRelationalManager#suggestInvoiceId()
      */
     public static int suggestId() {
         return invoicesManager.get().stream()
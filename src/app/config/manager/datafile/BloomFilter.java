@@ -0,0 +1,134 @@
+package app.config.manager.datafile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Bloom filter of the values of a column in a partition, sized for about 1% of false positives. Values are hashed
+ * independently of {@link Object#hashCode()} so that the filter can be persisted: numbers and dates by value, strings
+ * by their characters and any other value by its string representation.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public final class BloomFilter {
+
+    private static final int BITS_PER_VALUE = 10;
+    private static final int HASHES = 7;
+
+    private static final BloomFilter EMPTY = new BloomFilter(new long[0]);
+
+    /**
+     * @return The Bloom filter of an empty partition
+     */
+    public static BloomFilter empty() {
+        return EMPTY;
+    }
+
+    public static BloomFilter of(List<Object[]> rows, int column) {
+        BloomFilter filter = new BloomFilter(new long[(rows.size() * BITS_PER_VALUE + 63) / 64]);
+        for (Object[] row : rows) {
+            filter.add(row[column]);
+        }
+
+        return filter;
+    }
+
+    public static BloomFilter read(DataInput input) throws IOException {
+        long[] bits = new long[input.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = input.readLong();
+        }
+
+        return new BloomFilter(bits);
+    }
+
+    private final long[] bits;
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * @param value A value, possibly {@code null}
+     *
+     * @return {@code false} if the column does not hold the value
+     */
+    public boolean mightContain(Object value) {
+        if (bits.length == 0) {
+            return false;
+        }
+
+        long hash = hash(value);
+        long size = bits.length * 64L;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hash, i, size);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(bits.length);
+        for (long word : bits) {
+            output.writeLong(word);
+        }
+    }
+
+    private void add(Object value) {
+        long hash = hash(value);
+        long size = bits.length * 64L;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hash, i, size);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Double hashing from the two halves of the hash.
+     */
+    private static int index(long hash, int i, long size) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        return (int) ((combined & 0xFFFFFFFFL) % size);
+    }
+
+    private static long hash(Object value) {
+        if (value == null) {
+            return mix(0x9E3779B97F4A7C15L);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return mix(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            return mix(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof LocalDate) {
+            return mix(((LocalDate) value).toEpochDay() ^ 0x5DEECE66DL);
+        }
+
+        // FNV-1a on the characters
+        String string = value.toString();
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -2,7 +2,6 @@ package app.config.manager.datafile;
 
 import app.config.manager.storage.PartitionedStorage;
 import app.util.UpperBoundBinarySearch;
-import com.wx.util.future.IoIterator;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
@@ -10,234 +9,1391 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.List;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-
-import static com.wx.util.collections.CollectionsUtil.emptyIterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 /**
+ * Table of rows clustered on a sort key, stored in partitions.
+ * <p>
+ * The index is thread-safe. Mutations are serialized on the index. Iterators and streams read a snapshot of the table
+ * taken when they are created and never block writers for longer than a partition read: a partition is copied before
+ * being modified if an open snapshot still holds it, and a snapshot keeps the previous content of the partitions it
+ * has not read yet.
+ *
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
  * @version 0.1 - created on 15.06.16.
  */
-public class ClusteredIndex {
+public class ClusteredIndex implements Closeable {
+
+    private static final String MANIFEST = "manifest";
+    private static final String SECONDARY_INDEX_PREFIX = "index.";
+    private static final double MERGE_FILL_FACTOR = 0.25;
 
     private final PartitionedStorage storage;
     private final int maxPartitionSize;
     private final int sortKey;
+    private final PartitionSchema schema;
+
+    private final PartitionCache cache;
+    private PartitionManifest manifest;
+
+    private MutationLog log;
+    private final Set<Integer> deferredPartitions = new TreeSet<>();
+    private boolean redoing;
+    private boolean unmerging;
+
+    private final Set<Integer> underfilledPartitions = new TreeSet<>();
 
-    private final Map<Integer, List<Object[]>> partitionsBuffer = new HashMap<>();
+    private final Map<String, SecondaryIndex> secondaryIndexes = new LinkedHashMap<>();
+    private boolean secondaryIndexesLoaded;
+    private boolean secondaryIndexesDirty;
+    private long secondaryIndexesChecksum;
 
+    private int[] zoneMapColumns = new int[0];
+    private int[] bloomFilterColumns = new int[0];
+    private int sequenceColumn = -1;
+    private long staleSequence;
+    private long staleLogPosition;
+    private Set<Integer> storedDirectory = Collections.emptySet();
+
+    private int compactionCursor;
+
+    private long version;
+    private final List<WeakReference<Snapshot>> snapshots = new ArrayList<>();
 
     public ClusteredIndex(PartitionedStorage storage, int maxPartitionSize, int sortKey) {
+        this(storage, maxPartitionSize, sortKey, new PartitionCache());
+    }
+
+    public ClusteredIndex(PartitionedStorage storage, int maxPartitionSize, int sortKey, PartitionCache cache) {
+        this(storage, maxPartitionSize, sortKey, cache, null);
+    }
+
+    /**
+     * @param schema Types of the columns. If not {@code null}, modified partitions are kept as {@link
+     *               ColumnarPartition} and the sort key column must be of type {@link PartitionSchema.ColumnType#LONG}.
+     *               Partitions read as a {@link PartitionView} are cached as is until modified.
+     */
+    public ClusteredIndex(PartitionedStorage storage, int maxPartitionSize, int sortKey, PartitionCache cache,
+                          PartitionSchema schema) {
+        if (schema != null && schema.getType(sortKey) != PartitionSchema.ColumnType.LONG) {
+            throw new IllegalArgumentException("Sort key must be a LONG column");
+        }
+
         this.storage = storage;
         this.maxPartitionSize = maxPartitionSize;
         this.sortKey = sortKey;
+        this.cache = cache;
+        this.schema = schema;
     }
 
     public int getSortKey() {
         return sortKey;
     }
 
-    public void repartition() throws IOException {
+    /**
+     * @return A counter incremented by every insertion and removal
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Maintain a secondary index on the given columns. The index is loaded (or built) along the manifest and
+     * written when the index is flushed.
+     *
+     * @param name    Unique name of the index within this table
+     * @param columns Indexed columns
+     *
+     * @return The new index
+     */
+    public synchronized SecondaryIndex addSecondaryIndex(String name, int... columns) {
+        if (secondaryIndexes.containsKey(name)) {
+            throw new IllegalArgumentException("Secondary index already exists: " + name);
+        }
+
+        SecondaryIndex index = new SecondaryIndex(name, columns);
+        secondaryIndexes.put(name, index);
+        secondaryIndexesLoaded = false;
+
+        return index;
+    }
+
+    /**
+     * Maintain per-partition statistics in the manifest, so that {@link #queryFirst(Predicate)} and {@link
+     * #removeFirst(Predicate)} skip the partitions that cannot match a {@link ColumnPredicate}. The sort key column
+     * always has a zone map. Statistics must be configured before the table is accessed, a manifest maintaining other
+     * statistics is rebuilt.
+     *
+     * @param zoneMapColumns     Numeric or date columns on which a zone map (min/max) is maintained
+     * @param bloomFilterColumns Columns on which a Bloom filter is maintained, typically strings and ids
+     */
+    public synchronized void setPartitionStatistics(int[] zoneMapColumns, int[] bloomFilterColumns) {
+        if (manifest != null) {
+            throw new IllegalStateException("Statistics must be set before the table is accessed");
+        }
+
+        this.zoneMapColumns = zoneMapColumns.clone();
+        this.bloomFilterColumns = bloomFilterColumns.clone();
+    }
+
+    /**
+     * Generate the ids of a column with a sequence persisted in the manifest, instead of looking for the highest id on
+     * every insertion. The sequence must be configured before the table is accessed, a manifest without it is rebuilt
+     * and the sequence then resumes after the highest stored id.
+     *
+     * @param column Column of {@code long} ids
+     */
+    public synchronized void setSequence(int column) {
+        if (manifest != null) {
+            throw new IllegalStateException("Sequence must be set before the table is accessed");
+        }
+
+        this.sequenceColumn = column;
+    }
+
+    /**
+     * Get a new id from the sequence. The sequence is persisted along the manifest, that is with the row using the id.
+     *
+     * @return An id greater than all the ids given so far and than all the stored ones
+     *
+     * @throws IOException
+     * @see #setSequence(int)
+     */
+    public synchronized long nextSequenceValue() throws IOException {
+        return getManifest().nextSequenceValue();
+    }
+
+    /**
+     * @return The last id given by the sequence, or the highest stored one if greater
+     *
+     * @throws IOException
+     */
+    public synchronized long currentSequenceValue() throws IOException {
+        return getManifest().getSequence();
+    }
+
+    /**
+     * Query the rows holding the given key in the columns of a secondary index.
+     *
+     * @param indexName Name of the secondary index
+     * @param key       Values of the indexed columns
+     *
+     * @return The matching rows
+     *
+     * @throws IOException
+     */
+    public synchronized List<Object[]> querySecondary(String indexName, Object... key) throws IOException {
+        SecondaryIndex index = getSecondaryIndex(indexName);
+
+        List<Object[]> result = new ArrayList<>();
+        for (long value : new LinkedHashSet<>(index.lookup(key))) {
+            try (IndexIterator it = queryIndex(value)) {
+                while (it.hasNext()) {
+                    Object[] next = it.next();
+                    if (index.matches(next, key)) {
+                        result.add(next);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public synchronized Optional<Object[]> querySecondaryFirst(String indexName, Object... key) throws IOException {
+        SecondaryIndex index = getSecondaryIndex(indexName);
+
+        for (long value : index.lookup(key)) {
+            try (IndexIterator it = queryIndex(value)) {
+                while (it.hasNext()) {
+                    Object[] next = it.next();
+                    if (index.matches(next, key)) {
+                        return Optional.of(next);
+                    }
+                }
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    public synchronized SecondaryIndex getSecondaryIndex(String indexName) throws IOException {
+        SecondaryIndex index = secondaryIndexes.get(indexName);
+        if (index == null) {
+            throw new IllegalArgumentException("No such secondary index: " + indexName);
+        }
+
+        getManifest();
+        loadSecondaryIndexes();
+
+        return index;
+    }
+
+    /**
+     * Attach a log to this index. From now on, mutations are sent to the log and the modified partitions are kept in
+     * memory until the next {@link #flush()}.
+     *
+     * @param log Log to attach
+     */
+    public synchronized void setMutationLog(MutationLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Write all the partitions modified since the last flush, each one once, and persist the manifest and the secondary
+     * indexes. Removals are only marked dirty and coalesced until the partition is flushed or evicted from the cache.
+     * Returns once the storage made all the writes durable.
+     * <p>
+     * The manifest is then marked clean, so that it is trusted without checking the partitions the next time the table
+     * is opened. The first partition write after a flush marks the stored manifest unclean again.
+     * <p>
+     * With a mutation log, the partitions used by the stored manifest are not overwritten: they are written to free
+     * physical partitions and the directory is updated. The stored manifest and its log position thus remain valid until
+     * the new manifest is saved, and the partitions it no longer uses are deleted afterwards.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        mergeUnderfilled();
+
+        Set<Integer> dirty = new TreeSet<>(deferredPartitions);
+        dirty.addAll(cache.getDirtyPartitions(this));
+        for (Integer partitionIndex : dirty) {
+            if (log == null) {
+                writePartition(partitionIndex, getPartition(partitionIndex), false);
+            } else {
+                writeDeferred(partitionIndex, dirty);
+            }
+            cache.markClean(this, partitionIndex);
+
+            if (deferredPartitions.remove(partitionIndex)) {
+                cache.unpin(this, partitionIndex);
+            }
+        }
+
+        if (log != null && !dirty.isEmpty()) {
+            PartitionManifest manifest = getManifest();
+            List<Integer> unused = storedDirectory.stream()
+                    .filter(i -> manifest.getLogicalIndex(i) < 0)
+                    .collect(Collectors.toList());
+
+            if (!unused.isEmpty()) {
+                storage.sync();
+                saveManifest(manifest);
+                storage.sync();
+
+                for (int partitionIndex : unused) {
+                    storage.getPartition(partitionIndex).delete();
+                }
+            }
+        }
+
+        if (manifest != null && !manifest.isClean()) {
+            storage.sync();
+            manifest.setClean(true);
+            saveManifest(manifest);
+        }
+        saveSecondaryIndexes();
+
+        storage.sync();
+    }
+
+    /**
+     * Flush this index and release its cached partitions.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        cache.invalidate(this);
+    }
+
+    /**
+     * Check the integrity of the stored partitions. Partitions are only written atomically, so this does not need the
+     * lock of the index and can run alongside mutations.
+     *
+     * @return The physical indexes of the corrupted partitions
+     *
+     * @throws IOException
+     */
+    public List<Integer> verifyPartitions() throws IOException {
+        return storage.verifyPartitions();
+    }
+
+    /**
+     * @return The log position of the last mutation applied to this index, persisted along the manifest
+     *
+     * @throws IOException
+     * @see MutationLog
+     */
+    public synchronized long getLogPosition() throws IOException {
+        return getManifest().getLogPosition();
+    }
+
+    /**
+     * Re-apply a logged insertion. The insertion is skipped if the manifest is at or after its log position, that is if
+     * it reached the storage before a crash.
+     *
+     * @param row         Logged row
+     * @param logPosition Position of the insertion in the log
+     *
+     * @throws IOException
+     */
+    public synchronized void redoInsert(Object[] row, long logPosition) throws IOException {
+        if (logPosition <= getManifest().getLogPosition()) {
+            return;
+        }
+
+        redoing = true;
+        try {
+            insert(row, false);
+        } finally {
+            redoing = false;
+        }
+        getManifest().setLogPosition(logPosition);
+    }
+
+    /**
+     * Re-apply a logged removal, unless the manifest is at or after its log position.
+     *
+     * @param row         Logged row
+     * @param logPosition Position of the removal in the log
+     *
+     * @throws IOException
+     */
+    public synchronized void redoRemove(Object[] row, long logPosition) throws IOException {
+        if (logPosition <= getManifest().getLogPosition()) {
+            return;
+        }
+
+        redoing = true;
+        try {
+            removeIndexFirst((long) row[sortKey], r -> Arrays.equals(row, r));
+        } finally {
+            redoing = false;
+        }
+        getManifest().setLogPosition(logPosition);
+    }
+
+    /**
+     * Revert an insertion logged in a batch that was aborted. The removal is not logged.
+     *
+     * @param row Logged row
+     *
+     * @throws IOException
+     */
+    public synchronized void undoInsert(Object[] row) throws IOException {
+        redoing = true;
+        try {
+            removeIndexFirst((long) row[sortKey], r -> Arrays.equals(row, r));
+        } finally {
+            redoing = false;
+        }
+    }
+
+    /**
+     * Revert a removal logged in a batch that was aborted. The insertion is not logged.
+     *
+     * @param row Logged row
+     *
+     * @throws IOException
+     */
+    public synchronized void undoRemove(Object[] row) throws IOException {
+        redoing = true;
+        try {
+            insert(row, false);
+        } finally {
+            redoing = false;
+        }
+    }
+
+    /**
+     * Rewrite the whole table in full partitions. This reads every row at once and blocks the table meanwhile, see
+     * {@link #compact(double, int)} for an incremental alternative.
+     *
+     * @throws IOException
+     */
+    public synchronized void repartition() throws IOException {
+        flush();
+        PartitionManifest manifest = getManifest();
+
         List<Object[]> allData = new ArrayList<>();
-        for (int i = 0; i < storage.getPartitionsCount(); i++) {
-            allData.addAll(getPartition(i));
+        for (int partitionIndex : manifest.getDirectory()) {
+            // Open snapshots keep the current partitions, all of them are rewritten
+            allData.addAll(getPartitionForUpdate(partitionIndex));
         }
 
         Collections.sort(allData, Comparator.comparingLong(r -> (long) r[sortKey]));
 
         int numPartitions = -Math.floorDiv(-allData.size(), maxPartitionSize);
 
+        cache.invalidate(this);
+
         int cursor = 0;
         for (int i = 0; i < numPartitions; i++) {
             int end = Math.min(cursor + maxPartitionSize, allData.size());
-            storage.getPartition(i).write(allData.subList(cursor, end));
+            writePartition(i, allData.subList(cursor, end), false);
 
             cursor = end;
         }
 
         int actualCount = storage.getPartitionsCount();
+        beforeWrite();
         for (int i = numPartitions; i < actualCount; i++) {
             storage.getPartition(i).delete();
         }
+
+        manifest.truncate(numPartitions);
+        manifest.resetDirectory(numPartitions);
+        underfilledPartitions.clear();
+        saveManifest(manifest);
+    }
+
+    /**
+     * Do a step of incremental compaction. Compaction goes through the partitions in sort order, from where the previous
+     * step stopped. A few adjacent partitions are rewritten at a time, with their rows evenly spread over as many
+     * partitions as needed at the given fill factor, when this uses fewer partitions or when one of them overflows.
+     * Partitions left unused are freed. Rows are not modified, so the mutation log and the secondary indexes are not
+     * involved.
+     * <p>
+     * Compaction runs alongside open iterators: they read the directory of their snapshot, which is given the rewritten
+     * partitions before they are modified.
+     *
+     * @param fillFactor Target fill of the partitions, relative to the maximum partition size
+     * @param maxWrites  Maximum number of partitions written by this step, at least 2
+     *
+     * @return The number of partitions written
+     *
+     * @throws IOException
+     * @see #getCompactionProgress()
+     */
+    public synchronized int compact(double fillFactor, int maxWrites) throws IOException {
+        if (fillFactor <= 0.0 || fillFactor > 1.0 || maxWrites < 2) {
+            throw new IllegalArgumentException("Invalid compaction parameters");
+        }
+        PartitionManifest manifest = prepareMutation();
+        int target = Math.max(1, (int) (maxPartitionSize * fillFactor));
+
+        int writes = 0;
+        while (maxWrites - writes >= 2 && compactionCursor < manifest.getLogicalCount()) {
+            int windowSize = Math.min(maxWrites - writes, manifest.getLogicalCount() - compactionCursor);
+
+            int rowsCount = 0;
+            boolean overflow = false;
+            for (int i = 0; i < windowSize; i++) {
+                int size = getRowCount(manifest.getPhysicalIndex(compactionCursor + i));
+                rowsCount += size;
+                overflow |= size > maxPartitionSize;
+            }
+
+            int packedCount = -Math.floorDiv(-rowsCount, target);
+            if (packedCount >= windowSize && !overflow) {
+                compactionCursor++;
+                continue;
+            }
+
+            packedCount = rewriteWindow(compactionCursor, windowSize, target);
+            writes += Math.max(windowSize, packedCount);
+            compactionCursor += packedCount;
+        }
+
+        if (compactionCursor >= manifest.getLogicalCount()) {
+            compactionCursor = 0;
+        }
+
+        return writes;
+    }
+
+    /**
+     * @return The fraction of the partitions that the current compaction pass went through
+     */
+    public synchronized double getCompactionProgress() throws IOException {
+        int logicalCount = getManifest().getLogicalCount();
+        return logicalCount == 0 ? 1.0 : (double) compactionCursor / logicalCount;
+    }
+
+    public synchronized IndexIterator iterator() throws IOException {
+        return new ReversedIterator(newSnapshot(getDirectory(), true));
+    }
+
+    /**
+     * @return An iterator over the partitions that may match the query, in descending sort key order
+     */
+    private synchronized IndexIterator iterator(Predicate<Object[]> query) throws IOException {
+        if (!(query instanceof ColumnPredicate)) {
+            return iterator();
+        }
+
+        ColumnPredicate predicate = (ColumnPredicate) query;
+        PartitionManifest manifest = getManifest();
+        int[] directory = IntStream.of(manifest.getDirectory())
+                .filter(p -> predicate.mayMatch(manifest.getStatistics(p, sortKey)))
+                .toArray();
+
+        return new ReversedIterator(newSnapshot(directory, true));
+    }
+
+    /**
+     * Spliterator over a snapshot of all the rows, in ascending sort key order. It splits on partition boundaries and
+     * reads partitions that are not cached without caching them.
+     *
+     * @return A spliterator over all the rows
+     *
+     * @throws IOException
+     */
+    public synchronized Spliterator<Object[]> spliterator() throws IOException {
+        return spliterator(newSnapshot(getManifest().getDirectory(), false));
+    }
+
+    private Spliterator<Object[]> spliterator(Snapshot snapshot) throws IOException {
+        PartitionManifest manifest = getManifest();
+        int[] directory = snapshot.directory;
+
+        // Removals in write-through mode only reach the manifest once the partition is written
+        Set<Integer> dirty = new HashSet<>(cache.getDirtyPartitions(this));
+
+        int[] sizes = new int[directory.length];
+        for (int i = 0; i < directory.length; i++) {
+            sizes[i] = dirty.contains(directory[i]) ?
+                    snapshot.read(directory[i]).size() :
+                    manifest.getRowCount(directory[i]);
+        }
+
+        return new PartitionSpliterator(snapshot, directory, sizes);
+    }
+
+    /**
+     * Stream over a snapshot of all the rows, in ascending sort key order. A parallel stream reads and decodes its
+     * partitions concurrently.
+     *
+     * @param parallel Whether the stream is parallel
+     *
+     * @return A stream over all the rows
+     *
+     * @throws IOException
+     */
+    public synchronized Stream<Object[]> stream(boolean parallel) throws IOException {
+        Snapshot snapshot = newSnapshot(getManifest().getDirectory(), false);
+        return StreamSupport.stream(spliterator(snapshot), parallel).onClose(snapshot::close);
+    }
+
+    public IndexIterator queryIndex(long value) throws IOException {
+        return queryRange(value, value, true);
+    }
+
+    /**
+     * Iterate over the rows whose sort key value lies within the given bounds. Only the partitions overlapping the
+     * range are read.
+     *
+     * @param fromInclusive Lower bound of the sort key values
+     * @param toInclusive   Upper bound of the sort key values
+     * @param descending    Whether to iterate from the highest value to the lowest one
+     *
+     * @return An iterator over the matching rows
+     *
+     * @throws IOException
+     */
+    public synchronized IndexIterator queryRange(long fromInclusive, long toInclusive, boolean descending) throws IOException {
+        if (fromInclusive > toInclusive) {
+            return new EmptyIterator();
+        }
+
+        return descending ?
+                queryRangeDescending(fromInclusive, toInclusive) :
+                queryRangeAscending(fromInclusive, toInclusive);
+    }
+
+    private IndexIterator queryRangeDescending(long fromInclusive, long toInclusive) throws IOException {
+        PartitionManifest manifest = getManifest();
+        Snapshot snapshot = newSnapshot(manifest.getDirectory(), true);
+        int[] directory = snapshot.directory;
+
+        int logicalIndex = manifest.searchPartitionFor(toInclusive);
+        if (logicalIndex == -1) {
+            return new EmptyIterator();
+        } else if (logicalIndex < 0) {
+            logicalIndex = -logicalIndex - 2;
+        }
+
+        // Bounds may be stale after removals, the last row in range can then be in a preceding partition
+        while (logicalIndex >= 0) {
+            List<Object[]> partition = snapshot.read(directory[logicalIndex]);
+            int rowIndex = binarySearch(partition, toInclusive);
+            if (rowIndex < 0) {
+                rowIndex = -rowIndex - 2;
+            }
+
+            if (rowIndex >= 0) {
+                return new RangeReversedIterator(snapshot, rowIndex, logicalIndex, fromInclusive);
+            }
+
+            snapshot.release(directory[logicalIndex]);
+            logicalIndex--;
+        }
+
+        snapshot.close();
+        return new EmptyIterator();
+    }
+
+    private IndexIterator queryRangeAscending(long fromInclusive, long toInclusive) throws IOException {
+        PartitionManifest manifest = getManifest();
+        int[] directory = manifest.getDirectory();
+
+        int logicalIndex = manifest.searchPartitionFor(fromInclusive);
+        if (logicalIndex < 0) {
+            logicalIndex = -logicalIndex - 1;
+        }
+
+        // Rows with the same value may span several partitions
+        while (logicalIndex > 0 && logicalIndex <= directory.length) {
+            int previous = directory[logicalIndex - 1];
+            if (!manifest.isEmpty(previous) && manifest.getMaxKey(previous) < fromInclusive) {
+                break;
+            }
+
+            logicalIndex--;
+        }
+
+        if (logicalIndex >= directory.length) {
+            return new EmptyIterator();
+        }
+
+        Snapshot snapshot = newSnapshot(directory, true);
+        int rowIndex = 0;
+        if (fromInclusive != Long.MIN_VALUE) {
+            rowIndex = binarySearch(snapshot.read(directory[logicalIndex]), fromInclusive - 1);
+            rowIndex = rowIndex < 0 ? -rowIndex - 1 : rowIndex + 1;
+        }
+
+        return new RangeIterator(snapshot, rowIndex, logicalIndex, toInclusive);
+    }
+
+    /**
+     * Get the row with the greatest sort key matching the query. Partitions that cannot match a {@link
+     * ColumnPredicate} are not read.
+     *
+     * @param query Query on the rows
+     *
+     * @return The first matching row, if any
+     *
+     * @throws IOException
+     */
+    public Optional<Object[]> queryFirst(Predicate<Object[]> query) throws IOException {
+        try (IndexIterator it = iterator(query)) {
+            while (it.hasNext()) {
+                Object[] next = it.next();
+                if (query.test(next)) {
+                    return Optional.of(next);
+                }
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    public synchronized Optional<Object[]> queryIndexFirst(long value) throws IOException {
+        try (IndexIterator it = queryIndex(value)) {
+            return it.hasNext() ? Optional.of(it.next()) : Optional.empty();
+        }
+    }
+
+    public synchronized boolean removeFirst(Predicate<Object[]> query) throws IOException {
+        return removeFirst(iterator(query), query);
+    }
+
+    /**
+     * Remove the first row with the given sort key value matching the query.
+     *
+     * @param value Sort key value
+     * @param query Query on the rows having that value
+     *
+     * @return {@code true} if a row was removed
+     *
+     * @throws IOException
+     */
+    public synchronized boolean removeIndexFirst(long value, Predicate<Object[]> query) throws IOException {
+        return removeFirst(queryIndex(value), query);
+    }
+
+    public synchronized void insertUnique(Object[] row) throws IOException {
+        insert(row, true);
+    }
+
+    public synchronized void insert(Object[] row) throws IOException {
+        insert(row, false);
+    }
+
+    /**
+     * Insert a batch of rows. The batch is sorted and merged with the partitions it falls in, in a single pass, so that
+     * every touched partition is written once. Partitions overflowing are split. If the storage fails, the rows merged
+     * so far are taken out again and none of the rows are inserted.
+     *
+     * @param rows Rows to insert
+     *
+     * @throws IOException
+     */
+    public synchronized void insertAll(Iterable<Object[]> rows) throws IOException {
+        Comparator<Object[]> comparator = Comparator.comparingLong(r -> (long) r[sortKey]);
+
+        List<Object[]> batch = new ArrayList<>();
+        for (Object[] row : rows) {
+            if (row[sortKey] == null) {
+                throw new IllegalArgumentException("Sort column cannot be null!");
+            }
+            batch.add(row);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch.sort(comparator);
+
+        PartitionManifest manifest = prepareMutation();
+        if (manifest.getLogicalCount() == 0) {
+            createPartition(0);
+        }
+
+        int[] targets = new int[batch.size()];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = targetPartition((long) batch.get(i)[sortKey]);
+        }
+
+        // Go backward so that splits do not shift the logical indexes still to be processed
+        int end = batch.size();
+        try {
+            while (end > 0) {
+                int logicalIndex = targets[end - 1];
+                int start = end - 1;
+                while (start > 0 && targets[start - 1] == logicalIndex) {
+                    start--;
+                }
+
+                int partitionIndex = manifest.getPhysicalIndex(logicalIndex);
+                List<Object[]> partition = getPartitionForUpdate(partitionIndex);
+                List<Object[]> merged = merge(partition, batch.subList(start, end), comparator);
+
+                boolean isLast = logicalIndex == manifest.getLogicalCount() - 1;
+                int chunksCount = -Math.floorDiv(-merged.size(), maxPartitionSize);
+                int chunkSize = isLast ?
+                        maxPartitionSize :
+                        -Math.floorDiv(-merged.size(), chunksCount);
+
+                // Read the new partitions before modifying any, so that a read failure leaves the rows in place
+                int[] newIndexes = new int[chunksCount];
+                List<List<Object[]>> chunks = new ArrayList<>();
+                newIndexes[0] = partitionIndex;
+                chunks.add(partition);
+                for (int i = 1; i < chunksCount; i++) {
+                    newIndexes[i] = createPartition(logicalIndex + i);
+                    chunks.add(getPartitionForUpdate(newIndexes[i]));
+                }
+
+                partition.clear();
+                for (int i = 0; i < chunksCount; i++) {
+                    chunks.get(i).addAll(merged.subList(i * chunkSize, Math.min((i + 1) * chunkSize, merged.size())));
+                }
+                end = start;
+
+                for (int i = 0; i < chunksCount; i++) {
+                    bulkPartitionChanged(newIndexes[i], chunks.get(i));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            unmerge(batch.subList(end, batch.size()), e);
+            throw e;
+        }
+        version++;
+
+        for (Object[] row : batch) {
+            for (SecondaryIndex index : secondaryIndexes.values()) {
+                index.add(row, (long) row[sortKey]);
+                secondaryIndexesDirty = true;
+            }
+
+            if (log != null && !redoing) {
+                manifest.setLogPosition(log.logInsert(row));
+            }
+        }
+
+        if (log == null) {
+            saveManifest(manifest);
+        }
+    }
+
+    /**
+     * Take rows merged by {@link #insertAll(Iterable)} out of the partitions. The rows are neither indexed nor logged
+     * yet.
+     */
+    private void unmerge(List<Object[]> rows, Exception failure) {
+        unmerging = true;
+        try {
+            for (Object[] row : rows) {
+                removeIndexFirst((long) row[sortKey], r -> Arrays.equals(row, r));
+            }
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        } finally {
+            unmerging = false;
+        }
+    }
+
+    private void bulkPartitionChanged(int partitionIndex, List<Object[]> partition) throws IOException {
+        if (log == null) {
+            writePartition(partitionIndex, partition, false);
+        } else {
+            deferPartition(partitionIndex, partition);
+        }
+    }
+
+    private int targetPartition(long value) throws IOException {
+        int logicalIndex = searchPartitionFor(value);
+        if (logicalIndex >= 0) {
+            return logicalIndex;
+        }
+
+        return Math.max(0, -logicalIndex - 2);
+    }
+
+    private static List<Object[]> merge(List<Object[]> first, List<Object[]> second, Comparator<Object[]> comparator) {
+        List<Object[]> merged = new ArrayList<>(first.size() + second.size());
+
+        int i = 0;
+        int j = 0;
+        while (i < first.size() && j < second.size()) {
+            if (comparator.compare(second.get(j), first.get(i)) < 0) {
+                merged.add(second.get(j++));
+            } else {
+                merged.add(first.get(i++));
+            }
+        }
+        merged.addAll(first.subList(i, first.size()));
+        merged.addAll(second.subList(j, second.size()));
+
+        return merged;
+    }
+
+    private boolean removeFirst(IndexIterator iterator, Predicate<Object[]> query) throws IOException {
+        boolean removed = false;
+
+        try (IndexIterator it = iterator) {
+            while (it.hasNext()) {
+                if (query.test(it.next())) {
+                    it.remove();
+                    removed = true;
+                    break;
+                }
+            }
+        }
+
+        if (removed) {
+            mergeUnderfilled();
+        }
+        return removed;
+    }
+
+    private void insert(Object[] row, boolean ensureUnique) throws IOException {
+        if (row[sortKey] == null) {
+            throw new IllegalArgumentException("Sort column cannot be null!");
+        }
+
+        PartitionManifest manifest = prepareMutation();
+        long rowValue = (long) row[sortKey];
+
+        int logicalIndex = manifest.searchPartitionFor(rowValue);
+        int rowIndex;
+        if (logicalIndex >= 0) { // Within bounds
+            List<Object[]> partition = getPartition(manifest.getPhysicalIndex(logicalIndex));
+
+            rowIndex = binarySearch(partition, row);
+            if (rowIndex < 0) {
+                rowIndex = -rowIndex - 1;
+            } else if (ensureUnique) {
+                throw new IllegalArgumentException("Unique field value already exists: " + row[sortKey]);
+            }
+        } else if (logicalIndex == -1) { // Before all partitions
+            if (manifest.getLogicalCount() == 0) {
+                createPartition(0);
+            }
+            logicalIndex = 0;
+            rowIndex = 0;
+        } else { // After a partition
+            logicalIndex = -logicalIndex - 2;
+            rowIndex = getPartition(manifest.getPhysicalIndex(logicalIndex)).size();
+        }
+
+        insertAt(logicalIndex, rowIndex, row);
+        version++;
+
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            index.add(row, rowValue);
+            secondaryIndexesDirty = true;
+        }
+
+        if (log != null && !redoing) {
+            manifest.setLogPosition(log.logInsert(row));
+        }
+    }
+
+    /**
+     * Insert a row in a partition. A full partition first tries to give its last row to the next partition. Otherwise,
+     * a row added after its end starts a new partition, and any other row splits it in two halves. At most two
+     * partitions are written.
+     */
+    private void insertAt(int logicalIndex, int rowIndex, Object[] row) throws IOException {
+        PartitionManifest manifest = getManifest();
+        int partitionIndex = manifest.getPhysicalIndex(logicalIndex);
+        List<Object[]> partition = getPartitionForUpdate(partitionIndex);
+
+        if (partition.size() < maxPartitionSize) {
+            if (rowIndex == partition.size() && log == null) {
+                beforeWrite();
+                storage.getPartition(partitionIndex).append(partition, row);
+                updateManifest(partitionIndex, partition, true);
+            } else {
+                partition.add(rowIndex, row);
+                partitionChanged(partitionIndex, partition);
+            }
+            return;
+        }
+
+        if (logicalIndex + 1 < manifest.getLogicalCount()) {
+            int nextIndex = manifest.getPhysicalIndex(logicalIndex + 1);
+            List<Object[]> next = getPartitionForUpdate(nextIndex);
+
+            if (next.size() < maxPartitionSize) {
+                if (rowIndex == partition.size()) {
+                    next.add(0, row);
+                } else {
+                    partition.add(rowIndex, row);
+                    next.add(0, partition.remove(partition.size() - 1));
+                    partitionChanged(partitionIndex, partition);
+                }
+                partitionChanged(nextIndex, next);
+                return;
+            }
+        }
+
+        int newIndex = createPartition(logicalIndex + 1);
+        List<Object[]> newPartition = getPartitionForUpdate(newIndex);
+
+        if (rowIndex == partition.size()) {
+            newPartition.add(row);
+        } else {
+            int middle = partition.size() / 2;
+            List<Object[]> upperHalf = partition.subList(middle, partition.size());
+            newPartition.addAll(upperHalf);
+            upperHalf.clear();
+
+            if (rowIndex <= middle) {
+                partition.add(rowIndex, row);
+            } else {
+                newPartition.add(rowIndex - middle, row);
+            }
+            partitionChanged(partitionIndex, partition);
+        }
+
+        partitionChanged(newIndex, newPartition);
+    }
+
+    /**
+     * Add an empty partition to the directory, reusing a free physical partition if possible.
+     *
+     * @return The physical index of the new partition
+     */
+    private int createPartition(int logicalIndex) throws IOException {
+        PartitionManifest manifest = getManifest();
+
+        int partitionIndex = manifest.getFreePartition();
+        if (partitionIndex < storage.getPartitionsCount()) {
+            getPartitionForUpdate(partitionIndex).clear();
+        } else {
+            cache.put(this, partitionIndex, toPartition(new ArrayList<>()), this::writePartition);
+        }
+
+        manifest.insertLogical(logicalIndex, partitionIndex);
+        return partitionIndex;
+    }
+
+    /**
+     * Merge the partitions that fell below the fill factor with one of their neighbours, when the result fits in a
+     * partition. Open iterators are not affected: they read the directory of their snapshot, which is given the merged
+     * partitions before they are modified.
+     */
+    private void mergeUnderfilled() throws IOException {
+        if (underfilledPartitions.isEmpty()) {
+            return;
+        }
+
+        PartitionManifest manifest = getManifest();
+        for (int partitionIndex : underfilledPartitions) {
+            int logicalIndex = manifest.getLogicalIndex(partitionIndex);
+            if (logicalIndex < 0) {
+                continue;
+            }
+
+            int size = getPartition(partitionIndex).size();
+            if (size >= maxPartitionSize * MERGE_FILL_FACTOR) {
+                continue;
+            }
+
+            int previousSize = logicalIndex > 0 ?
+                    getPartition(manifest.getPhysicalIndex(logicalIndex - 1)).size() :
+                    Integer.MAX_VALUE;
+            int nextSize = logicalIndex + 1 < manifest.getLogicalCount() ?
+                    getPartition(manifest.getPhysicalIndex(logicalIndex + 1)).size() :
+                    Integer.MAX_VALUE;
+
+            int leftIndex = previousSize <= nextSize ? logicalIndex - 1 : logicalIndex;
+            if (Math.min(previousSize, nextSize) > maxPartitionSize - size) {
+                continue;
+            }
+
+            int left = manifest.getPhysicalIndex(leftIndex);
+            int right = manifest.getPhysicalIndex(leftIndex + 1);
+            List<Object[]> leftPartition = getPartitionForUpdate(left);
+            List<Object[]> rightPartition = getPartitionForUpdate(right);
+
+            leftPartition.addAll(rightPartition);
+            rightPartition.clear();
+            manifest.removeLogical(leftIndex + 1);
+
+            partitionChanged(left, leftPartition);
+            partitionChanged(right, rightPartition);
+        }
+
+        underfilledPartitions.clear();
+    }
+
+    /**
+     * Spread the rows of adjacent partitions evenly over as many partitions as needed to hold at most the target size.
+     *
+     * @return The new number of partitions
+     */
+    private int rewriteWindow(int logicalIndex, int windowSize, int target) throws IOException {
+        PartitionManifest manifest = getManifest();
+
+        int[] window = new int[windowSize];
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < windowSize; i++) {
+            window[i] = manifest.getPhysicalIndex(logicalIndex + i);
+            rows.addAll(getPartition(window[i]));
+        }
+
+        int packedCount = -Math.floorDiv(-rows.size(), target);
+        int chunkSize = packedCount == 0 ? 0 : -Math.floorDiv(-rows.size(), packedCount);
+
+        for (int i = 0; i < Math.max(windowSize, packedCount); i++) {
+            int partitionIndex = i < windowSize ? window[i] : createPartition(logicalIndex + i);
+
+            List<Object[]> partition = getPartitionForUpdate(partitionIndex);
+            partition.clear();
+            if (i < packedCount) {
+                partition.addAll(rows.subList(i * chunkSize, Math.min((i + 1) * chunkSize, rows.size())));
+            }
+            partitionChanged(partitionIndex, partition);
+        }
+        for (int i = packedCount; i < windowSize; i++) {
+            manifest.removeLogical(logicalIndex + packedCount);
+        }
+
+        return packedCount;
+    }
+
+    /**
+     * @return The size of the partition, as cached or as of its last write
+     */
+    private int getRowCount(int partitionIndex) {
+        List<Object[]> cached = cache.peek(this, partitionIndex);
+        return cached != null ? cached.size() : manifest.getRowCount(partitionIndex);
+    }
+
+    private PartitionManifest prepareMutation() throws IOException {
+        PartitionManifest manifest = getManifest();
+        loadSecondaryIndexes();
+        mergeUnderfilled();
+
+        return manifest;
+    }
+
+    private int searchPartitionFor(long value) throws IOException {
+        return getManifest().searchPartitionFor(value);
     }
 
-    public IoIterator<Object[]> iterator() throws IOException {
-        return new ReversedIterator(storage.getPartitionsCount());
+    private void partitionChanged(int partitionIndex, List<Object[]> partition) throws IOException {
+        if (log == null) {
+            writePartition(partitionIndex, partition);
+        } else {
+            deferPartition(partitionIndex, partition);
+        }
     }
 
-//    public Stream<Object[]> streamm() {
-//        return StreamSupport.stream(spliterator(), false);
-//    }
+    private void deferPartition(int partitionIndex, List<Object[]> partition) throws IOException {
+        PartitionManifest manifest = getManifest();
+        manifest.update(partitionIndex, partition, sortKey, manifest.getFingerprint(partitionIndex));
 
-    public IoIterator<Object[]> queryIndex(long value) throws IOException {
-        int partitionIndex = searchPartitionFor(value);
-        if (partitionIndex < 0) {
-            return emptyIterator();
+        if (deferredPartitions.add(partitionIndex)) {
+            cache.pin(this, partitionIndex);
         }
+        cache.resized(this, partitionIndex);
+    }
 
-        List<Object[]> partition = getPartition(partitionIndex);
-        int rowIndex = binarySearch(partition, value);
-
-        if (rowIndex < 0) {
-            return emptyIterator();
-        } else {
-            return new LimitReversedIterator(rowIndex, partitionIndex, value);
-        }
+    private void writePartition(int partitionIndex, List<Object[]> partition) throws IOException {
+        writePartition(partitionIndex, partition, true);
     }
 
-    public Optional<Object[]> queryFirst(Predicate<Object[]> query) throws IOException {
-        IoIterator<Object[]> it = iterator();
+    private void writePartition(int partitionIndex, List<Object[]> partition, boolean saveManifest) throws IOException {
+        beforeWrite();
+        storage.getPartition(partitionIndex).write(partition);
+        updateManifest(partitionIndex, partition, saveManifest);
+    }
 
-        while (it.hasNext()) {
-            Object[] next = it.next();
-            if (query.test(next)) {
-                return Optional.of(next);
-            }
+    /**
+     * Mark the stored manifest unclean before the first partition write following a flush. The stored manifest is used
+     * as is rather than the current one, which may describe partitions that are not written yet.
+     */
+    private void beforeWrite() throws IOException {
+        PartitionManifest manifest = getManifest();
+        if (!manifest.isClean()) {
+            return;
         }
 
-        return Optional.empty();
+        byte[] data = storage.readMetadata(MANIFEST);
+        if (data != null) {
+            PartitionManifest stored = PartitionManifest.deserialize(data);
+            stored.setClean(false);
+            storage.writeMetadata(MANIFEST, stored.serialize());
+            storage.sync();
+        }
+        manifest.setClean(false);
     }
 
-    public Optional<Object[]> queryIndexFirst(long value) throws IOException {
-        IoIterator<Object[]> it = queryIndex(value);
-        return it.hasNext() ? Optional.of(it.next()) : Optional.empty();
-    }
+    /**
+     * Write a deferred partition. A partition used by the stored manifest is written to a physical partition that is
+     * neither used by the stored manifest nor by the directory, and replaces it in the directory and the cache. Free
+     * partitions are not written.
+     *
+     * @param partitionIndex Physical index of the partition
+     * @param dirty          Partitions being flushed, not to be used as target
+     */
+    private void writeDeferred(int partitionIndex, Set<Integer> dirty) throws IOException {
+        PartitionManifest manifest = getManifest();
+        int logicalIndex = manifest.getLogicalIndex(partitionIndex);
+        List<Object[]> partition = getPartition(partitionIndex);
 
-    public boolean removeFirst(Predicate<Object[]> query) throws IOException {
-        IoIterator<Object[]> it = iterator();
+        if (logicalIndex < 0) {
+            return;
+        } else if (!storedDirectory.contains(partitionIndex)) {
+            writePartition(partitionIndex, partition, false);
+            return;
+        }
 
-        while (it.hasNext()) {
-            Object[] next = it.next();
-            if (query.test(next)) {
-                it.remove();
-                return true;
-            }
+        int target = 0;
+        while (manifest.getLogicalIndex(target) >= 0 || storedDirectory.contains(target) || dirty.contains(target)) {
+            target++;
         }
 
-        return false;
+        // Snapshots that did not read the partition yet would otherwise read its stored version
+        preserveForSnapshots(partitionIndex, partition, null);
+
+        writePartition(target, partition, false);
+        manifest.replaceLogical(logicalIndex, target);
+        cache.remove(this, partitionIndex);
+        cache.put(this, target, partition, this::writePartition);
     }
 
-    public void insertUnique(Object[] row) throws IOException {
-        insert(row, true);
+    private void updateManifest(int partitionIndex, List<Object[]> partition, boolean save) throws IOException {
+        PartitionManifest manifest = getManifest();
+        manifest.update(partitionIndex, partition, sortKey, storage.getPartitionFingerprint(partitionIndex));
+        cache.resized(this, partitionIndex);
+        if (save) {
+            saveManifest(manifest);
+        }
     }
 
-    public void insert(Object[] row) throws IOException {
-        insert(row, false);
+    private void saveManifest(PartitionManifest manifest) throws IOException {
+        storage.writeMetadata(MANIFEST, manifest.serialize());
+        storedDirectory = directorySet(manifest);
     }
 
-    private void insert(Object[] row, boolean ensureUnique) throws IOException {
-        if (row[sortKey] == null) {
-            throw new IllegalArgumentException("Sort column cannot be null!");
+    /**
+     * Write the secondary indexes tagged with the checksum of the current manifest, if they changed or if they are
+     * tagged with another manifest. This is only done on flush, once the manifest is saved: between flushes the stored
+     * manifest is unclean and the stored indexes are rebuilt if the table is not closed properly.
+     */
+    private void saveSecondaryIndexes() throws IOException {
+        if (!secondaryIndexesLoaded || manifest == null) {
+            return;
         }
 
-        long rowValue = (long) row[sortKey];
-
-        int partitionIndex = searchPartitionFor(rowValue);
-        if (partitionIndex < 0) { // NOT within bounds
-            partitionIndex = -partitionIndex - 1;
-
-            if (partitionIndex == 0) {
-                insertAtBeginning(0, row);
-            } else {
-                insertAtEnd(partitionIndex - 1, row);
+        long checksum = checksum(manifest.serialize());
+        if (secondaryIndexesDirty || checksum != secondaryIndexesChecksum) {
+            for (SecondaryIndex index : secondaryIndexes.values()) {
+                storage.writeMetadata(SECONDARY_INDEX_PREFIX + index.getName(), index.serialize(checksum));
             }
-        } else { // Within bounds
-            insertAtMiddle(partitionIndex, row, ensureUnique);
+            secondaryIndexesDirty = false;
+            secondaryIndexesChecksum = checksum;
         }
     }
 
+    /**
+     * Load the secondary indexes that match the current manifest and rebuild the others by scanning the table.
+     */
+    private void loadSecondaryIndexes() throws IOException {
+        if (secondaryIndexesLoaded || secondaryIndexes.isEmpty()) {
+            return;
+        }
 
+        PartitionManifest manifest = getManifest();
+        long checksum = checksum(manifest.serialize());
 
-    private void insertAtBeginning(int partitionIndex, Object[] row) throws IOException {
-        List<Object[]> partition = getPartition(partitionIndex);
-        if (partition.size() < maxPartitionSize) {
-            partition.add(0, row);
-            storage.getPartition(partitionIndex).write(partition);
-
-        } else {
-            partition.add(0, row);
-            Object[] replaceRow = partition.remove(partition.size() - 1);
+        List<SecondaryIndex> stale = new ArrayList<>();
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            byte[] data = storage.readMetadata(SECONDARY_INDEX_PREFIX + index.getName());
+            if (data == null || !index.deserialize(data, checksum)) {
+                stale.add(index);
+            }
+        }
 
-            storage.getPartition(partitionIndex).write(partition);
-            insertAtBeginning(partitionIndex + 1, replaceRow);
+        if (!stale.isEmpty()) {
+            // Free partitions of the storage may still hold rows removed from the table
+            for (int partitionIndex : manifest.getDirectory()) {
+                for (Object[] row : getPartition(partitionIndex)) {
+                    for (SecondaryIndex index : stale) {
+                        index.add(row, (long) row[sortKey]);
+                    }
+                }
+            }
         }
+
+        secondaryIndexesLoaded = true;
+        secondaryIndexesDirty = !stale.isEmpty();
+        secondaryIndexesChecksum = checksum;
     }
 
-    private void insertAtEnd(int partitionIndex, Object[] row) throws IOException {
-        List<Object[]> partition = getPartition(partitionIndex);
-        if (partition.size() < maxPartitionSize) {
-            storage.getPartition(partitionIndex).append(partition, row);
+    private static Set<Integer> directorySet(PartitionManifest manifest) {
+        return IntStream.of(manifest.getDirectory()).boxed().collect(Collectors.toSet());
+    }
 
-        } else {
-            insertAtBeginning(partitionIndex + 1, row);
-        }
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
     }
 
-    private void insertAtMiddle(int partitionIndex, Object[] row, boolean ensureIsUnique) throws IOException {
-        List<Object[]> partition = getPartition(partitionIndex);
+    private PartitionManifest getManifest() throws IOException {
+        if (manifest == null) {
+            manifest = loadManifest();
 
-        int insertIndex = binarySearch(partition, row);
-        if (insertIndex < 0) {
-            insertIndex = -insertIndex - 1;
-        } else if (ensureIsUnique) {
-            throw new IllegalArgumentException("Unique field value already exists: " + row[sortKey]);
+            if (manifest != null) {
+                storedDirectory = directorySet(manifest);
+            } else {
+                manifest = rebuildManifest();
+                manifest.setClean(true);
+                saveManifest(manifest);
+            }
         }
 
-        if (insertIndex == 0) {
-            insertAtBeginning(partitionIndex, row);
-        } else if (insertIndex == partition.size()) {
-            insertAtEnd(partitionIndex, row);
+        return manifest;
+    }
 
-        } else {
-            if (partition.size() < maxPartitionSize) {
-                partition.add(insertIndex, row);
-                storage.getPartition(partitionIndex).write(partition);
+    /**
+     * Build the manifest by reading every partition. The directory orders the non-empty partitions by their bounds,
+     * empty ones are free.
+     */
+    private PartitionManifest rebuildManifest() throws IOException {
+        PartitionManifest rebuilt = new PartitionManifest(zoneMapColumns, bloomFilterColumns, sequenceColumn);
+        // Ids given before the manifest went stale may belong to rows removed since
+        rebuilt.raiseSequence(staleSequence);
+        // With a mutation log, only partitions holding logged mutations are overwritten
+        rebuilt.setLogPosition(staleLogPosition);
 
-            } else {
-                partition.add(insertIndex, row);
-                Object[] replaceRow = partition.remove(partition.size() - 1);
+        int partitionsCount = storage.getPartitionsCount();
+        for (int i = 0; i < partitionsCount; i++) {
+            rebuilt.update(i, getPartition(i), sortKey, storage.getPartitionFingerprint(i));
+        }
 
-                storage.getPartition(partitionIndex).write(partition);
-                insertAtBeginning(partitionIndex + 1, replaceRow);
-            }
+        int[] order = IntStream.range(0, partitionsCount)
+                .filter(i -> !rebuilt.isEmpty(i))
+                .boxed()
+                .sorted(Comparator.<Integer>comparingLong(rebuilt::getMinKey)
+                        .thenComparingLong(rebuilt::getMaxKey)
+                        .thenComparingInt(i -> i))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        for (int i = 0; i < order.length; i++) {
+            rebuilt.insertLogical(i, order[i]);
         }
-    }
 
-    private int searchPartitionFor(long value) throws IOException {
-        int partitionsCount = storage.getPartitionsCount();
-        return searchFromRight(value, partitionsCount - 1);
+        return rebuilt;
     }
 
-    private int searchFromRight(long value, int partitionIndex) throws IOException {
-        if (partitionIndex < 0) {
-            return -1;
+    /**
+     * Get the logical order of the partitions. Tables that never had a manifest were always stored in physical order,
+     * their directory is then given without reading any partition.
+     */
+    private int[] getDirectory() throws IOException {
+        if (manifest == null && storage.readMetadata(MANIFEST) == null) {
+            return IntStream.range(0, storage.getPartitionsCount()).toArray();
         }
 
-        List<Object[]> partition = getPartition(partitionIndex);
+        return getManifest().getDirectory();
+    }
 
-        if (partition.isEmpty()) {
-            return searchFromRight(value, partitionIndex - 1);
+    private PartitionManifest loadManifest() throws IOException {
+        byte[] data = storage.readMetadata(MANIFEST);
+        if (data == null) {
+            return null;
         }
 
-        long partitionStart = (long) partition.get(0)[sortKey];
-        long partitionEnd = (long) partition.get(partition.size() - 1)[sortKey];
+        PartitionManifest loaded;
+        try {
+            loaded = PartitionManifest.deserialize(data);
+        } catch (IOException e) {
+            return null;
+        }
 
-        if (value >= partitionStart && value <= partitionEnd) {
-            return partitionIndex;
+        if (loaded.getSequenceColumn() != sequenceColumn) {
+            return null;
         }
-        if (value > partitionEnd) {
-            return -partitionIndex - 2;
-        } else { // value < partitionStart
-            return searchFromRight(value, partitionIndex - 1);
+        staleSequence = loaded.getSequence();
+        staleLogPosition = loaded.getLogPosition();
+
+        // Partitions are only checked if the table was not flushed after being written, opening a table after a clean
+        // shutdown does not touch the partitions. Partitions outside of the directory are free, a flush interrupted
+        // by a crash may have left some.
+        if (!loaded.isClean()) {
+            for (int partitionIndex : loaded.getDirectory()) {
+                if (loaded.getFingerprint(partitionIndex) != storage.getPartitionFingerprint(partitionIndex)) {
+                    return null;
+                }
+            }
         }
+        if (!Arrays.equals(loaded.getZoneMapColumns(), zoneMapColumns) ||
+                !Arrays.equals(loaded.getBloomFilterColumns(), bloomFilterColumns)) {
+            return null;
+        }
+
+        return loaded;
     }
 
     private int binarySearch(List<Object[]> partition, long value) {
+        if (partition instanceof ColumnarPartition) {
+            return ((ColumnarPartition) partition).search(value);
+        } else if (hasSortKey(partition)) {
+            return ((PartitionView) partition).search(value);
+        }
+
         Object[] query = new Object[sortKey + 1];
         query[sortKey] = value;
 
@@ -245,6 +1401,12 @@ public class ClusteredIndex {
     }
 
     private int binarySearch(List<Object[]> partition, Object[] row) {
+        if (partition instanceof ColumnarPartition) {
+            return ((ColumnarPartition) partition).search((long) row[sortKey]);
+        } else if (hasSortKey(partition)) {
+            return ((PartitionView) partition).search((long) row[sortKey]);
+        }
+
         Comparator<Object[]> comp = Comparator.comparingLong(r -> (long) r[sortKey]);
         return UpperBoundBinarySearch.search(partition, row, comp);
     }
@@ -254,37 +1416,263 @@ public class ClusteredIndex {
         if (partitionIndex < 0) {
             throw new IndexOutOfBoundsException("Invalid partition index " + partitionIndex);
         }
-        List<Object[]> partition = partitionsBuffer.get(partitionIndex);
+        List<Object[]> partition = cache.get(this, partitionIndex);
         if (partition == null) {
-            partition = storage.getPartition(partitionIndex).read();
-            partitionsBuffer.put(partitionIndex, partition);
+            partition = toPartition(storage.getPartition(partitionIndex).read());
+            cache.put(this, partitionIndex, partition, this::writePartition);
         }
 
         return partition;
     }
 
+    /**
+     * Get a partition to modify it. If an open snapshot holds the cached partition, or if it is a read-only view, it is
+     * copied first and the copy replaces it in the cache.
+     *
+     * @param partitionIndex Physical index of the partition
+     * @param owner          Snapshot allowed to see the modification, if any
+     *
+     * @return The partition to modify
+     */
+    private List<Object[]> getPartitionForUpdate(int partitionIndex, Snapshot owner) throws IOException {
+        List<Object[]> partition = getPartition(partitionIndex);
+        boolean shared = preserveForSnapshots(partitionIndex, partition, owner);
+
+        if (shared || partition instanceof PartitionView) {
+            partition = schema == null ?
+                    new ArrayList<>(partition) :
+                    new ColumnarPartition(schema, sortKey, partition);
+            cache.put(this, partitionIndex, partition, this::writePartition);
+        }
+
+        return partition;
+    }
+
+    private List<Object[]> getPartitionForUpdate(int partitionIndex) throws IOException {
+        return getPartitionForUpdate(partitionIndex, null);
+    }
+
+    /**
+     * Give the current content of a partition to the open snapshots that did not read it yet.
+     *
+     * @return {@code true} if a snapshot other than the owner holds the given partition instance
+     */
+    private boolean preserveForSnapshots(int partitionIndex, List<Object[]> partition, Snapshot owner) {
+        boolean shared = false;
+        Iterator<WeakReference<Snapshot>> it = snapshots.iterator();
+        while (it.hasNext()) {
+            Snapshot snapshot = it.next().get();
+            if (snapshot == null) {
+                it.remove();
+            } else if (snapshot != owner) {
+                shared |= snapshot.preserve(partitionIndex, partition);
+            }
+        }
+
+        return shared;
+    }
+
+    private Snapshot newSnapshot(int[] directory, boolean cacheReads) {
+        Snapshot snapshot = new Snapshot(directory, cacheReads);
+        snapshots.add(new WeakReference<>(snapshot));
+
+        return snapshot;
+    }
+
+    private List<Object[]> toPartition(List<Object[]> rows) {
+        return schema == null || rows instanceof PartitionView ?
+                rows :
+                new ColumnarPartition(schema, sortKey, rows);
+    }
+
+    private void partitionModified(int partitionIndex, List<Object[]> partition) throws IOException {
+        if (partition.size() < maxPartitionSize * MERGE_FILL_FACTOR) {
+            underfilledPartitions.add(partitionIndex);
+        }
+
+        if (log != null) {
+            deferPartition(partitionIndex, partition);
+        } else if (!cache.markDirty(this, partitionIndex)) {
+            writePartition(partitionIndex, partition);
+        }
+    }
+
+
+    /**
+     * Remove a row read by an iterator.
+     *
+     * @param partitionIndex Physical index of the partition the row was read from
+     * @param rows           Partition as seen by the iterator
+     * @param rowIndex       Index of the row in {@code rows}
+     * @param owner          Snapshot of the iterator
+     *
+     * @return {@code true} if the row was removed from {@code rows} itself, {@code false} if the partition was
+     * modified since the iterator read it
+     */
+    private synchronized boolean removeRow(int partitionIndex, List<Object[]> rows, int rowIndex, Snapshot owner)
+            throws IOException {
+        Object[] removed = rows.get(rowIndex);
+
+        if (getPartition(partitionIndex) != rows) {
+            // The row may have moved, look it up by value
+            removeIndexFirst((long) removed[sortKey], r -> Arrays.equals(r, removed));
+            return false;
+        }
+
+        getManifest();
+        loadSecondaryIndexes();
+
+        List<Object[]> partition = getPartitionForUpdate(partitionIndex, owner);
+        partition.remove(rowIndex);
+        partitionModified(partitionIndex, partition);
+        version++;
+
+        if (!unmerging) {
+            for (SecondaryIndex index : secondaryIndexes.values()) {
+                index.remove(removed, (long) removed[sortKey]);
+                secondaryIndexesDirty = true;
+            }
+
+            if (log != null && !redoing) {
+                getManifest().setLogPosition(log.logRemove(removed));
+            }
+        }
+
+        return partition == rows;
+    }
+
+    private long sortValue(List<Object[]> partition, int rowIndex) {
+        if (partition instanceof ColumnarPartition) {
+            return ((ColumnarPartition) partition).getSortKey(rowIndex);
+        } else if (hasSortKey(partition)) {
+            return ((PartitionView) partition).getSortKey(rowIndex);
+        }
+
+        return (long) partition.get(rowIndex)[sortKey];
+    }
+
+    private boolean hasSortKey(List<Object[]> partition) {
+        return partition instanceof PartitionView && ((PartitionView) partition).getSortKeyColumn() == sortKey;
+    }
+
+    /**
+     * State of the partitions when the snapshot was taken. Partitions are read lazily, writers give the snapshot the
+     * previous content of a partition before modifying it. Partitions released by the reader are not kept anymore.
+     */
+    private class Snapshot implements PartitionSpliterator.PartitionReader {
+
+        private final int[] directory;
+        private final boolean cacheReads;
+
+        private final Map<Integer, List<Object[]>> partitions = new HashMap<>();
+        private final Set<Integer> released = new HashSet<>();
+
+        Snapshot(int[] directory, boolean cacheReads) {
+            this.directory = directory;
+            this.cacheReads = cacheReads;
+        }
+
+        @Override
+        public List<Object[]> read(int partitionIndex) throws IOException {
+            synchronized (ClusteredIndex.this) {
+                List<Object[]> partition = partitions.get(partitionIndex);
+                if (partition == null) {
+                    partition = cacheReads ?
+                            getPartition(partitionIndex) :
+                            cache.get(ClusteredIndex.this, partitionIndex);
+                }
+                if (partition != null) {
+                    partitions.put(partitionIndex, partition);
+                    return partition;
+                }
+            }
+
+            // Decode without holding the lock, a writer modifying the partition meanwhile preserves it first
+            List<Object[]> read = null;
+            IOException failure = null;
+            try {
+                read = storage.getPartition(partitionIndex).read();
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            synchronized (ClusteredIndex.this) {
+                List<Object[]> preserved = partitions.get(partitionIndex);
+                if (preserved != null) {
+                    return preserved;
+                } else if (failure != null) {
+                    throw failure;
+                }
+
+                partitions.put(partitionIndex, read);
+                return read;
+            }
+        }
+
+        @Override
+        public void release(int partitionIndex) {
+            synchronized (ClusteredIndex.this) {
+                partitions.remove(partitionIndex);
+                released.add(partitionIndex);
+            }
+        }
+
+        /**
+         * Called by writers before modifying a partition.
+         *
+         * @return {@code true} if this snapshot holds the given partition instance
+         */
+        boolean preserve(int partitionIndex, List<Object[]> partition) {
+            if (released.contains(partitionIndex)) {
+                return false;
+            }
+
+            List<Object[]> held = partitions.putIfAbsent(partitionIndex, partition);
+            return held == null || held == partition;
+        }
+
+        void close() {
+            synchronized (ClusteredIndex.this) {
+                snapshots.removeIf(r -> r.get() == null || r.get() == this);
+                partitions.clear();
+            }
+        }
+    }
+
+    private class ReversedIterator implements IndexIterator {
 
-    private class ReversedIterator implements IoIterator<Object[]> {
+        final Snapshot snapshot;
+        private final int[] directory;
 
         private int previousIndex = -1;
         private int previousPartition = -1;
+        private List<Object[]> previousRows;
 
         int nextRowIndex;
-        int nextPartition;
+        int nextLogicalIndex;
+        List<Object[]> nextRows;
+        private PartitionView.RowDecoder nextDecoder;
+
+        private boolean closed;
 
-        private ReversedIterator(int nextRowIndex, int nextPartition) {
+        private ReversedIterator(Snapshot snapshot, int nextRowIndex, int nextLogicalIndex) throws IOException {
+            this.snapshot = snapshot;
+            this.directory = snapshot.directory;
             this.nextRowIndex = nextRowIndex;
-            this.nextPartition = nextPartition;
+            this.nextLogicalIndex = nextLogicalIndex;
+            this.nextRows = snapshot.read(directory[nextLogicalIndex]);
         }
 
-        ReversedIterator(int partitionsCount) throws IOException {
-            nextPartition = partitionsCount;
+        ReversedIterator(Snapshot snapshot) throws IOException {
+            this.snapshot = snapshot;
+            this.directory = snapshot.directory;
+            nextLogicalIndex = directory.length;
             nextPartition();
         }
 
         @Override
         public boolean hasNext() {
-            return nextPartition >= 0 && nextRowIndex >= 0;
+            return nextLogicalIndex >= 0 && nextRowIndex >= 0;
         }
 
         @Override
@@ -293,62 +1681,269 @@ public class ClusteredIndex {
                 throw new NoSuchElementException();
             }
 
-            Object[] next = getPartition(nextPartition).get(nextRowIndex);
+            Object[] next = nextRows.get(nextRowIndex);
+            advance();
+
+            return next;
+        }
+
+        @Override
+        public void next(ColumnSink sink) throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            if (nextDecoder == null) {
+                nextDecoder = newDecoder(nextRows);
+            }
+            decode(nextDecoder, nextRowIndex, sink);
+            advance();
+        }
 
+        private void advance() throws IOException {
             previousIndex = nextRowIndex;
-            previousPartition = nextPartition;
+            previousPartition = directory[nextLogicalIndex];
+            previousRows = nextRows;
             if (nextRowIndex == 0) {
                 nextPartition();
             } else {
                 nextRowIndex--;
             }
+        }
+
+        @Override
+        public void remove() throws IOException {
+            if (previousIndex < 0) {
+                throw new IllegalStateException("Must call next first");
+            }
+
+            // Rows before the removed one are not shifted
+            removeRow(previousPartition, previousRows, previousIndex, snapshot);
+            previousIndex = -1;
+        }
+
+        @Override
+        public void close() {
+            nextLogicalIndex = -1;
+            nextRows = null;
+
+            synchronized (ClusteredIndex.this) {
+                if (!closed) {
+                    closed = true;
+                    snapshot.close();
+                }
+            }
+        }
+
+        private void nextPartition() throws IOException {
+            if (nextRows != null) {
+                snapshot.release(directory[nextLogicalIndex]);
+            }
+            nextDecoder = null;
+
+            do {
+                nextLogicalIndex--;
+            } while (nextLogicalIndex >= 0 && snapshot.read(directory[nextLogicalIndex]).isEmpty());
+
+            if (nextLogicalIndex >= 0) {
+                nextRows = snapshot.read(directory[nextLogicalIndex]);
+                nextRowIndex = nextRows.size() - 1;
+            } else {
+                nextRows = null;
+                nextRowIndex = -1;
+                close();
+            }
+        }
+    }
+
+    private class RangeReversedIterator extends ReversedIterator {
+
+        private final long fromInclusive;
+
+        RangeReversedIterator(Snapshot snapshot, int nextRowIndex, int nextLogicalIndex, long fromInclusive) throws IOException {
+            super(snapshot, nextRowIndex, nextLogicalIndex);
+            this.fromInclusive = fromInclusive;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!super.hasNext()) {
+                return false;
+            }
+            if (sortValue(nextRows, nextRowIndex) < fromInclusive) {
+                close();
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    private class RangeIterator implements IndexIterator {
+
+        private final Snapshot snapshot;
+        private final int[] directory;
+        private final long toInclusive;
+
+        private int previousIndex = -1;
+        private int previousPartition = -1;
+        private List<Object[]> previousRows;
+
+        private int nextRowIndex;
+        private int nextLogicalIndex;
+        private List<Object[]> nextRows;
+        private PartitionView.RowDecoder nextDecoder;
+
+        private boolean closed;
+
+        RangeIterator(Snapshot snapshot, int nextRowIndex, int nextLogicalIndex, long toInclusive) throws IOException {
+            this.snapshot = snapshot;
+            this.directory = snapshot.directory;
+            this.toInclusive = toInclusive;
+            this.nextRowIndex = nextRowIndex;
+            this.nextLogicalIndex = nextLogicalIndex;
+            this.nextRows = snapshot.read(directory[nextLogicalIndex]);
+
+            if (nextRowIndex >= nextRows.size()) {
+                nextPartition();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRows == null) {
+                return false;
+            }
+            if (sortValue(nextRows, nextRowIndex) > toInclusive) {
+                close();
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public Object[] next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Object[] next = nextRows.get(nextRowIndex);
+            advance();
 
             return next;
         }
 
+        @Override
+        public void next(ColumnSink sink) throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            if (nextDecoder == null) {
+                nextDecoder = newDecoder(nextRows);
+            }
+            decode(nextDecoder, nextRowIndex, sink);
+            advance();
+        }
+
+        private void advance() throws IOException {
+            previousIndex = nextRowIndex;
+            previousPartition = directory[nextLogicalIndex];
+            previousRows = nextRows;
+            if (++nextRowIndex == nextRows.size()) {
+                nextPartition();
+            }
+        }
+
         @Override
         public void remove() throws IOException {
             if (previousIndex < 0) {
                 throw new IllegalStateException("Must call next first");
             }
 
-            getPartition(previousPartition).remove(previousIndex);
+            boolean inPlace = removeRow(previousPartition, previousRows, previousIndex, snapshot);
+            if (inPlace && previousRows == nextRows) {
+                nextRowIndex--;
+            }
+            previousIndex = -1;
+        }
+
+        @Override
+        public void close() {
+            nextRows = null;
+
+            synchronized (ClusteredIndex.this) {
+                if (!closed) {
+                    closed = true;
+                    snapshot.close();
+                }
+            }
         }
 
         private void nextPartition() throws IOException {
+            snapshot.release(directory[nextLogicalIndex]);
+            nextDecoder = null;
+
             do {
-                nextPartition--;
-            } while (nextPartition >= 0 && getPartition(nextPartition).isEmpty());
+                nextLogicalIndex++;
+            } while (nextLogicalIndex < directory.length && snapshot.read(directory[nextLogicalIndex]).isEmpty());
 
-            nextRowIndex = nextPartition >= 0 ?
-                    getPartition(nextPartition).size() - 1 : -1;
+            if (nextLogicalIndex < directory.length) {
+                nextRows = snapshot.read(directory[nextLogicalIndex]);
+                nextRowIndex = 0;
+            } else {
+                close();
+            }
         }
     }
 
-    private class LimitReversedIterator extends ReversedIterator {
+    /**
+     * @return A decoder of the rows of the partition into column sinks
+     */
+    private static PartitionView.RowDecoder newDecoder(List<Object[]> partition) {
+        if (partition instanceof PartitionView) {
+            return ((PartitionView) partition).newDecoder();
+        } else if (partition instanceof ColumnarPartition) {
+            return ((ColumnarPartition) partition)::get;
+        }
 
-        private final long acceptValue;
+        return (row, sink) -> sink.setAll(partition.get(row));
+    }
 
-        public LimitReversedIterator(int nextRowIndex, int currentPartitionIndex, long acceptValue) {
-            super(nextRowIndex, currentPartitionIndex);
-            this.acceptValue = acceptValue;
+    private static void decode(PartitionView.RowDecoder decoder, int row, ColumnSink sink) throws IOException {
+        try {
+            decoder.decode(row, sink);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
+
+    private static class EmptyIterator implements IndexIterator {
 
         @Override
         public boolean hasNext() {
-            return super.hasNext() &&
-                    acceptValue == (long) partitionsBuffer.get(nextPartition).get(nextRowIndex)[sortKey];
+            return false;
+        }
+
+        @Override
+        public Object[] next() {
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void close() {
         }
     }
 
-    public String debugPrint() throws IOException {
-        int n = storage.getPartitionsCount();
+    public synchronized String debugPrint() throws IOException {
+        int[] directory = getManifest().getDirectory();
 
-        String result = n + " partitions.";
-        for (int i = 0; i < n; i++) {
-            List<Object[]> partition = getPartition(i);
+        String result = directory.length + " partitions.";
+        for (int i = 0; i < directory.length; i++) {
+            List<Object[]> partition = getPartition(directory[i]);
 
-            result += "\nPartition " + i + " (" + partition.size() + "):\n    ";
+            result += "\nPartition " + i + " (" + directory[i] + ", " + partition.size() + "):\n    ";
 
             result += partition.stream()
                     .map(Arrays::toString)
@@ -359,7 +1954,11 @@ public class ClusteredIndex {
     }
 
     public JPanel debugDisplay() throws IOException {
-        int n = storage.getPartitionsCount();
+        int[] directory;
+        synchronized (this) {
+            directory = getManifest().getDirectory();
+        }
+        int n = directory.length;
 
         Object[] partitionsNames = IntStream.range(0, n + 1)
                 .mapToObj(i -> "Partition " + i)
@@ -368,7 +1967,7 @@ public class ClusteredIndex {
 
         List<Object[]> allData = new ArrayList<>();
         for (int i = 0; i < n; i++) {
-            allData.addAll(getPartition(i));
+            allData.addAll(getPartition(directory[i]));
         }
 
         JPanel panel = new JPanel(new BorderLayout());
@@ -391,7 +1990,7 @@ public class ClusteredIndex {
                     return tableData;
                 } else {
                     try {
-                        List<Object[]> part = getPartition(sel);
+                        List<Object[]> part = getPartition(directory[sel]);
                         return part.toArray(new Object[part.size()][]);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
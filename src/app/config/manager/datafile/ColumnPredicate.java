@@ -0,0 +1,134 @@
+package app.config.manager.datafile;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Predicate on the columns of a row that can tell, from the {@link PartitionStatistics} of a partition, that no row of
+ * the partition matches. {@link ClusteredIndex#queryFirst(Predicate)} and {@link ClusteredIndex#removeFirst(Predicate)}
+ * skip such partitions without reading them.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public abstract class ColumnPredicate implements Predicate<Object[]> {
+
+    /**
+     * Rows whose column equals the given value.
+     *
+     * @param column Index of the column
+     * @param value  Value, possibly {@code null}
+     *
+     * @return The predicate
+     */
+    public static ColumnPredicate equalTo(int column, Object value) {
+        return new ColumnPredicate() {
+            @Override
+            public boolean test(Object[] row) {
+                return Objects.equals(row[column], value);
+            }
+
+            @Override
+            public boolean mayMatch(PartitionStatistics statistics) {
+                ZoneMap zoneMap = statistics.getZoneMap(column);
+                if (value != null && zoneMap != null && !zoneMap.mayContain(value, value)) {
+                    return false;
+                }
+
+                BloomFilter bloomFilter = statistics.getBloomFilter(column);
+                return bloomFilter == null || bloomFilter.mightContain(value);
+            }
+        };
+    }
+
+    /**
+     * Rows whose column holds a non-null value within the given bounds.
+     *
+     * @param column Index of the column
+     * @param lower  Lowest value (inclusive), or {@code null} if unbounded
+     * @param upper  Highest value (inclusive), or {@code null} if unbounded
+     * @param <T>    Type of the values
+     *
+     * @return The predicate
+     */
+    public static <T extends Comparable<? super T>> ColumnPredicate between(int column, T lower, T upper) {
+        return new ColumnPredicate() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean test(Object[] row) {
+                T value = (T) row[column];
+                return value != null &&
+                        (lower == null || value.compareTo(lower) >= 0) &&
+                        (upper == null || value.compareTo(upper) <= 0);
+            }
+
+            @Override
+            public boolean mayMatch(PartitionStatistics statistics) {
+                ZoneMap zoneMap = statistics.getZoneMap(column);
+                return zoneMap == null || zoneMap.mayContain(lower, upper);
+            }
+        };
+    }
+
+    /**
+     * Rows matching all the given predicates.
+     *
+     * @param predicates Predicates
+     *
+     * @return The predicate
+     */
+    public static ColumnPredicate allOf(ColumnPredicate... predicates) {
+        return new ColumnPredicate() {
+            @Override
+            public boolean test(Object[] row) {
+                for (ColumnPredicate predicate : predicates) {
+                    if (!predicate.test(row)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public boolean mayMatch(PartitionStatistics statistics) {
+                for (ColumnPredicate predicate : predicates) {
+                    if (!predicate.mayMatch(statistics)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param statistics Statistics of a partition
+     *
+     * @return {@code false} if no row of the partition can match this predicate
+     */
+    public abstract boolean mayMatch(PartitionStatistics statistics);
+
+    /**
+     * Combine this predicate with an arbitrary one, partitions being skipped on this predicate only.
+     *
+     * @param other Additional condition on the rows
+     *
+     * @return The combined predicate
+     */
+    @Override
+    public ColumnPredicate and(Predicate<? super Object[]> other) {
+        ColumnPredicate self = this;
+        return new ColumnPredicate() {
+            @Override
+            public boolean test(Object[] row) {
+                return self.test(row) && other.test(row);
+            }
+
+            @Override
+            public boolean mayMatch(PartitionStatistics statistics) {
+                return self.mayMatch(statistics) &&
+                        (!(other instanceof ColumnPredicate) || ((ColumnPredicate) other).mayMatch(statistics));
+            }
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package app.config.manager.datafile;
+
+/**
+ * Receiver of the columns of a decoded row. Numeric and date values are given unboxed, so that rows can be decoded
+ * into reusable buffers (see {@link RowBuffer}) or directly into primitive columns (see {@link ColumnarPartition})
+ * without allocating.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public interface ColumnSink {
+
+    void setLong(int column, long value);
+
+    void setInt(int column, int value);
+
+    void setDouble(int column, double value);
+
+    /**
+     * @param column   Index of the column
+     * @param epochDay Date, as given by {@link java.time.LocalDate#toEpochDay()}
+     */
+    void setEpochDay(int column, long epochDay);
+
+    /**
+     * @param column Index of the column
+     * @param value  Any value, possibly {@code null} or boxed
+     */
+    void setObject(int column, Object value);
+
+    /**
+     * Give all the values of a materialized row.
+     *
+     * @param row The row
+     */
+    default void setAll(Object[] row) {
+        for (int c = 0; c < row.length; c++) {
+            setObject(c, row[c]);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package app.config.manager.datafile;
+
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Partition storing each column of a {@link PartitionSchema} in its own array, numeric columns being kept unboxed.
+ * Rows are only materialized as {@code Object[]} when accessed through the {@link java.util.List} interface. The sort
+ * key column can be searched without materializing any row.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class ColumnarPartition extends AbstractList<Object[]> implements RandomAccess {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final PartitionSchema schema;
+    private final int sortKey;
+
+    private final Object[] columns;
+    private int size;
+    private int capacity;
+
+    public ColumnarPartition(PartitionSchema schema, int sortKey) {
+        this(schema, sortKey, DEFAULT_CAPACITY);
+    }
+
+    public ColumnarPartition(PartitionSchema schema, int sortKey, int capacity) {
+        if (schema.getType(sortKey) != PartitionSchema.ColumnType.LONG) {
+            throw new IllegalArgumentException("Sort key must be a LONG column");
+        }
+
+        this.schema = schema;
+        this.sortKey = sortKey;
+        this.columns = new Object[schema.getColumnsCount()];
+        this.capacity = Math.max(1, capacity);
+
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = newColumn(schema.getType(c), this.capacity);
+        }
+    }
+
+    /**
+     * @param schema  Types of the columns
+     * @param sortKey Sort key column
+     * @param rows    Initial rows. Rows of a {@link PartitionView} are decoded directly into the columns.
+     */
+    public ColumnarPartition(PartitionSchema schema, int sortKey, Collection<Object[]> rows) {
+        this(schema, sortKey, rows.size());
+
+        if (rows instanceof PartitionView) {
+            PartitionView.RowDecoder decoder = ((PartitionView) rows).newDecoder();
+            RowWriter writer = new RowWriter();
+            for (int i = 0; i < rows.size(); i++) {
+                writer.row = i;
+                decoder.decode(i, writer);
+                size++;
+            }
+        } else {
+            addAll(rows);
+        }
+    }
+
+    /**
+     * @param row Index of the row
+     *
+     * @return The sort key value of the row, without materializing it
+     */
+    public long getSortKey(int row) {
+        checkIndex(row);
+        return ((long[]) columns[sortKey])[row];
+    }
+
+    /**
+     * Binary search on the sort key column.
+     *
+     * @param value Sort key value
+     *
+     * @return The index of the last row with the given value, or {@code -i - 1} where {@code i} is the index at which
+     * the value would be inserted
+     */
+    public int search(long value) {
+        long[] keys = (long[]) columns[sortKey];
+
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low > 0 && keys[low - 1] == value ? low - 1 : -low - 1;
+    }
+
+    @Override
+    public Object[] get(int index) {
+        checkIndex(index);
+
+        Object[] row = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            row[c] = getValue(c, index);
+        }
+
+        return row;
+    }
+
+    /**
+     * Give the values of a row to a sink, without materializing it.
+     *
+     * @param index Index of the row
+     * @param sink  Receiver of the values
+     */
+    public void get(int index, ColumnSink sink) {
+        checkIndex(index);
+
+        for (int c = 0; c < columns.length; c++) {
+            switch (schema.getType(c)) {
+                case LONG:
+                    sink.setLong(c, ((long[]) columns[c])[index]);
+                    break;
+                case INT:
+                    sink.setInt(c, ((int[]) columns[c])[index]);
+                    break;
+                case DOUBLE:
+                    sink.setDouble(c, ((double[]) columns[c])[index]);
+                    break;
+                case DATE:
+                    sink.setEpochDay(c, ((long[]) columns[c])[index]);
+                    break;
+                default:
+                    sink.setObject(c, ((Object[]) columns[c])[index]);
+            }
+        }
+    }
+
+    @Override
+    public Object[] set(int index, Object[] row) {
+        checkIndex(index);
+        checkRow(row);
+
+        Object[] previous = get(index);
+        for (int c = 0; c < columns.length; c++) {
+            setValue(c, index, row[c]);
+        }
+
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Object[] row) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        checkRow(row);
+
+        ensureCapacity(size + 1);
+        for (int c = 0; c < columns.length; c++) {
+            System.arraycopy(columns[c], index, columns[c], index + 1, size - index);
+        }
+        size++;
+
+        for (int c = 0; c < columns.length; c++) {
+            setValue(c, index, row[c]);
+        }
+        modCount++;
+    }
+
+    @Override
+    public Object[] remove(int index) {
+        Object[] removed = get(index);
+        removeRange(index, index + 1);
+
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        int moved = size - toIndex;
+        for (int c = 0; c < columns.length; c++) {
+            System.arraycopy(columns[c], toIndex, columns[c], fromIndex, moved);
+            if (columns[c] instanceof Object[]) {
+                Arrays.fill((Object[]) columns[c], fromIndex + moved, size, null);
+            }
+        }
+
+        size -= toIndex - fromIndex;
+        modCount++;
+    }
+
+    private Object getValue(int column, int index) {
+        switch (schema.getType(column)) {
+            case LONG:
+                return ((long[]) columns[column])[index];
+            case INT:
+                return ((int[]) columns[column])[index];
+            case DOUBLE:
+                return ((double[]) columns[column])[index];
+            case DATE:
+                return LocalDate.ofEpochDay(((long[]) columns[column])[index]);
+            default:
+                return ((Object[]) columns[column])[index];
+        }
+    }
+
+    private void setValue(int column, int index, Object value) {
+        switch (schema.getType(column)) {
+            case LONG:
+                ((long[]) columns[column])[index] = (long) value;
+                break;
+            case INT:
+                ((int[]) columns[column])[index] = (int) value;
+                break;
+            case DOUBLE:
+                ((double[]) columns[column])[index] = (double) value;
+                break;
+            case DATE:
+                ((long[]) columns[column])[index] = ((LocalDate) value).toEpochDay();
+                break;
+            default:
+                ((Object[]) columns[column])[index] = value;
+        }
+    }
+
+    /**
+     * Sink writing the values of a row directly into the columns, values of another type being converted as {@link
+     * #set(int, Object[])} would.
+     */
+    private class RowWriter implements ColumnSink {
+
+        private int row;
+
+        @Override
+        public void setLong(int column, long value) {
+            if (schema.getType(column) == PartitionSchema.ColumnType.LONG) {
+                ((long[]) columns[column])[row] = value;
+            } else {
+                setObject(column, value);
+            }
+        }
+
+        @Override
+        public void setInt(int column, int value) {
+            if (schema.getType(column) == PartitionSchema.ColumnType.INT) {
+                ((int[]) columns[column])[row] = value;
+            } else {
+                setObject(column, value);
+            }
+        }
+
+        @Override
+        public void setDouble(int column, double value) {
+            if (schema.getType(column) == PartitionSchema.ColumnType.DOUBLE) {
+                ((double[]) columns[column])[row] = value;
+            } else {
+                setObject(column, value);
+            }
+        }
+
+        @Override
+        public void setEpochDay(int column, long epochDay) {
+            if (schema.getType(column) == PartitionSchema.ColumnType.DATE) {
+                ((long[]) columns[column])[row] = epochDay;
+            } else {
+                setObject(column, LocalDate.ofEpochDay(epochDay));
+            }
+        }
+
+        @Override
+        public void setObject(int column, Object value) {
+            if (value == null && schema.getType(column) != PartitionSchema.ColumnType.OBJECT) {
+                throw new IllegalArgumentException("Column " + column + " cannot be null");
+            }
+
+            setValue(column, row, value);
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= capacity) {
+            return;
+        }
+
+        int newCapacity = Math.max(minCapacity, capacity + (capacity >> 1));
+        for (int c = 0; c < columns.length; c++) {
+            Object column = newColumn(schema.getType(c), newCapacity);
+            System.arraycopy(columns[c], 0, column, 0, size);
+            columns[c] = column;
+        }
+
+        capacity = newCapacity;
+    }
+
+    private void checkRow(Object[] row) {
+        if (row.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " columns, got " + row.length);
+        }
+
+        for (int c = 0; c < columns.length; c++) {
+            if (row[c] == null && schema.getType(c) != PartitionSchema.ColumnType.OBJECT) {
+                throw new IllegalArgumentException("Column " + c + " cannot be null");
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private static Object newColumn(PartitionSchema.ColumnType type, int capacity) {
+        switch (type) {
+            case LONG:
+            case DATE:
+                return new long[capacity];
+            case INT:
+                return new int[capacity];
+            case DOUBLE:
+                return new double[capacity];
+            default:
+                return new Object[capacity];
+        }
+    }
+}
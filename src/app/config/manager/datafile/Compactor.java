@@ -0,0 +1,113 @@
+package app.config.manager.datafile;
+
+import com.wx.util.log.LogHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact tables in the background, a few partitions at a time (see {@link ClusteredIndex#compact(double, int)}). The
+ * I/O budget bounds the number of partitions written per period, the table is only locked for the duration of a step.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class Compactor implements Closeable {
+
+    private static final Logger LOG = LogHelper.getLogger(Compactor.class);
+
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    private final ClusteredIndex index;
+    private final double fillFactor;
+    private final int writesPerStep;
+
+    private final ScheduledExecutorService scheduler;
+    private volatile DoubleConsumer progressListener = p -> {};
+    private long writesCount;
+
+    /**
+     * @param index         Table to compact
+     * @param fillFactor    Target fill of the partitions, relative to the maximum partition size
+     * @param writesPerStep Maximum number of partitions written per step, at least 2
+     */
+    public Compactor(ClusteredIndex index, double fillFactor, int writesPerStep) {
+        this.index = index;
+        this.fillFactor = fillFactor;
+        this.writesPerStep = writesPerStep;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param listener Receives the progress of the current pass after each step, on the compaction thread
+     */
+    public void setProgressListener(DoubleConsumer listener) {
+        this.progressListener = listener;
+    }
+
+    /**
+     * Run a step every period.
+     *
+     * @param period Time between the end of a step and the start of the next one
+     * @param unit   Unit of the period
+     */
+    public void start(long period, TimeUnit unit) {
+        scheduler.scheduleWithFixedDelay(this::scheduledStep, period, period, unit);
+    }
+
+    /**
+     * Run a step in the calling thread.
+     *
+     * @return The number of partitions written
+     *
+     * @throws IOException
+     */
+    public int step() throws IOException {
+        int writes = index.compact(fillFactor, writesPerStep);
+        synchronized (this) {
+            writesCount += writes;
+        }
+        progressListener.accept(index.getCompactionProgress());
+
+        return writes;
+    }
+
+    /**
+     * @return Number of partitions written by this compactor so far
+     */
+    public synchronized long getWritesCount() {
+        return writesCount;
+    }
+
+    /**
+     * Stop the compaction, waiting for the running step if any.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduledStep() {
+        try {
+            step();
+        } catch (IOException | RuntimeException e) {
+            // The step is retried on the next period
+            LOG.log(Level.WARNING, "Compaction step failed", e);
+        }
+    }
+}
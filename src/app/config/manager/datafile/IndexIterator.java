@@ -0,0 +1,31 @@
+package app.config.manager.datafile;
+
+import com.wx.util.future.IoIterator;
+
+import java.io.IOException;
+
+/**
+ * Iterator over the rows of a {@link ClusteredIndex}. The iterator holds on the partitions it is reading until it is
+ * either exhausted or closed.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public interface IndexIterator extends IoIterator<Object[]>, AutoCloseable {
+
+    /**
+     * Move to the next row, giving its values to a sink instead of materializing it. Scanning into a reused {@link
+     * RowBuffer} does not allocate per row when the partitions are stored in a decodable form.
+     *
+     * @param sink Receiver of the values of the next row
+     *
+     * @throws IOException
+     */
+    default void next(ColumnSink sink) throws IOException {
+        sink.setAll(next());
+    }
+
+    @Override
+    void close();
+
+}
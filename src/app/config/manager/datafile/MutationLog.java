@@ -0,0 +1,29 @@
+package app.config.manager.datafile;
+
+import java.io.IOException;
+
+/**
+ * Log receiving the row mutations of a {@link ClusteredIndex}. When an index has a log attached, modified partitions
+ * are only written back to the storage on {@link ClusteredIndex#flush()}, the log being responsible for the
+ * durability of the mutations in between.
+ * <p>
+ * Every mutation gets a position in the log, increasing with the order of the mutations of a table. The index keeps
+ * the position of its last mutation in its manifest, so that replaying the log skips the mutations that the partitions
+ * already hold.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public interface MutationLog {
+
+    /**
+     * @return The position of the mutation in the log
+     */
+    long logInsert(Object[] row) throws IOException;
+
+    /**
+     * @return The position of the mutation in the log
+     */
+    long logRemove(Object[] row) throws IOException;
+
+}
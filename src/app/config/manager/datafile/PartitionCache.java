@@ -0,0 +1,371 @@
+package app.config.manager.datafile;
+
+import com.wx.util.log.LogHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded LRU cache of decoded partitions, meant to be shared by all the tables of a manager. The budget is counted in
+ * rows. Pinned partitions are never evicted, dirty partitions are written back before being evicted.
+ * <p>
+ * Owners call the cache while holding their own monitor, and write-backs run under the monitor of their owner. Dirty
+ * partitions of the owner inserting a partition are written back right away, by the inserting thread once it released
+ * the monitor of the cache, so that the other owners are not blocked meanwhile. Those of other owners are written back
+ * on a background thread that takes the monitor of their owner first. Both are pinned while they are written, and
+ * evicted once written.
+ * <p>
+ * Owners modify the cached partitions in place and report it with {@link #resized(Object, int)}, so that the number
+ * of cached rows is maintained without going through the entries.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PartitionCache {
+
+    public static final int DEFAULT_CAPACITY = 50_000;
+
+    private static final Logger LOG = LogHelper.getLogger(PartitionCache.class);
+
+    @FunctionalInterface
+    public interface WriteBack {
+        void write(int partitionIndex, List<Object[]> partition) throws IOException;
+    }
+
+    private final int capacity;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedRows;
+
+    private final Set<Key> writeBackQueue = new LinkedHashSet<>();
+    private boolean writingBack;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public PartitionCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PartitionCache(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized int getCachedRowsCount() {
+        return cachedRows;
+    }
+
+    synchronized List<Object[]> get(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.partition;
+    }
+
+    /**
+     * Same as {@link #get(Object, int)}, without counting as a hit or a miss.
+     */
+    synchronized List<Object[]> peek(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        return entry == null ? null : entry.partition;
+    }
+
+    /**
+     * Called while holding the monitor of the owner, which is also held while the dirty partitions of the owner are
+     * written back.
+     */
+    void put(Object owner, int partitionIndex, List<Object[]> partition, WriteBack writeBack) throws IOException {
+        Key key = new Key(owner, partitionIndex);
+        Map<Key, Entry> writeBacks;
+        synchronized (this) {
+            Entry added = new Entry(partition, writeBack);
+            Entry previous = entries.put(key, added);
+            if (previous != null) {
+                added.pins = previous.pins;
+                added.dirty = previous.dirty;
+                cachedRows -= previous.size;
+            }
+            cachedRows += added.size;
+
+            writeBacks = evict(key);
+        }
+
+        writeBack(writeBacks);
+    }
+
+    /**
+     * Account for rows added to or removed from a cached partition.
+     *
+     * @param owner          Owner of the partition
+     * @param partitionIndex Index of the partition
+     */
+    synchronized void resized(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        if (entry != null) {
+            cachedRows += entry.partition.size() - entry.size;
+            entry.size = entry.partition.size();
+        }
+    }
+
+    /**
+     * Drop a partition without writing it back.
+     */
+    synchronized void remove(Object owner, int partitionIndex) {
+        Entry entry = entries.remove(new Key(owner, partitionIndex));
+        if (entry != null) {
+            cachedRows -= entry.size;
+        }
+    }
+
+    synchronized boolean markDirty(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        if (entry == null) {
+            return false;
+        }
+
+        entry.dirty = true;
+        resized(owner, partitionIndex);
+        return true;
+    }
+
+    synchronized void markClean(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        if (entry != null) {
+            entry.dirty = false;
+        }
+    }
+
+    synchronized List<Integer> getDirtyPartitions(Object owner) {
+        List<Integer> dirty = new ArrayList<>();
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().owner == owner && entry.getValue().dirty) {
+                dirty.add(entry.getKey().partitionIndex);
+            }
+        }
+
+        return dirty;
+    }
+
+    synchronized void pin(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        if (entry != null) {
+            entry.pins++;
+        }
+    }
+
+    synchronized void unpin(Object owner, int partitionIndex) {
+        Entry entry = entries.get(new Key(owner, partitionIndex));
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+        }
+    }
+
+    /**
+     * Drop all the partitions of the given owner, without writing them back.
+     *
+     * @param owner Owner of the partitions
+     */
+    synchronized void invalidate(Object owner) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> next = it.next();
+            if (next.getKey().owner == owner) {
+                cachedRows -= next.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict clean partitions until the budget is met.
+     *
+     * @return The dirty partitions of the owner of the protected key to write back, pinned
+     */
+    private Map<Key, Entry> evict(Key protectedKey) {
+        int excess = cachedRows - capacity;
+        Map<Key, Entry> writeBacks = new LinkedHashMap<>();
+
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (excess > 0 && it.hasNext()) {
+            Map.Entry<Key, Entry> next = it.next();
+            Key key = next.getKey();
+            Entry entry = next.getValue();
+
+            if (entry.pins > 0 || key.equals(protectedKey)) {
+                continue;
+            }
+
+            if (!entry.dirty) {
+                it.remove();
+                cachedRows -= entry.size;
+                evictionCount++;
+            } else if (key.owner == protectedKey.owner) {
+                // Written back without the monitor of the cache, write-backs use the cache
+                entry.pins++;
+                writeBacks.put(key, entry);
+            } else {
+                scheduleWriteBack(key);
+                continue;
+            }
+            excess -= entry.size;
+        }
+
+        return writeBacks;
+    }
+
+    /**
+     * Write back and evict the pinned partitions of an owner whose monitor is held.
+     */
+    private void writeBack(Map<Key, Entry> victims) throws IOException {
+        Iterator<Map.Entry<Key, Entry>> it = victims.entrySet().iterator();
+        try {
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> victim = it.next();
+                Key key = victim.getKey();
+                Entry entry = victim.getValue();
+                entry.writeBack.write(key.partitionIndex, entry.partition);
+
+                synchronized (this) {
+                    entry.pins--;
+                    entry.dirty = false;
+                    if (entry.pins == 0 && entries.remove(key, entry)) {
+                        cachedRows -= entry.size;
+                        evictionCount++;
+                    }
+                }
+                it.remove();
+            }
+        } finally {
+            synchronized (this) {
+                for (Entry entry : victims.values()) {
+                    entry.pins--;
+                }
+            }
+        }
+    }
+
+    private void scheduleWriteBack(Key key) {
+        if (writeBackQueue.add(key) && !writingBack) {
+            writingBack = true;
+
+            Thread thread = new Thread(this::writeBackQueued, "Partition write-back");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void writeBackQueued() {
+        while (true) {
+            Key key;
+            synchronized (this) {
+                if (writeBackQueue.isEmpty()) {
+                    writingBack = false;
+                    return;
+                }
+                key = writeBackQueue.iterator().next();
+            }
+
+            try {
+                writeBack(key);
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Background write-back failed", e);
+            }
+
+            synchronized (this) {
+                writeBackQueue.remove(key);
+            }
+        }
+    }
+
+    private void writeBack(Key key) throws IOException {
+        synchronized (key.owner) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry == null || !entry.dirty) {
+                    return;
+                }
+            }
+
+            // The owner cannot modify the partition meanwhile, since its monitor is held
+            entry.writeBack.write(key.partitionIndex, entry.partition);
+
+            synchronized (this) {
+                entry.dirty = false;
+                if (cachedRows > capacity && entry.pins == 0 && entries.remove(key, entry)) {
+                    cachedRows -= entry.size;
+                    evictionCount++;
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final List<Object[]> partition;
+        private final WriteBack writeBack;
+        private int size;
+        private boolean dirty;
+        private int pins;
+
+        Entry(List<Object[]> partition, WriteBack writeBack) {
+            this.partition = partition;
+            this.writeBack = writeBack;
+            this.size = partition.size();
+        }
+    }
+
+    private static class Key {
+        private final Object owner;
+        private final int partitionIndex;
+
+        Key(Object owner, int partitionIndex) {
+            this.owner = owner;
+            this.partitionIndex = partitionIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return owner == key.owner && partitionIndex == key.partitionIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(owner) + partitionIndex;
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package app.config.manager.datafile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-table summary of every partition: row count and sort key bounds. This allows to locate the partition holding a
+ * given sort key without reading any partition. Zone maps and Bloom filters can also be maintained on other columns,
+ * see {@link #getStatistics(int, int)}, as well as the sequence generating the ids of a column, see {@link
+ * #nextSequenceValue()}.
+ * <p>
+ * Partitions are identified by their physical index in the storage. The manifest also holds the partition directory,
+ * which gives the logical (sort) order of the physical partitions in use. Physical partitions that are not in the
+ * directory are free and can be reused.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PartitionManifest {
+
+    private static final int FORMAT_VERSION = 1;
+
+    public static PartitionManifest deserialize(byte[] data) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+
+        // Manifests of other versions are rebuilt from the partitions
+        int version = input.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported manifest version: " + version);
+        }
+
+        int count = input.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(
+                    input.readInt(),
+                    input.readLong(),
+                    input.readLong(),
+                    input.readLong()
+            ));
+        }
+
+        List<Integer> directory = new ArrayList<>();
+        int logicalCount = input.readInt();
+        for (int i = 0; i < logicalCount; i++) {
+            directory.add(input.readInt());
+        }
+
+        int[] zoneMapColumns = readColumns(input);
+        int[] bloomFilterColumns = readColumns(input);
+        for (Entry entry : entries) {
+            entry.zoneMaps = new ZoneMap[zoneMapColumns.length];
+            for (int c = 0; c < zoneMapColumns.length; c++) {
+                entry.zoneMaps[c] = ZoneMap.read(input);
+            }
+            entry.bloomFilters = new BloomFilter[bloomFilterColumns.length];
+            for (int c = 0; c < bloomFilterColumns.length; c++) {
+                entry.bloomFilters[c] = BloomFilter.read(input);
+            }
+        }
+
+        int sequenceColumn = input.readInt();
+        long sequence = input.readLong();
+        long logPosition = input.readLong();
+        boolean clean = input.readBoolean();
+
+        PartitionManifest manifest = new PartitionManifest(zoneMapColumns, bloomFilterColumns, sequenceColumn);
+        manifest.sequence = sequence;
+        manifest.logPosition = logPosition;
+        manifest.clean = clean;
+        manifest.partitions.addAll(entries);
+        manifest.directory.addAll(directory);
+
+        return manifest;
+    }
+
+    private static int[] readColumns(DataInput input) throws IOException {
+        int[] columns = new int[input.readInt()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = input.readInt();
+        }
+
+        return columns;
+    }
+
+    private static void writeColumns(DataOutput output, int[] columns) throws IOException {
+        output.writeInt(columns.length);
+        for (int column : columns) {
+            output.writeInt(column);
+        }
+    }
+
+    private final int[] zoneMapColumns;
+    private final int[] bloomFilterColumns;
+    private final int sequenceColumn;
+    private long sequence;
+    private long logPosition;
+    private boolean clean;
+
+    private final List<Entry> partitions = new ArrayList<>();
+    private final List<Integer> directory = new ArrayList<>();
+    private int[] nonEmptyBuffer;
+    private int[] logicalBuffer;
+
+    public PartitionManifest() {
+        this(new int[0], new int[0]);
+    }
+
+    /**
+     * @param zoneMapColumns     Columns on which a zone map is maintained for each partition
+     * @param bloomFilterColumns Columns on which a Bloom filter is maintained for each partition
+     */
+    public PartitionManifest(int[] zoneMapColumns, int[] bloomFilterColumns) {
+        this(zoneMapColumns, bloomFilterColumns, -1);
+    }
+
+    /**
+     * @param zoneMapColumns     Columns on which a zone map is maintained for each partition
+     * @param bloomFilterColumns Columns on which a Bloom filter is maintained for each partition
+     * @param sequenceColumn     Column of {@code long} ids generated by the sequence, or {@code -1} if none
+     */
+    public PartitionManifest(int[] zoneMapColumns, int[] bloomFilterColumns, int sequenceColumn) {
+        this.zoneMapColumns = zoneMapColumns.clone();
+        this.bloomFilterColumns = bloomFilterColumns.clone();
+        this.sequenceColumn = sequenceColumn;
+    }
+
+    public int[] getZoneMapColumns() {
+        return zoneMapColumns.clone();
+    }
+
+    public int[] getBloomFilterColumns() {
+        return bloomFilterColumns.clone();
+    }
+
+    public int getSequenceColumn() {
+        return sequenceColumn;
+    }
+
+    /**
+     * @return The last value given by the sequence, or the highest value of the sequence column, whichever is greater
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Increment the sequence. Values are never given twice as long as the manifest is persisted after the rows using
+     * them, and a manifest rebuilt from the partitions resumes after the highest stored value.
+     *
+     * @return The next value of the sequence
+     */
+    public long nextSequenceValue() {
+        if (sequenceColumn < 0) {
+            throw new IllegalStateException("No sequence");
+        }
+
+        return ++sequence;
+    }
+
+    /**
+     * Make sure the sequence does not give values lower or equal to the given one.
+     *
+     * @param value Value in use
+     */
+    public void raiseSequence(long value) {
+        sequence = Math.max(sequence, value);
+    }
+
+    /**
+     * @return The position in the mutation log of the last mutation held by the partitions, {@code 0} if none
+     */
+    public long getLogPosition() {
+        return logPosition;
+    }
+
+    public void setLogPosition(long logPosition) {
+        this.logPosition = logPosition;
+    }
+
+    /**
+     * @return {@code true} if the partitions were not written since the manifest was saved, so that it can be trusted
+     * without checking the fingerprints of the partitions
+     */
+    public boolean isClean() {
+        return clean;
+    }
+
+    public void setClean(boolean clean) {
+        this.clean = clean;
+    }
+
+    /**
+     * @return Number of physical partitions, including the free ones
+     */
+    public int getPartitionsCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @return Number of partitions in the directory
+     */
+    public int getLogicalCount() {
+        return directory.size();
+    }
+
+    public int getPhysicalIndex(int logicalIndex) {
+        return directory.get(logicalIndex);
+    }
+
+    /**
+     * @param partitionIndex Physical index
+     *
+     * @return The logical index of the partition, or {@code -1} if it is free
+     */
+    public int getLogicalIndex(int partitionIndex) {
+        if (logicalBuffer == null) {
+            logicalBuffer = new int[partitions.size()];
+            Arrays.fill(logicalBuffer, -1);
+            for (int i = 0; i < directory.size(); i++) {
+                logicalBuffer[directory.get(i)] = i;
+            }
+        }
+
+        return partitionIndex < logicalBuffer.length ? logicalBuffer[partitionIndex] : -1;
+    }
+
+    /**
+     * @return The physical indexes of the partitions in logical order
+     */
+    public int[] getDirectory() {
+        return directory.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return The lowest physical index not used by the directory
+     */
+    public int getFreePartition() {
+        for (int i = 0; i < partitions.size(); i++) {
+            if (getLogicalIndex(i) < 0) {
+                return i;
+            }
+        }
+
+        return partitions.size();
+    }
+
+    public void insertLogical(int logicalIndex, int partitionIndex) {
+        if (getLogicalIndex(partitionIndex) >= 0) {
+            throw new IllegalArgumentException("Partition already in directory: " + partitionIndex);
+        }
+
+        while (partitions.size() <= partitionIndex) {
+            partitions.add(new Entry(0, 0L, 0L, 0L));
+        }
+        directory.add(logicalIndex, partitionIndex);
+        invalidate();
+    }
+
+    /**
+     * Point a logical index to another physical partition, the previous one becomes free.
+     *
+     * @param logicalIndex   Logical index
+     * @param partitionIndex New physical index
+     */
+    public void replaceLogical(int logicalIndex, int partitionIndex) {
+        if (getLogicalIndex(partitionIndex) >= 0) {
+            throw new IllegalArgumentException("Partition already in directory: " + partitionIndex);
+        }
+
+        while (partitions.size() <= partitionIndex) {
+            partitions.add(new Entry(0, 0L, 0L, 0L));
+        }
+        directory.set(logicalIndex, partitionIndex);
+        invalidate();
+    }
+
+    public void removeLogical(int logicalIndex) {
+        directory.remove(logicalIndex);
+        invalidate();
+    }
+
+    /**
+     * Use the physical order of the first partitions as logical order.
+     *
+     * @param partitionsCount Number of partitions in the directory
+     */
+    public void resetDirectory(int partitionsCount) {
+        directory.clear();
+        for (int i = 0; i < partitionsCount; i++) {
+            directory.add(i);
+        }
+        invalidate();
+    }
+
+    public int getRowCount(int partitionIndex) {
+        return entry(partitionIndex).rowCount;
+    }
+
+    public long getMinKey(int partitionIndex) {
+        return entry(partitionIndex).minKey;
+    }
+
+    public long getMaxKey(int partitionIndex) {
+        return entry(partitionIndex).maxKey;
+    }
+
+    public long getFingerprint(int partitionIndex) {
+        return entry(partitionIndex).fingerprint;
+    }
+
+    public boolean isEmpty(int partitionIndex) {
+        return entry(partitionIndex).rowCount == 0;
+    }
+
+    /**
+     * Statistics of a partition, as of its last update. Removed rows may still be accounted for, the statistics only
+     * exclude values that are certainly absent. The sort key column has a zone map made of the partition bounds.
+     *
+     * @param partitionIndex Physical index
+     * @param sortKey        Sort key column of the table
+     *
+     * @return The statistics of the partition
+     */
+    public PartitionStatistics getStatistics(int partitionIndex, int sortKey) {
+        Entry entry = entry(partitionIndex);
+
+        return new PartitionStatistics() {
+            @Override
+            public ZoneMap getZoneMap(int column) {
+                if (column == sortKey) {
+                    return entry.rowCount == 0 ?
+                            ZoneMap.empty() :
+                            ZoneMap.ofRange(entry.minKey, entry.maxKey);
+                }
+
+                int c = indexOf(zoneMapColumns, column);
+                return c < 0 || entry.zoneMaps.length == 0 ? null : entry.zoneMaps[c];
+            }
+
+            @Override
+            public BloomFilter getBloomFilter(int column) {
+                int c = indexOf(bloomFilterColumns, column);
+                return c < 0 || entry.bloomFilters.length == 0 ? null : entry.bloomFilters[c];
+            }
+        };
+    }
+
+    public void update(int partitionIndex, List<Object[]> partition, int sortKey, long fingerprint) {
+        Entry entry = partition.isEmpty() ?
+                new Entry(0, 0L, 0L, fingerprint) :
+                new Entry(partition.size(),
+                        (long) partition.get(0)[sortKey],
+                        (long) partition.get(partition.size() - 1)[sortKey],
+                        fingerprint);
+
+        entry.zoneMaps = new ZoneMap[zoneMapColumns.length];
+        for (int c = 0; c < zoneMapColumns.length; c++) {
+            entry.zoneMaps[c] = ZoneMap.of(partition, zoneMapColumns[c]);
+        }
+        entry.bloomFilters = new BloomFilter[bloomFilterColumns.length];
+        for (int c = 0; c < bloomFilterColumns.length; c++) {
+            entry.bloomFilters[c] = BloomFilter.of(partition, bloomFilterColumns[c]);
+        }
+
+        if (sequenceColumn == sortKey && !partition.isEmpty()) {
+            raiseSequence(entry.maxKey);
+        } else if (sequenceColumn >= 0) {
+            for (Object[] row : partition) {
+                Object value = row[sequenceColumn];
+                if (value != null) {
+                    raiseSequence((long) value);
+                }
+            }
+        }
+
+        while (partitions.size() <= partitionIndex) {
+            partitions.add(new Entry(0, 0L, 0L, 0L));
+        }
+        partitions.set(partitionIndex, entry);
+        invalidate();
+    }
+
+    public void truncate(int partitionsCount) {
+        while (partitions.size() > partitionsCount) {
+            partitions.remove(partitions.size() - 1);
+        }
+        directory.removeIf(i -> i >= partitionsCount);
+        invalidate();
+    }
+
+    /**
+     * Locate the partition that should hold the given sort key value.
+     *
+     * @param value Sort key value
+     *
+     * @return The logical index of the right-most partition whose bounds contain the value. Otherwise, if the value
+     * falls between two partitions, {@code -p - 2} where {@code p} is the logical index of the partition preceding the
+     * value, or {@code -1} if the value precedes all partitions
+     */
+    public int searchPartitionFor(long value) {
+        int[] nonEmpty = getNonEmpty();
+
+        int low = 0;
+        int high = nonEmpty.length - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+
+            if (partitions.get(directory.get(nonEmpty[mid])).minKey <= value) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found < 0) {
+            return -1;
+        }
+
+        int logicalIndex = nonEmpty[found];
+        return value <= partitions.get(directory.get(logicalIndex)).maxKey ?
+                logicalIndex :
+                -logicalIndex - 2;
+    }
+
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(FORMAT_VERSION);
+        output.writeInt(partitions.size());
+        for (Entry entry : partitions) {
+            output.writeInt(entry.rowCount);
+            output.writeLong(entry.minKey);
+            output.writeLong(entry.maxKey);
+            output.writeLong(entry.fingerprint);
+        }
+
+        output.writeInt(directory.size());
+        for (int partitionIndex : directory) {
+            output.writeInt(partitionIndex);
+        }
+
+        writeColumns(output, zoneMapColumns);
+        writeColumns(output, bloomFilterColumns);
+        for (Entry entry : partitions) {
+            for (int c = 0; c < zoneMapColumns.length; c++) {
+                (c < entry.zoneMaps.length ? entry.zoneMaps[c] : ZoneMap.empty()).write(output);
+            }
+            for (int c = 0; c < bloomFilterColumns.length; c++) {
+                (c < entry.bloomFilters.length ? entry.bloomFilters[c] : BloomFilter.empty()).write(output);
+            }
+        }
+        output.writeInt(sequenceColumn);
+        output.writeLong(sequence);
+        output.writeLong(logPosition);
+        output.writeBoolean(clean);
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private int[] getNonEmpty() {
+        if (nonEmptyBuffer == null) {
+            nonEmptyBuffer = new int[directory.size()];
+
+            int count = 0;
+            for (int i = 0; i < directory.size(); i++) {
+                if (partitions.get(directory.get(i)).rowCount > 0) {
+                    nonEmptyBuffer[count++] = i;
+                }
+            }
+
+            int[] trimmed = new int[count];
+            System.arraycopy(nonEmptyBuffer, 0, trimmed, 0, count);
+            nonEmptyBuffer = trimmed;
+        }
+
+        return nonEmptyBuffer;
+    }
+
+    private void invalidate() {
+        nonEmptyBuffer = null;
+        logicalBuffer = null;
+    }
+
+    private Entry entry(int partitionIndex) {
+        return partitionIndex < partitions.size() ?
+                partitions.get(partitionIndex) :
+                new Entry(0, 0L, 0L, 0L);
+    }
+
+    private static int indexOf(int[] columns, int column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == column) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static class Entry {
+        private final int rowCount;
+        private final long minKey;
+        private final long maxKey;
+        private final long fingerprint;
+
+        private ZoneMap[] zoneMaps = new ZoneMap[0];
+        private BloomFilter[] bloomFilters = new BloomFilter[0];
+
+        Entry(int rowCount, long minKey, long maxKey, long fingerprint) {
+            this.rowCount = rowCount;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
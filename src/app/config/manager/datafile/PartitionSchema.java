@@ -0,0 +1,48 @@
+package app.config.manager.datafile;
+
+/**
+ * Typed description of the columns of a table, used to store partitions in primitive columns (see
+ * {@link ColumnarPartition}).
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PartitionSchema {
+
+    public enum ColumnType {
+        /**
+         * Non-null {@link Long}, stored in a {@code long[]}
+         */
+        LONG,
+        /**
+         * Non-null {@link Integer}, stored in an {@code int[]}
+         */
+        INT,
+        /**
+         * Non-null {@link Double}, stored in a {@code double[]}
+         */
+        DOUBLE,
+        /**
+         * Non-null {@link java.time.LocalDate}, stored as epoch day in a {@code long[]}
+         */
+        DATE,
+        /**
+         * Any other value, stored by reference
+         */
+        OBJECT
+    }
+
+    private final ColumnType[] types;
+
+    public PartitionSchema(ColumnType... types) {
+        this.types = types.clone();
+    }
+
+    public int getColumnsCount() {
+        return types.length;
+    }
+
+    public ColumnType getType(int column) {
+        return types[column];
+    }
+}
@@ -0,0 +1,150 @@
+package app.config.manager.datafile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the rows of a {@link ClusteredIndex}, in ascending sort key order. Splits happen on partition
+ * boundaries and partitions are only read when traversed, so that a parallel stream reads and decodes its partitions
+ * concurrently.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+class PartitionSpliterator implements Spliterator<Object[]> {
+
+    @FunctionalInterface
+    interface PartitionReader {
+        List<Object[]> read(int partitionIndex) throws IOException;
+
+        /**
+         * Called once a partition has been traversed.
+         *
+         * @param partitionIndex Physical index of the partition
+         */
+        default void release(int partitionIndex) {
+        }
+    }
+
+    private final PartitionReader reader;
+    private final int[] directory;
+    private final int[] sizes;
+
+    private int nextLogicalIndex;
+    private final int endLogicalIndex;
+
+    private List<Object[]> current;
+    private int currentLogicalIndex;
+    private int rowIndex;
+
+    /**
+     * @param reader    Reader of the physical partitions
+     * @param directory Physical indexes of the partitions, in logical order
+     * @param sizes     Exact row count of each partition, in logical order
+     */
+    PartitionSpliterator(PartitionReader reader, int[] directory, int[] sizes) {
+        this(reader, directory, sizes, 0, directory.length);
+    }
+
+    private PartitionSpliterator(PartitionReader reader, int[] directory, int[] sizes,
+                                 int nextLogicalIndex, int endLogicalIndex) {
+        this.reader = reader;
+        this.directory = directory;
+        this.sizes = sizes;
+        this.nextLogicalIndex = nextLogicalIndex;
+        this.endLogicalIndex = endLogicalIndex;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Object[]> action) {
+        while (current == null || rowIndex >= current.size()) {
+            if (current != null) {
+                release();
+            }
+            if (nextLogicalIndex >= endLogicalIndex) {
+                return false;
+            }
+
+            currentLogicalIndex = nextLogicalIndex;
+            current = read(nextLogicalIndex++);
+            rowIndex = 0;
+        }
+
+        action.accept(current.get(rowIndex++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Object[]> action) {
+        if (current != null) {
+            forEachRemainingRows(action);
+            release();
+        }
+
+        while (nextLogicalIndex < endLogicalIndex) {
+            currentLogicalIndex = nextLogicalIndex;
+            current = read(nextLogicalIndex++);
+            rowIndex = 0;
+            forEachRemainingRows(action);
+            release();
+        }
+    }
+
+    @Override
+    public Spliterator<Object[]> trySplit() {
+        int remaining = endLogicalIndex - nextLogicalIndex;
+        if (remaining == 0 || (remaining == 1 && current == null)) {
+            return null;
+        }
+
+        // The prefix takes the partition being traversed, if any
+        int middle = nextLogicalIndex + remaining / 2;
+        PartitionSpliterator prefix = new PartitionSpliterator(reader, directory, sizes, nextLogicalIndex, middle);
+        prefix.current = current;
+        prefix.currentLogicalIndex = currentLogicalIndex;
+        prefix.rowIndex = rowIndex;
+
+        current = null;
+        nextLogicalIndex = middle;
+
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = current == null ? 0 : current.size() - rowIndex;
+        for (int i = nextLogicalIndex; i < endLogicalIndex; i++) {
+            size += sizes[i];
+        }
+
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL;
+    }
+
+    private void forEachRemainingRows(Consumer<? super Object[]> action) {
+        int size = current.size();
+        while (rowIndex < size) {
+            action.accept(current.get(rowIndex++));
+        }
+    }
+
+    private void release() {
+        reader.release(directory[currentLogicalIndex]);
+        current = null;
+    }
+
+    private List<Object[]> read(int logicalIndex) {
+        try {
+            return reader.read(directory[logicalIndex]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
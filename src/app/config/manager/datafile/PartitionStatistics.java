@@ -0,0 +1,24 @@
+package app.config.manager.datafile;
+
+/**
+ * Statistics of the columns of a partition, used to skip partitions that cannot match a {@link ColumnPredicate}.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public interface PartitionStatistics {
+
+    /**
+     * @param column Index of the column
+     *
+     * @return The zone map of the column, or {@code null} if not maintained
+     */
+    ZoneMap getZoneMap(int column);
+
+    /**
+     * @param column Index of the column
+     *
+     * @return The Bloom filter of the column, or {@code null} if not maintained
+     */
+    BloomFilter getBloomFilter(int column);
+}
@@ -0,0 +1,58 @@
+package app.config.manager.datafile;
+
+import java.util.List;
+
+/**
+ * Read-only partition decoding its rows from their stored form on access, so that a binary search or a single row
+ * fetch only decodes the rows it touches. {@link ClusteredIndex} copies views before modifying them.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public interface PartitionView extends List<Object[]> {
+
+    /**
+     * @return The column stored as sort key, or {@code -1} if the sort key was not stored
+     */
+    int getSortKeyColumn();
+
+    /**
+     * @param row Index of the row
+     *
+     * @return The sort key value of the row, without decoding it
+     *
+     * @throws IllegalStateException If the sort key was not stored
+     */
+    long getSortKey(int row);
+
+    /**
+     * Binary search on the sort key column.
+     *
+     * @param value Sort key value
+     *
+     * @return The index of the last row with the given value, or {@code -i - 1} where {@code i} is the index at which
+     * the value would be inserted
+     *
+     * @throws IllegalStateException If the sort key was not stored
+     */
+    int search(long value);
+
+    /**
+     * @return A decoder of the rows of this view into column sinks, reusing its buffers across rows. Decoders must not
+     * be shared between threads.
+     */
+    RowDecoder newDecoder();
+
+    interface RowDecoder {
+
+        /**
+         * Decode a row without materializing it.
+         *
+         * @param row  Index of the row
+         * @param sink Receiver of the values of the row
+         *
+         * @throws java.io.UncheckedIOException If the row is corrupted
+         */
+        void decode(int row, ColumnSink sink);
+    }
+}
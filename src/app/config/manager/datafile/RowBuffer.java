@@ -0,0 +1,174 @@
+package app.config.manager.datafile;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Reusable row, filled by a {@link ColumnSink} decoder and read through typed getters. Numeric and date values are
+ * kept unboxed, so that scanning a table into the same buffer does not allocate per row. A value can be read with
+ * another type than the one it was given with, as long as the conversion is natural (e.g. an {@code int} read as a
+ * {@code long}, a boxed {@link Long} read as a {@code long}).
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class RowBuffer implements ColumnSink {
+
+    private static final byte LONG = 0;
+    private static final byte INT = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte DATE = 3;
+    private static final byte OBJECT = 4;
+
+    private final byte[] kinds;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+
+    public RowBuffer(int columnsCount) {
+        this.kinds = new byte[columnsCount];
+        this.longs = new long[columnsCount];
+        this.doubles = new double[columnsCount];
+        this.objects = new Object[columnsCount];
+
+        Arrays.fill(kinds, OBJECT);
+    }
+
+    public int getColumnsCount() {
+        return kinds.length;
+    }
+
+    @Override
+    public void setLong(int column, long value) {
+        kinds[column] = LONG;
+        longs[column] = value;
+        objects[column] = null;
+    }
+
+    @Override
+    public void setInt(int column, int value) {
+        kinds[column] = INT;
+        longs[column] = value;
+        objects[column] = null;
+    }
+
+    @Override
+    public void setDouble(int column, double value) {
+        kinds[column] = DOUBLE;
+        doubles[column] = value;
+        objects[column] = null;
+    }
+
+    @Override
+    public void setEpochDay(int column, long epochDay) {
+        kinds[column] = DATE;
+        longs[column] = epochDay;
+        objects[column] = null;
+    }
+
+    @Override
+    public void setObject(int column, Object value) {
+        kinds[column] = OBJECT;
+        objects[column] = value;
+    }
+
+    public boolean isNull(int column) {
+        return kinds[column] == OBJECT && objects[column] == null;
+    }
+
+    public long getLong(int column) {
+        switch (kinds[column]) {
+            case LONG:
+            case INT:
+                return longs[column];
+            case OBJECT:
+                return ((Number) nonNull(column)).longValue();
+            default:
+                throw mismatch(column, "long");
+        }
+    }
+
+    public int getInt(int column) {
+        switch (kinds[column]) {
+            case INT:
+                return (int) longs[column];
+            case OBJECT:
+                return ((Number) nonNull(column)).intValue();
+            default:
+                throw mismatch(column, "int");
+        }
+    }
+
+    public double getDouble(int column) {
+        switch (kinds[column]) {
+            case DOUBLE:
+                return doubles[column];
+            case OBJECT:
+                return ((Number) nonNull(column)).doubleValue();
+            default:
+                throw mismatch(column, "double");
+        }
+    }
+
+    public long getEpochDay(int column) {
+        switch (kinds[column]) {
+            case DATE:
+                return longs[column];
+            case OBJECT:
+                return ((LocalDate) nonNull(column)).toEpochDay();
+            default:
+                throw mismatch(column, "date");
+        }
+    }
+
+    public LocalDate getDate(int column) {
+        return kinds[column] == DATE ?
+                LocalDate.ofEpochDay(longs[column]) :
+                (LocalDate) getObject(column);
+    }
+
+    /**
+     * @param column Index of the column
+     *
+     * @return The value of the column, boxed if it was given unboxed
+     */
+    public Object getObject(int column) {
+        switch (kinds[column]) {
+            case LONG:
+                return longs[column];
+            case INT:
+                return (int) longs[column];
+            case DOUBLE:
+                return doubles[column];
+            case DATE:
+                return LocalDate.ofEpochDay(longs[column]);
+            default:
+                return objects[column];
+        }
+    }
+
+    /**
+     * @return A new row holding the values of this buffer
+     */
+    public Object[] toRow() {
+        Object[] row = new Object[kinds.length];
+        for (int c = 0; c < row.length; c++) {
+            row[c] = getObject(c);
+        }
+
+        return row;
+    }
+
+    private Object nonNull(int column) {
+        Object value = objects[column];
+        if (value == null) {
+            throw new NullPointerException("Column " + column + " is null");
+        }
+
+        return value;
+    }
+
+    private IllegalStateException mismatch(int column, String type) {
+        return new IllegalStateException("Column " + column + " cannot be read as " + type);
+    }
+}
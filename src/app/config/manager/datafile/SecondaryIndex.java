@@ -0,0 +1,244 @@
+package app.config.manager.datafile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * In-memory hash index mapping the values of some columns of a {@link ClusteredIndex} to the sort key values of the
+ * rows holding them. Several rows may share the same key, the sort key values are then all kept (duplicates
+ * included).
+ * <p>
+ * The index is persisted when its table is flushed and tagged with a checksum of the manifest saved then, so that an
+ * index that does not match the partitions anymore is detected and rebuilt. The index is thread-safe.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class SecondaryIndex {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+
+    private final String name;
+    private final int[] columns;
+    private final Map<List<Object>, List<Long>> entries = new HashMap<>();
+
+    public SecondaryIndex(String name, int... columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("No column to index");
+        }
+
+        this.name = name;
+        this.columns = columns.clone();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param key Values of the indexed columns, in the order they were given to the constructor
+     *
+     * @return The sort key values of all the rows holding the given key. Each value appears once per row.
+     */
+    public synchronized List<Long> lookup(Object... key) {
+        checkKey(key);
+
+        List<Long> values = entries.get(Arrays.asList(key));
+        return values == null ?
+                Collections.emptyList() :
+                Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    public synchronized boolean contains(Object... key) {
+        checkKey(key);
+        return entries.containsKey(Arrays.asList(key));
+    }
+
+    /**
+     * @return Number of distinct keys
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    boolean matches(Object[] row, Object[] key) {
+        for (int i = 0; i < columns.length; i++) {
+            if (!Objects.equals(row[columns[i]], key[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    synchronized void add(Object[] row, long sortValue) {
+        entries.computeIfAbsent(keyOf(row), k -> new ArrayList<>(1)).add(sortValue);
+    }
+
+    synchronized void remove(Object[] row, long sortValue) {
+        List<Object> key = keyOf(row);
+
+        List<Long> values = entries.get(key);
+        if (values != null) {
+            values.remove(Long.valueOf(sortValue));
+            if (values.isEmpty()) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    synchronized byte[] serialize(long manifestChecksum) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(FORMAT_VERSION);
+        output.writeLong(manifestChecksum);
+        output.writeInt(columns.length);
+        for (int column : columns) {
+            output.writeInt(column);
+        }
+
+        output.writeInt(entries.size());
+        for (Map.Entry<List<Object>, List<Long>> entry : entries.entrySet()) {
+            for (Object value : entry.getKey()) {
+                writeValue(value, output);
+            }
+
+            output.writeInt(entry.getValue().size());
+            for (long sortValue : entry.getValue()) {
+                output.writeLong(sortValue);
+            }
+        }
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replace the content of this index by the serialized one.
+     *
+     * @param data             Serialized index
+     * @param manifestChecksum Checksum of the current manifest of the table
+     *
+     * @return {@code false} if the data is not valid for this index or was computed for another manifest, the index is
+     * then left empty
+     */
+    synchronized boolean deserialize(byte[] data, long manifestChecksum) {
+        entries.clear();
+
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            if (input.readByte() != FORMAT_VERSION || input.readLong() != manifestChecksum) {
+                return false;
+            }
+
+            int columnsCount = input.readInt();
+            if (columnsCount != columns.length) {
+                return false;
+            }
+            for (int column : columns) {
+                if (input.readInt() != column) {
+                    return false;
+                }
+            }
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Object[] key = new Object[columns.length];
+                for (int k = 0; k < key.length; k++) {
+                    key[k] = readValue(input);
+                }
+
+                int valuesCount = input.readInt();
+                List<Long> values = new ArrayList<>(valuesCount);
+                for (int v = 0; v < valuesCount; v++) {
+                    values.add(input.readLong());
+                }
+
+                entries.put(Arrays.asList(key), values);
+            }
+
+            return true;
+        } catch (IOException e) {
+            entries.clear();
+            return false;
+        }
+    }
+
+    private List<Object> keyOf(Object[] row) {
+        Object[] key = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            key[i] = row[columns[i]];
+        }
+
+        return Arrays.asList(key);
+    }
+
+    private void checkKey(Object[] key) {
+        if (key.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " key values, got " + key.length);
+        }
+    }
+
+    private static void writeValue(Object value, DataOutput output) throws IOException {
+        if (value == null) {
+            output.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            output.writeUTF((String) value);
+        } else if (value instanceof Long) {
+            output.writeByte(TYPE_LONG);
+            output.writeLong((long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(TYPE_INT);
+            output.writeInt((int) value);
+        } else if (value instanceof Double) {
+            output.writeByte(TYPE_DOUBLE);
+            output.writeDouble((double) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(TYPE_BOOLEAN);
+            output.writeBoolean((boolean) value);
+        } else {
+            throw new IOException("Cannot index values of type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInput input) throws IOException {
+        byte type = input.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return input.readUTF();
+            case TYPE_LONG:
+                return input.readLong();
+            case TYPE_INT:
+                return input.readInt();
+            case TYPE_DOUBLE:
+                return input.readDouble();
+            case TYPE_BOOLEAN:
+                return input.readBoolean();
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+}
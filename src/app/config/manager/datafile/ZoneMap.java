@@ -0,0 +1,151 @@
+package app.config.manager.datafile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Minimum and maximum of the non-null values of a column in a partition. Integral numbers, floating point numbers and
+ * dates are supported, a column holding values of another type (or of several types) gives a zone map that cannot
+ * exclude anything.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public final class ZoneMap {
+
+    private static final byte NONE = 0;
+    private static final byte INTEGRAL = 1;
+    private static final byte FLOATING = 2;
+    private static final byte DATE = 3;
+    private static final byte UNSUPPORTED = -1;
+
+    private static final ZoneMap EMPTY = new ZoneMap(NONE, 0L, 0L);
+
+    /**
+     * @return The zone map of a column without non-null values
+     */
+    public static ZoneMap empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Zone map of sort key values, which are always integral.
+     *
+     * @param min Lowest value
+     * @param max Highest value
+     *
+     * @return The zone map
+     */
+    public static ZoneMap ofRange(long min, long max) {
+        return new ZoneMap(INTEGRAL, min, max);
+    }
+
+    public static ZoneMap of(List<Object[]> rows, int column) {
+        byte kind = NONE;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (Object[] row : rows) {
+            Object value = row[column];
+            if (value == null) {
+                continue;
+            }
+
+            byte valueKind = kindOf(value);
+            if (valueKind == UNSUPPORTED || (kind != NONE && valueKind != kind)) {
+                return new ZoneMap(UNSUPPORTED, 0L, 0L);
+            }
+
+            kind = valueKind;
+            long key = keyOf(value);
+            min = Math.min(min, key);
+            max = Math.max(max, key);
+        }
+
+        return kind == NONE ?
+                EMPTY :
+                new ZoneMap(kind, min, max);
+    }
+
+    public static ZoneMap read(DataInput input) throws IOException {
+        return new ZoneMap(input.readByte(), input.readLong(), input.readLong());
+    }
+
+    private final byte kind;
+    private final long min;
+    private final long max;
+
+    private ZoneMap(byte kind, long min, long max) {
+        this.kind = kind;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @param lower Lowest value searched (inclusive), or {@code null} if unbounded
+     * @param upper Highest value searched (inclusive), or {@code null} if unbounded
+     *
+     * @return {@code false} if no non-null value of the column lies within the bounds
+     */
+    public boolean mayContain(Object lower, Object upper) {
+        if (kind == NONE) {
+            return false;
+        } else if (kind == UNSUPPORTED) {
+            return true;
+        }
+
+        if (lower != null) {
+            if (kindOf(lower) != kind) {
+                return true;
+            }
+            if (keyOf(lower) > max) {
+                return false;
+            }
+        }
+        if (upper != null) {
+            if (kindOf(upper) != kind) {
+                return true;
+            }
+            if (keyOf(upper) < min) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeByte(kind);
+        output.writeLong(min);
+        output.writeLong(max);
+    }
+
+    private static byte kindOf(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return INTEGRAL;
+        } else if (value instanceof Double || value instanceof Float) {
+            return FLOATING;
+        } else if (value instanceof LocalDate) {
+            return DATE;
+        }
+
+        return UNSUPPORTED;
+    }
+
+    /**
+     * @return A long with the same order as the value
+     */
+    private static long keyOf(Object value) {
+        if (value instanceof LocalDate) {
+            return ((LocalDate) value).toEpochDay();
+        } else if (value instanceof Double || value instanceof Float) {
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+
+        return ((Number) value).longValue();
+    }
+}
@@ -0,0 +1,309 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.DataFile;
+import app.config.manager.storage.PartitionedStorage;
+import com.wx.util.log.LogHelper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage writing the partitions and metadata of a {@link DirectoryStorage} on a background thread.
+ * <p>
+ * Partitions are encoded by the caller, so that later modifications of the rows are not seen, and the encoded files are
+ * queued. Writes then return immediately: the caller encodes the next partition while the previous one is being synced
+ * to the disk. A write queued for a partition or a metadata entry replaces the one still waiting in the queue, if any,
+ * and keeps its place in the queue: writes are done in the order their keys were first queued, so that a partition
+ * rewritten after a metadata entry was queued is still written before it. Reads, and the count of partitions, see the
+ * queued writes. Since checksummed partitions are fingerprinted by their content, fingerprints are also
+ * known before the writes complete.
+ * <p>
+ * The completion of the writes is given by {@link #flush()}, and {@link #sync()} waits for it. A failed write is
+ * reported by the next call to {@link #sync()}, the partition is then left as after a crash.
+ * <p>
+ * Only the partition writes are taken off the caller thread: a {@code ClusteredIndex} still blocks in {@link #sync()}
+ * when it is flushed, since its manifest must not be saved before the partitions it references are durable. Commits of
+ * a {@link WriteAheadLog} are synced by the committing thread as well.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class AsyncStorage implements PartitionedStorage {
+
+    private static final Logger LOG = LogHelper.getLogger(AsyncStorage.class);
+
+    private final DirectoryStorage storage;
+
+    private final Map<String, PendingWrite> queue = new LinkedHashMap<>();
+    private PendingWrite inProgress;
+    private boolean writing;
+    private IOException failure;
+
+    public AsyncStorage(DirectoryStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public @NotNull AsyncPartition getPartition(int partitionIndex) {
+        return new AsyncPartition(partitionIndex, storage.getPartition(partitionIndex));
+    }
+
+    /**
+     * @return The count of partitions once the queued writes are done: partitions queued past the end of the storage
+     * are counted, the trailing partitions queued for deletion are not
+     */
+    @Override
+    public synchronized int getPartitionsCount() {
+        int count = storage.getPartitionsCount();
+        for (PendingWrite pending : queue.values()) {
+            if (pending.partitionIndex >= 0 && pending.content != null) {
+                count = Math.max(count, pending.partitionIndex + 1);
+            }
+        }
+
+        while (count > 0) {
+            PendingWrite pending = getPending(partitionKey(count - 1));
+            if (pending == null || pending.content != null) {
+                break;
+            }
+            count--;
+        }
+
+        return count;
+    }
+
+    @Override
+    public byte[] readMetadata(String name) throws IOException {
+        PendingWrite pending = getPending(metadataKey(name));
+        return pending != null ? pending.content : storage.readMetadata(name);
+    }
+
+    @Override
+    public void writeMetadata(String name, byte[] data) throws IOException {
+        byte[] content = data.clone();
+        enqueue(new PendingWrite(metadataKey(name), -1, null, content, () -> storage.writeMetadata(name, content)));
+    }
+
+    @Override
+    public long getPartitionFingerprint(int partitionIndex) {
+        PendingWrite pending = getPending(partitionKey(partitionIndex));
+        if (pending == null) {
+            return storage.getPartitionFingerprint(partitionIndex);
+        }
+
+        return pending.content == null ? 0L : DirectoryStorage.PartitionFile.getFingerprint(pending.content);
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    /**
+     * Verify the partitions as written so far, queued writes are not waited for.
+     */
+    @Override
+    public List<Integer> verifyPartitions() throws IOException {
+        return storage.verifyPartitions();
+    }
+
+    /**
+     * @return A future completed once all the writes queued so far are done, exceptionally if any of them failed
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        if (inProgress != null) {
+            futures.add(inProgress.future);
+        }
+        for (PendingWrite pending : queue.values()) {
+            futures.add(pending.future);
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    /**
+     * Wait for all the writes queued so far.
+     *
+     * @throws IOException The first failure since the last call
+     */
+    @Override
+    public void sync() throws IOException {
+        try {
+            flush().join();
+        } catch (CompletionException e) {
+            // Reported below
+        }
+
+        synchronized (this) {
+            IOException reported = failure;
+            failure = null;
+            if (reported != null) {
+                throw new IOException("Background write failed", reported);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(PendingWrite write) {
+        synchronized (this) {
+            // Replacing the value of a key keeps its place in the queue
+            PendingWrite replaced = queue.put(write.key, write);
+            if (replaced != null) {
+                write.future = replaced.future;
+            }
+
+            if (!writing) {
+                writing = true;
+
+                Thread thread = new Thread(this::writeQueued, "Storage writer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            return write.future;
+        }
+    }
+
+    private void writeQueued() {
+        while (true) {
+            PendingWrite write;
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    inProgress = null;
+                    writing = false;
+                    return;
+                }
+
+                write = queue.values().iterator().next();
+                queue.remove(write.key);
+                inProgress = write;
+            }
+
+            try {
+                write.action.run();
+                write.future.complete(null);
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Background write failed: " + write.key, e);
+
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                }
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * @return The last write queued for the key and not done yet, or {@code null}
+     */
+    private synchronized PendingWrite getPending(String key) {
+        PendingWrite pending = queue.get(key);
+        if (pending == null && inProgress != null && inProgress.key.equals(key)) {
+            pending = inProgress;
+        }
+
+        return pending;
+    }
+
+    private static String partitionKey(int partitionIndex) {
+        return "partition " + partitionIndex;
+    }
+
+    private static String metadataKey(String name) {
+        return "metadata " + name;
+    }
+
+    /**
+     * Partition whose writes are queued.
+     */
+    public class AsyncPartition implements DataFile {
+
+        private final int partitionIndex;
+        private final String key;
+        private final DirectoryStorage.PartitionFile file;
+
+        private AsyncPartition(int partitionIndex, DirectoryStorage.PartitionFile file) {
+            this.partitionIndex = partitionIndex;
+            this.key = partitionKey(partitionIndex);
+            this.file = file;
+        }
+
+        @Override
+        public @NotNull List<Object[]> read() throws IOException {
+            PendingWrite pending = getPending(key);
+            if (pending == null) {
+                return file.read();
+            }
+
+            return pending.rows == null ? new ArrayList<>() : new ArrayList<>(pending.rows);
+        }
+
+        @Override
+        public void write(List<Object[]> values) throws IOException {
+            writeAsync(values);
+        }
+
+        /**
+         * Encode the records and queue the write of the partition.
+         *
+         * @param values Records to write
+         *
+         * @return A future completed once the partition is written
+         *
+         * @throws IOException If the records cannot be encoded
+         */
+        public CompletableFuture<Void> writeAsync(List<Object[]> values) throws IOException {
+            byte[] content = file.encode(values);
+            return enqueue(new PendingWrite(key, partitionIndex, new ArrayList<>(values), content,
+                    () -> file.writeEncoded(content)));
+        }
+
+        @Override
+        public void append(List<Object[]> currentValues, Object[] newRow) throws IOException {
+            List<Object[]> newValues = new ArrayList<>(currentValues);
+            newValues.add(newRow);
+            writeAsync(newValues);
+
+            currentValues.add(newRow);
+        }
+
+        @Override
+        public void delete() {
+            enqueue(new PendingWrite(key, partitionIndex, null, null, file::delete));
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private static class PendingWrite {
+        private final String key;
+        private final int partitionIndex;
+        private final List<Object[]> rows;
+        private final byte[] content;
+        private final Write action;
+        private CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * @param partitionIndex Index of the partition written, or -1 for a metadata entry
+         */
+        PendingWrite(String key, int partitionIndex, List<Object[]> rows, byte[] content, Write action) {
+            this.key = key;
+            this.partitionIndex = partitionIndex;
+            this.rows = rows;
+            this.content = content;
+            this.action = action;
+        }
+    }
+}
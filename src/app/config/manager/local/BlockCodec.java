@@ -0,0 +1,79 @@
+package app.config.manager.local;
+
+import java.io.IOException;
+
+/**
+ * Codec applied to the serialized records of a partition file. Each codec is identified by a byte stored in the header
+ * of the files, so that a directory may hold partitions written with different codecs.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public interface BlockCodec {
+
+    /**
+     * Records are stored as is
+     */
+    BlockCodec NONE = new BlockCodec() {
+        @Override
+        public byte getId() {
+            return 0;
+        }
+
+        @Override
+        public byte[] encode(byte[] data, int offset, int length) {
+            byte[] encoded = new byte[length];
+            System.arraycopy(data, offset, encoded, 0, length);
+            return encoded;
+        }
+
+        @Override
+        public byte[] decode(byte[] data, int offset, int length, int decodedLength) throws IOException {
+            if (length != decodedLength) {
+                throw new IOException("Corrupted block, expected " + decodedLength + " bytes, got " + length);
+            }
+
+            return encode(data, offset, length);
+        }
+    };
+
+    BlockCodec DEFLATE = new DeflateCodec();
+
+    BlockCodec LZ = new LzCodec();
+
+    /**
+     * @return Identifier of this codec, stored in the partition files
+     */
+    byte getId();
+
+    byte[] encode(byte[] data, int offset, int length);
+
+    /**
+     * @param data          Encoded block
+     * @param offset        Offset of the block in {@code data}
+     * @param length        Length of the block
+     * @param decodedLength Length of the block once decoded, as stored alongside it
+     *
+     * @return The decoded block
+     *
+     * @throws IOException If the block is corrupted
+     */
+    byte[] decode(byte[] data, int offset, int length, int decodedLength) throws IOException;
+
+    /**
+     * @param id Identifier of a codec
+     *
+     * @return The codec with the given identifier
+     *
+     * @throws IOException If the identifier is unknown
+     */
+    static BlockCodec forId(int id) throws IOException {
+        for (BlockCodec codec : new BlockCodec[]{NONE, DEFLATE, LZ}) {
+            if (codec.getId() == id) {
+                return codec;
+            }
+        }
+
+        throw new IOException("Unknown codec: " + id);
+    }
+}
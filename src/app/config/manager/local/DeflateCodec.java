@@ -0,0 +1,79 @@
+package app.config.manager.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate codec, slower than {@link LzCodec} but with a better ratio.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class DeflateCodec implements BlockCodec {
+
+    private final int level;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                encoded.write(buffer, 0, n);
+            }
+
+            return encoded.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] data, int offset, int length, int decodedLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+
+            byte[] decoded = new byte[decodedLength];
+            int position = 0;
+            while (position < decodedLength) {
+                int n = inflater.inflate(decoded, position, decodedLength - position);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += n;
+            }
+
+            if (position != decodedLength) {
+                throw new IOException("Corrupted block, expected " + decodedLength + " bytes, got " + position);
+            }
+
+            return decoded;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
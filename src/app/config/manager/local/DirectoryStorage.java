@@ -2,14 +2,25 @@ package app.config.manager.local;
 
 import app.config.manager.datafile.DataFile;
 import app.config.manager.storage.PartitionedStorage;
-import com.wx.io.Accessor;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -19,32 +30,79 @@ import java.util.stream.Stream;
 public class DirectoryStorage implements PartitionedStorage {
 
     private static final String PARTITION_FILE_EXTENSION = ".part";
+    private static final String TMP_FILE_EXTENSION = ".tmp";
+    private static final String DICTIONARY = "strings";
 
     private final RecordSerializer serializer;
     private final File directory;
 
+    private final String tableName;
     private final String partitionFilePrefix;
+    private final boolean memoryMapped;
+    private final BlockCodec codec;
+    private final int sortKey;
+    private final StringDictionary dictionary;
     private int filesCountBuffer;
 
     public DirectoryStorage(RecordSerializer serializer, File directory, String partitionFilePrefix) {
+        this(serializer, directory, partitionFilePrefix, false);
+    }
+
+    public DirectoryStorage(RecordSerializer serializer, File directory, String partitionFilePrefix, boolean memoryMapped) {
+        this(serializer, directory, partitionFilePrefix, memoryMapped, BlockCodec.NONE);
+    }
+
+    public DirectoryStorage(RecordSerializer serializer, File directory, String partitionFilePrefix, boolean memoryMapped,
+                            BlockCodec codec) {
+        this(serializer, directory, partitionFilePrefix, memoryMapped, codec, -1);
+    }
+
+    public DirectoryStorage(RecordSerializer serializer, File directory, String partitionFilePrefix, boolean memoryMapped,
+                            BlockCodec codec, int sortKey) {
+        this(serializer, directory, partitionFilePrefix, memoryMapped, codec, sortKey, false);
+    }
+
+    /**
+     * @param serializer          Serializer of the records
+     * @param directory           Directory holding the partitions files
+     * @param partitionFilePrefix Prefix of the partitions files
+     * @param memoryMapped        If {@code true}, partitions are read by mapping the files in memory. Note that the
+     *                            mappings are only released once garbage collected, which prevents overwriting the
+     *                            files in the meantime on Windows.
+     * @param codec               Codec of the partitions written by this storage. Partitions written with another codec
+     *                            remain readable.
+     * @param sortKey             Column stored along the offsets of the records, so that partitions can be searched
+     *                            without decoding them, or {@code -1}
+     * @param dictionaryEncoded   If {@code true}, the strings of the partitions written by this storage are replaced by
+     *                            ids of a {@link StringDictionary} of the table
+     */
+    public DirectoryStorage(RecordSerializer serializer, File directory, String partitionFilePrefix, boolean memoryMapped,
+                            BlockCodec codec, int sortKey, boolean dictionaryEncoded) {
         this.serializer = serializer;
         this.directory = directory;
+        this.tableName = partitionFilePrefix;
         this.partitionFilePrefix = partitionFilePrefix + "_";
+        this.memoryMapped = memoryMapped;
+        this.codec = codec;
+        this.sortKey = sortKey;
+        this.dictionary = dictionaryEncoded ?
+                new StringDictionary(getMetadataFile(DICTIONARY)) :
+                null;
         filesCountBuffer = -1;
     }
 
     @Override
-    public @NotNull DataFile getPartition(int partitionIndex) {
+    public synchronized @NotNull PartitionFile getPartition(int partitionIndex) {
         if (partitionIndex < 0) {
             throw new IllegalArgumentException();
         }
 
         filesCountBuffer = Math.max(filesCountBuffer, partitionIndex + 1);
-        return new PartitionFile(getFile(partitionIndex), serializer);
+        return new PartitionFile(getFile(partitionIndex), serializer, memoryMapped, codec, sortKey, dictionary);
     }
 
     @Override
-    public int getPartitionsCount() {
+    public synchronized int getPartitionsCount() {
         if (filesCountBuffer < 0) {
 
             File[] files = directory.listFiles((dir, name) -> name.startsWith(partitionFilePrefix) && name.endsWith(PARTITION_FILE_EXTENSION));
@@ -60,6 +118,41 @@ public class DirectoryStorage implements PartitionedStorage {
         return filesCountBuffer;
     }
 
+    @Override
+    public byte[] readMetadata(String name) throws IOException {
+        File file = getMetadataFile(name);
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    @Override
+    public void writeMetadata(String name, byte[] data) throws IOException {
+        atomicWrite(getMetadataFile(name), data);
+    }
+
+    /**
+     * Checksummed partitions are fingerprinted by their length and checksum, so that the fingerprint of a partition is
+     * known as soon as its content is encoded. Legacy partitions are fingerprinted by their length and the checksum of
+     * their whole content.
+     */
+    @Override
+    public long getPartitionFingerprint(int partitionIndex) {
+        return new PartitionFile(getFile(partitionIndex), serializer).getFingerprint();
+    }
+
+    /**
+     * Verify the checksums of all the partitions files, in parallel.
+     *
+     * @return The indexes of the corrupted partitions
+     */
+    @Override
+    public List<Integer> verifyPartitions() {
+        return IntStream.range(0, getPartitionsCount())
+                .parallel()
+                .filter(p -> !new PartitionFile(getFile(p), serializer, memoryMapped, codec, sortKey, dictionary).verify())
+                .boxed()
+                .collect(Collectors.toList());
+    }
+
     private int getPartitionIndex(File file) {
         int p = partitionFilePrefix.length();
         int e = PARTITION_FILE_EXTENSION.length();
@@ -78,51 +171,309 @@ public class DirectoryStorage implements PartitionedStorage {
         return new File(directory, partitionFilePrefix + partitionIndex + PARTITION_FILE_EXTENSION);
     }
 
+    private File getMetadataFile(String name) {
+        return new File(directory, tableName + "." + name);
+    }
+
+    private static void atomicWrite(File file, byte[] data) throws IOException {
+        File tmpFile = new File(file.getPath() + TMP_FILE_EXTENSION);
+
+        try (FileOutputStream output = new FileOutputStream(tmpFile)) {
+            output.write(data);
+            output.getFD().sync();
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Partition file. Files start with a fixed header holding the number of records and the codec of the records block,
+     * and end with a CRC-32C of the whole content. The block is slotted: the serialized records are followed by the
+     * offset of each record and, optionally, by the sort key of each record, so that partitions are read as a {@link
+     * SlottedPartition} that only decodes the rows accessed. The strings of the records may be replaced by ids of a
+     * {@link StringDictionary}, as flagged in the header.
+     * <p>
+     * Files are never modified in place: a new version is written to a temporary file, synced and atomically moved
+     * over the previous one, so that a crash leaves either version. Partitions are read either by copying or by mapping
+     * the files in memory. Legacy files, holding the serialized records only, are still readable and are upgraded on
+     * their next write.
+     */
     public static class PartitionFile implements DataFile {
 
+        private static final int MAGIC = 0x89494650;
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 16;
+        private static final int FOOTER_SIZE = 4;
+        private static final int VERSION_OFFSET = 4;
+        private static final int FLAG_DICTIONARY = 1;
+
         private final File file;
         private final RecordSerializer serializer;
+        private final boolean memoryMapped;
+        private final BlockCodec codec;
+        private final int sortKey;
+        private final StringDictionary dictionary;
 
         public PartitionFile(File file, RecordSerializer serializer) {
+            this(file, serializer, false);
+        }
+
+        public PartitionFile(File file, RecordSerializer serializer, boolean memoryMapped) {
+            this(file, serializer, memoryMapped, BlockCodec.NONE);
+        }
+
+        public PartitionFile(File file, RecordSerializer serializer, boolean memoryMapped, BlockCodec codec) {
+            this(file, serializer, memoryMapped, codec, -1);
+        }
+
+        public PartitionFile(File file, RecordSerializer serializer, boolean memoryMapped, BlockCodec codec, int sortKey) {
+            this(file, serializer, memoryMapped, codec, sortKey, null);
+        }
+
+        public PartitionFile(File file, RecordSerializer serializer, boolean memoryMapped, BlockCodec codec, int sortKey,
+                             StringDictionary dictionary) {
             this.file = file;
             this.serializer = serializer;
+            this.memoryMapped = memoryMapped;
+            this.codec = codec;
+            this.sortKey = sortKey;
+            this.dictionary = dictionary;
         }
 
         @Override
         public @NotNull List<Object[]> read() throws IOException {
-            List<Object[]> read = new ArrayList<>();
+            if (!file.isFile()) {
+                return new ArrayList<>();
+            }
+
+            return readRecords(readContent());
+        }
+
+        @Override
+        public void write(List<Object[]> values) throws IOException {
+            writeEncoded(encode(values));
+        }
+
+        /**
+         * Serialize records into the content of a partition file. Strings added to the dictionary are only synced by
+         * {@link #writeEncoded(byte[])}.
+         *
+         * @param values Records to encode
+         *
+         * @return The content of the file
+         *
+         * @throws IOException
+         */
+        public byte[] encode(List<Object[]> values) throws IOException {
+            return encode(values, serializer, codec, sortKey, dictionary);
+        }
+
+        /**
+         * Serialize records into the content of a partition file, for storages keeping partitions elsewhere than in
+         * their own file.
+         *
+         * @param values     Records to encode
+         * @param serializer Serializer of the records
+         * @param codec      Codec of the records block, used if it makes the block smaller
+         * @param sortKey    Column stored along the offsets of the records, or {@code -1}
+         * @param dictionary Dictionary replacing the strings of the records, or {@code null}
+         *
+         * @return The content of the file
+         *
+         * @throws IOException
+         */
+        public static byte[] encode(List<Object[]> values, RecordSerializer serializer, BlockCodec codec, int sortKey,
+                                    StringDictionary dictionary) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            DataOutput records = dictionary == null ? output : dictionary.encoding(output);
+
+            int[] offsets = new int[values.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = output.size();
+                serializer.serialize(values.get(i), records);
+            }
+            for (int offset : offsets) {
+                output.writeInt(offset);
+            }
+            if (sortKey >= 0) {
+                for (Object[] record : values) {
+                    output.writeLong((long) record[sortKey]);
+                }
+            }
+            output.flush();
+
+            byte[] block = bytes.toByteArray();
+            int length = block.length;
+
+            BlockCodec blockCodec = BlockCodec.NONE;
+            if (codec != BlockCodec.NONE) {
+                byte[] encoded = codec.encode(block, 0, length);
+                if (encoded.length < length) {
+                    blockCodec = codec;
+                    block = encoded;
+                }
+            }
+
+            ByteBuffer content = ByteBuffer.allocate(HEADER_SIZE + block.length + FOOTER_SIZE);
+            content.putInt(MAGIC);
+            content.put((byte) VERSION);
+            content.putInt(values.size());
+            content.put(blockCodec.getId());
+            content.putInt(length);
+            content.put((byte) sortKey);
+            content.put((byte) (dictionary == null ? 0 : FLAG_DICTIONARY));
+            content.put(block);
+            content.putInt(checksum(content.array(), content.position()));
+
+            return content.array();
+        }
+
+        /**
+         * Read records from content given by {@link #encode(List)}, or read from a legacy file.
+         *
+         * @param content Content of a partition file
+         *
+         * @return The records
+         *
+         * @throws IOException If the content is corrupted
+         */
+        public List<Object[]> decode(ByteBuffer content) throws IOException {
+            return readRecords(content);
+        }
 
+        /**
+         * Read records from content given by {@link #encode(List, RecordSerializer, BlockCodec, int,
+         * StringDictionary)}.
+         *
+         * @param content    Content of a partition file
+         * @param serializer Serializer of the records
+         * @param dictionary Dictionary of the strings of the records, or {@code null}
+         * @param source     Name of the content in the error messages
+         *
+         * @return The records
+         *
+         * @throws IOException If the content is corrupted
+         */
+        public static List<Object[]> decode(ByteBuffer content, RecordSerializer serializer,
+                                            StringDictionary dictionary, String source) throws IOException {
+            int version = getVersion(content);
+            if (version < 0) {
+                return readLegacyRecords(serializer, new ByteBufferDataInput(content));
+            } else if (version != VERSION) {
+                throw new IOException("Unsupported partition version " + version + " in " + source);
+            }
+
+            checkFooter(content, source);
+            content.limit(content.limit() - FOOTER_SIZE);
+
+            content.position(VERSION_OFFSET + 1);
+            int count = content.getInt();
+            BlockCodec blockCodec = BlockCodec.forId(content.get());
+            int length = content.getInt();
+            int blockSortKey = content.get();
+            int flags = content.get();
+
+            StringDictionary blockDictionary = null;
+            if ((flags & FLAG_DICTIONARY) != 0) {
+                if (dictionary == null) {
+                    throw new IOException("Partition " + source + " requires a string dictionary");
+                }
+                blockDictionary = dictionary;
+            }
+
+            ByteBuffer block = content;
+            if (blockCodec != BlockCodec.NONE) {
+                byte[] encoded = new byte[content.remaining()];
+                content.get(encoded);
+                block = ByteBuffer.wrap(blockCodec.decode(encoded, 0, encoded.length, length));
+            } else if (content.remaining() != length) {
+                throw new IOException("Corrupted partition " + source + ", expected " + length + " bytes");
+            }
+
+            return new SlottedPartition(serializer, blockDictionary, block, count, blockSortKey);
+        }
+
+        /**
+         * Replace the file with content given by {@link #encode(List)}.
+         *
+         * @param content Content of the file
+         *
+         * @throws IOException
+         */
+        public void writeEncoded(byte[] content) throws IOException {
+            if (dictionary != null) {
+                dictionary.sync();
+            }
+            atomicWrite(file, content);
+        }
+
+        /**
+         * @return A value that changes whenever the file is modified, {@code 0} if the file does not exist or {@code -1}
+         * if it cannot be read
+         *
+         * @see #getFingerprint(byte[])
+         */
+        public long getFingerprint() {
             if (!file.isFile()) {
-                return read;
+                return 0L;
             }
 
-            try (Accessor accessor = new Accessor().setIn(file)) {
-                while (true) {
-                    read.add(serializer.deserialize(accessor));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size >= HEADER_SIZE + FOOTER_SIZE) {
+                    ByteBuffer header = ByteBuffer.allocate(VERSION_OFFSET + 1);
+                    ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                    readFully(channel, header, 0);
+                    readFully(channel, footer, size - FOOTER_SIZE);
+
+                    if (getVersion(header) == VERSION) {
+                        return fingerprint(size, footer.getInt(0));
+                    }
                 }
-            } catch (EOFException eof) {
-                // Do nothing
+
+                // Legacy files have no checksum, their whole content is hashed
+                ByteBuffer content = ByteBuffer.allocate((int) size);
+                readFully(channel, content, 0);
+                Crc32c crc = new Crc32c();
+                crc.update(content.array());
+                return fingerprint(size, (int) crc.getValue());
+            } catch (IOException e) {
+                return -1L;
             }
+        }
 
-            return read;
+        /**
+         * @param content Content given by {@link #encode(List)}
+         *
+         * @return The fingerprint the file will have once the content is written
+         */
+        public static long getFingerprint(byte[] content) {
+            return fingerprint(content.length, ByteBuffer.wrap(content).getInt(content.length - FOOTER_SIZE));
         }
 
-        @Override
-        public void write(List<Object[]> values) throws IOException {
-            try (Accessor accessor = new Accessor().setOut(file)) {
-                for (Object[] record : values) {
-                    serializer.serialize(record, accessor);
+        private static long fingerprint(long size, int checksum) {
+            return size << 32 ^ (checksum & 0xFFFFFFFFL);
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
                 }
             }
         }
 
+        /**
+         * Partitions are rewritten on append, as appending in place cannot be made atomic.
+         */
         @Override
         public void append(List<Object[]> currentValues, Object[] newRow) throws IOException {
-            try (Accessor accessor = new Accessor().setOut(file, true)) {
-                serializer.serialize(newRow, accessor);
+            List<Object[]> newValues = new ArrayList<>(currentValues);
+            newValues.add(newRow);
+            write(newValues);
 
-                currentValues.add(newRow);
-            }
+            currentValues.add(newRow);
         }
 
         @Override
@@ -131,5 +482,91 @@ public class DirectoryStorage implements PartitionedStorage {
                 file.delete();
             }
         }
+
+        /**
+         * Check the integrity of the file. Checksummed files are verified without decoding their records, legacy files
+         * are fully read.
+         *
+         * @return {@code false} if the file is corrupted
+         */
+        public boolean verify() {
+            if (!file.isFile()) {
+                return true;
+            }
+
+            try {
+                ByteBuffer buffer = readContent();
+                if (getVersion(buffer) == VERSION) {
+                    checkFooter(buffer, file.toString());
+                } else {
+                    readRecords(buffer);
+                }
+
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private ByteBuffer readContent() throws IOException {
+            if (!memoryMapped) {
+                return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        private List<Object[]> readRecords(ByteBuffer buffer) throws IOException {
+            return decode(buffer, serializer, dictionary, file.toString());
+        }
+
+        private static List<Object[]> readLegacyRecords(RecordSerializer serializer, DataInput input)
+                throws IOException {
+            List<Object[]> read = new ArrayList<>();
+
+            try {
+                while (true) {
+                    read.add(serializer.deserialize(input));
+                }
+            } catch (EOFException eof) {
+                // Do nothing
+            }
+
+            return read;
+        }
+
+        private static void checkFooter(ByteBuffer buffer, String source) throws IOException {
+            int contentLength = buffer.limit() - FOOTER_SIZE;
+            if (contentLength < HEADER_SIZE) {
+                throw new IOException("Truncated partition " + source);
+            }
+
+            ByteBuffer content = buffer.duplicate();
+            content.position(0);
+            content.limit(contentLength);
+
+            Crc32c crc = new Crc32c();
+            crc.update(content);
+            if ((int) crc.getValue() != buffer.getInt(contentLength)) {
+                throw new IOException("Checksum mismatch in partition " + source);
+            }
+        }
+
+        /**
+         * @return The version of the file, or {@code -1} if it has no header
+         */
+        private static int getVersion(ByteBuffer buffer) {
+            return buffer.limit() > VERSION_OFFSET && buffer.getInt(0) == MAGIC ?
+                    buffer.get(VERSION_OFFSET) :
+                    -1;
+        }
+
+        private static int checksum(byte[] data, int length) {
+            Crc32c crc = new Crc32c();
+            crc.update(data, 0, length);
+            return (int) crc.getValue();
+        }
     }
 }
@@ -3,6 +3,10 @@ package app.config.manager.local;
 
 import app.config.manager.ManagerInterface;
 import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.IndexIterator;
+import app.config.manager.datafile.PartitionCache;
+import app.config.manager.datafile.RowBuffer;
+import app.config.manager.datafile.SecondaryIndex;
 import app.model.client.Client;
 import app.model.client.PurchasedItem;
 import app.model.invoice.Invoice;
@@ -14,31 +18,41 @@ import com.wx.util.future.IoIterator;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.time.LocalDate;
 import java.util.*;
 import java.util.List;
 
+import static app.config.manager.datafile.ColumnPredicate.allOf;
+import static app.config.manager.datafile.ColumnPredicate.equalTo;
 import static app.config.manager.local.RelationalModelHelper.*;
 import static javafx.scene.input.KeyCode.J;
 
 /**
+ * Manager storing the model in relational tables. Mutations are serialized on the manager, while reads iterate over
+ * snapshots of the tables and may run concurrently with them.
+ *
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
  * @version 0.1 - created on 17.06.16.
  */
-public class LocalRelationalManager implements ManagerInterface {
+public class LocalRelationalManager implements ManagerInterface, Closeable {
 
     private static final int DEFAULT_PARTITION_SIZE = 100;
+    private static final String WAL_FILE = "journal.wal";
+    private static final String CLIENT_NAME_INDEX = "name";
+    private static final String ITEM_NAME_PRICE_INDEX = "name_price";
+    private static final String INVOICE_ID_INDEX = "id";
+    private static final String PURCHASE_CLIENT_INDEX = "client";
 
-    private static long idIndexedInsert(ClusteredIndex table, Object[] record) throws IOException {
+    private static long idIndexedInsert(Transaction transaction, ClusteredIndex table, Object[] record) throws IOException {
         assert record[0] == null;
-        assert table.getSortKey() == 0;
 
-        IoIterator<Object[]> it = table.iterator();
-        long newId = it.hasNext() ? (long) it.next()[0] + 1 : 1L;
+        long newId = table.nextSequenceValue();
         record[0] = newId;
 
-        table.insert(record);
+        transaction.insert(table, record);
 
         return newId;
     }
@@ -55,16 +69,47 @@ public class LocalRelationalManager implements ManagerInterface {
         return newId;
     }
 
+    /**
+     * Mapped files cannot be overwritten on Windows until the mapping is garbage collected.
+     */
+    private static final boolean MEMORY_MAPPED = !System.getProperty("os.name", "").toLowerCase().contains("win");
+
+    /**
+     * Partitions are only written on checkpoints, the fast codec keeps them cheap while shrinking the files to sync.
+     */
+    private static final BlockCodec PARTITION_CODEC = BlockCodec.LZ;
+
+    /**
+     * Invoices and purchases are scanned as a whole. Where their files are mapped, they are left uncompressed so that
+     * the records are decoded in place from the mapping, a compressed block would be copied out of it first.
+     */
+    private static final BlockCodec SCANNED_PARTITION_CODEC = MEMORY_MAPPED ? BlockCodec.NONE : PARTITION_CODEC;
+
     private final ClusteredIndex invoicesTable;
     private final ClusteredIndex clientsTable;
     private final ClusteredIndex itemsTable;
     private final ClusteredIndex purchasedItemsTable;
+    private final WriteAheadLog log;
 
-    public LocalRelationalManager(File dataDirectory) {
-        invoicesTable = new ClusteredIndex(new DirectoryStorage(INVOICE_SERIALIZER, dataDirectory, "invoices"), DEFAULT_PARTITION_SIZE, 2);
-        clientsTable = new ClusteredIndex(new DirectoryStorage(CLIENT_SERIALIZER, dataDirectory, "clients"), DEFAULT_PARTITION_SIZE, 0);
-        itemsTable = new ClusteredIndex(new DirectoryStorage(ITEM_SERIALIZER, dataDirectory, "items"), DEFAULT_PARTITION_SIZE, 0);
-        purchasedItemsTable = new ClusteredIndex(new DirectoryStorage(PURCHASE_SERIALIZER, dataDirectory, "purchases"), DEFAULT_PARTITION_SIZE, 0);
+    public LocalRelationalManager(File dataDirectory) throws IOException {
+        this(dataDirectory, new PartitionCache());
+    }
+
+    public LocalRelationalManager(File dataDirectory, PartitionCache cache) throws IOException {
+        invoicesTable = new ClusteredIndex(new AsyncStorage(new DirectoryStorage(INVOICE_SERIALIZER, dataDirectory, "invoices", MEMORY_MAPPED, SCANNED_PARTITION_CODEC, 2, true)), DEFAULT_PARTITION_SIZE, 2, cache, INVOICE_SCHEMA);
+        clientsTable = new ClusteredIndex(new AsyncStorage(new DirectoryStorage(CLIENT_SERIALIZER, dataDirectory, "clients", false, PARTITION_CODEC, 0, true)), DEFAULT_PARTITION_SIZE, 0, cache, CLIENT_SCHEMA);
+        itemsTable = new ClusteredIndex(new AsyncStorage(new DirectoryStorage(ITEM_SERIALIZER, dataDirectory, "items", false, PARTITION_CODEC, 0, true)), DEFAULT_PARTITION_SIZE, 0, cache, ITEM_SCHEMA);
+        purchasedItemsTable = new ClusteredIndex(new AsyncStorage(new DirectoryStorage(PURCHASE_SERIALIZER, dataDirectory, "purchases", MEMORY_MAPPED, SCANNED_PARTITION_CODEC, 0)), DEFAULT_PARTITION_SIZE, 0, cache, PURCHASE_SCHEMA);
+        addSecondaryIndexes();
+        setPartitionStatistics();
+        setSequences();
+
+        log = new WriteAheadLog(new File(dataDirectory, WAL_FILE));
+        log.register("invoices", INVOICE_SERIALIZER, invoicesTable);
+        log.register("clients", CLIENT_SERIALIZER, clientsTable);
+        log.register("items", ITEM_SERIALIZER, itemsTable);
+        log.register("purchases", PURCHASE_SERIALIZER, purchasedItemsTable);
+        log.recover();
     }
 
     public LocalRelationalManager(ClusteredIndex invoicesTable, ClusteredIndex clientsTable, ClusteredIndex itemsTable, ClusteredIndex purchasedItemsTable) {
@@ -72,110 +117,335 @@ public class LocalRelationalManager implements ManagerInterface {
         this.clientsTable = clientsTable;
         this.itemsTable = itemsTable;
         this.purchasedItemsTable = purchasedItemsTable;
+        this.log = null;
+        addSecondaryIndexes();
+        setPartitionStatistics();
+        setSequences();
     }
 
     @Override
     public IoIterator<Invoice> getAllInvoices() throws IOException {
-        return new InvoicesIterator();
+        return new InvoicesIterator(invoicesTable.iterator());
+    }
+
+    /**
+     * Get all the invoices dated within the given period, most recent first.
+     *
+     * @param from First day of the period
+     * @param to   Last day of the period
+     *
+     * @return The invoices of the period
+     *
+     * @throws IOException
+     */
+    public IoIterator<Invoice> getInvoices(LocalDate from, LocalDate to) throws IOException {
+        return new InvoicesIterator(invoicesTable.queryRange(from.toEpochDay(), to.toEpochDay(), true));
+    }
+
+    /**
+     * Get all the invoices having at least one purchase for the given client, most recent first.
+     *
+     * @param clientId Id of the client
+     *
+     * @return The invoices of the client
+     *
+     * @throws IOException
+     */
+    public IoIterator<Invoice> getInvoices(long clientId) throws IOException {
+        Set<Long> invoicesIds = new HashSet<>(purchasedItemsTable
+                .getSecondaryIndex(PURCHASE_CLIENT_INDEX)
+                .lookup(clientId));
+
+        List<Object[]> records = new ArrayList<>(invoicesIds.size());
+        for (long invoiceId : invoicesIds) {
+            records.add(invoicesTable.querySecondaryFirst(INVOICE_ID_INDEX, invoiceId)
+                    .orElseThrow(() -> new IOException("Invoice not found for id " + invoiceId)));
+        }
+        records.sort(Comparator.comparingLong((Object[] r) -> (long) r[2]).reversed());
+
+        Iterator<Object[]> it = records.iterator();
+        return new InvoicesIterator(new IndexIterator() {
+            @Override
+            public Object[] next() {
+                return it.next();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public void close() {
+            }
+        });
     }
 
-    public void garbageCollectUnreferenced() throws IOException {
-        IoIterator<Object[]> it = clientsTable.iterator();
-        while (it.hasNext()) {
-            Object clientId = it.next()[0];
+    public synchronized void garbageCollectUnreferenced() throws IOException {
+        SecondaryIndex purchasesByClient = purchasedItemsTable.getSecondaryIndex(PURCHASE_CLIENT_INDEX);
 
-            boolean isReferenced = purchasedItemsTable
-                    .queryFirst(p -> clientId.equals(p[1]))
-                    .isPresent();
+        beginBatch();
+        try (IndexIterator it = clientsTable.iterator()) {
+            while (it.hasNext()) {
+                Object clientId = it.next()[0];
 
-            if (!isReferenced) {
-                it.remove();
+                if (!purchasesByClient.contains(clientId)) {
+                    it.remove();
+                }
             }
+        } finally {
+            endBatch();
+        }
+
+        if (log == null) {
+            clientsTable.flush();
         }
     }
 
+    /**
+     * Remove the given clients if they are not referenced by any purchase anymore.
+     *
+     * @param clientsIds Ids of the clients to check
+     *
+     * @throws IOException
+     */
+    private void garbageCollectUnreferenced(Collection<Long> clientsIds) throws IOException {
+        SecondaryIndex purchasesByClient = purchasedItemsTable.getSecondaryIndex(PURCHASE_CLIENT_INDEX);
+
+        for (Long clientId : clientsIds) {
+            if (!purchasesByClient.contains(clientId)) {
+                clientsTable.removeIndexFirst(clientId, r -> true);
+            }
+        }
+    }
+
+    /**
+     * Suggest an invoice id from the sequence of the invoices table, without scanning the invoices. This only applies to
+     * the invoices stored by this manager: {@code Config.suggestId()} still scans the invoices of the legacy model
+     * manager used by the GUI.
+     *
+     * @return The id following the highest invoice id ever stored
+     *
+     * @throws IOException
+     */
+    public synchronized long suggestInvoiceId() throws IOException {
+        return invoicesTable.currentSequenceValue() + 1;
+    }
+
     @Override
-    public void addNewInvoice(Invoice invoice) throws IOException {
-        // TODO: 17.06.16 Begin transaction (Actually, maybe not to be done here...)
+    public synchronized void addNewInvoice(Invoice invoice) throws IOException {
+        addNewInvoices(Collections.singletonList(invoice));
+    }
+
+    /**
+     * Add several invoices at once, in a single transaction. Invoices and purchases are bulk loaded, so that every
+     * touched partition is written once for the whole collection. Nothing is added if any invoice is rejected.
+     *
+     * @param invoices Invoices to add
+     *
+     * @throws IOException
+     */
+    public synchronized void addNewInvoices(Collection<Invoice> invoices) throws IOException {
+        Set<Long> ids = new HashSet<>();
+        for (Invoice invoice : invoices) {
+            if (invoice.getId() <= 0) {
+                throw new IllegalArgumentException("Invoice has no id!");
+            }
+            if (!ids.add(invoice.getId())) {
+                throw new IllegalArgumentException("Duplicate invoice id: " + invoice.getId());
+            }
+            checkUniqueId(invoice.getId());
+        }
+
+        try (Transaction transaction = new Transaction(log)) {
+            for (Invoice invoice : invoices) {
+                transaction.insert(invoicesTable, getInvoiceRecord(invoice));
 
-        // TODO: 17.06.16 Somehow check the assumption that invoice.getId() is unique!
+                for (PurchasedItem purchase : invoice.getPurchases()) {
+                    Client client = purchase.getClient();
 
+                    getOrInsertClient(transaction, client);
+                    getOrInsertItem(transaction, purchase.getItem());
+
+                    transaction.insert(purchasedItemsTable, getPurchaseRecord(invoice, client, purchase));
+                }
+            }
+
+            transaction.commit();
+        }
+    }
+
+    public synchronized void removeInvoice(Invoice invoice) throws IOException {
         if (invoice.getId() <= 0) {
             throw new IllegalArgumentException("Invoice has no id!");
         }
 
-        invoicesTable.insert(getInvoiceRecord(invoice));
+        beginBatch();
+        try {
+            Optional<Object[]> record = invoicesTable.querySecondaryFirst(INVOICE_ID_INDEX, invoice.getId());
+            boolean removed = record.isPresent() &&
+                    invoicesTable.removeIndexFirst((long) record.get()[2], r -> (long) r[0] == invoice.getId());
+            if (!removed) {
+                throw new IllegalArgumentException(); // TODO: 24.06.16 Message
+            }
 
-        for (PurchasedItem purchase : invoice.getPurchases()) {
-            Client client = purchase.getClient();
-            Item item = purchase.getItem();
+            Set<Long> clientsIds = new HashSet<>();
+            try (IndexIterator it = purchasedItemsTable.queryIndex(invoice.getId())) {
+                while (it.hasNext()) {
+                    clientsIds.add((long) it.next()[1]);
+                    it.remove();
+                }
+            }
 
-            getOrInsertClient(client);
-            getOrInsertItem(item);
+            garbageCollectUnreferenced(clientsIds);
+        } finally {
+            endBatch();
+        }
 
-            purchasedItemsTable.insert(getPurchaseRecord(invoice, client, purchase));
+        if (log == null) {
+            flush();
+        }
+    }
 
+    /**
+     * Write all the pending modifications of the tables. With a log, modifications are already durable once committed
+     * and this checkpoints the log.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.checkpoint();
+        } else {
+            invoicesTable.flush();
+            clientsTable.flush();
+            itemsTable.flush();
+            purchasedItemsTable.flush();
         }
     }
 
-    public void removeInvoice(Invoice invoice) throws IOException {
-        if (invoice.getId() <= 0) {
-            throw new IllegalArgumentException("Invoice has no id!");
+    /**
+     * Check the integrity of the stored partitions of all the tables.
+     *
+     * @return The physical indexes of the corrupted partitions, by table name. Tables without corruption are omitted.
+     *
+     * @throws IOException
+     */
+    public Map<String, List<Integer>> verify() throws IOException {
+        Map<String, List<Integer>> corrupted = new LinkedHashMap<>();
+        verify(corrupted, "invoices", invoicesTable);
+        verify(corrupted, "clients", clientsTable);
+        verify(corrupted, "items", itemsTable);
+        verify(corrupted, "purchases", purchasedItemsTable);
+
+        return corrupted;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
         }
+        invoicesTable.close();
+        clientsTable.close();
+        itemsTable.close();
+        purchasedItemsTable.close();
+    }
 
-        boolean removed = invoicesTable.removeFirst(r -> (long) r[0] == invoice.getId());
-        if (!removed) {
-            throw new IllegalArgumentException(); // TODO: 24.06.16 Message
+    private static void verify(Map<String, List<Integer>> corrupted, String name, ClusteredIndex table) throws IOException {
+        List<Integer> partitions = table.verifyPartitions();
+        if (!partitions.isEmpty()) {
+            corrupted.put(name, partitions);
         }
+    }
 
-        IoIterator<Object[]> it = purchasedItemsTable.queryIndex(invoice.getId());
-        while (it.hasNext()) {
-            it.remove();
+    private void addSecondaryIndexes() {
+        clientsTable.addSecondaryIndex(CLIENT_NAME_INDEX, 1);
+        itemsTable.addSecondaryIndex(ITEM_NAME_PRICE_INDEX, 1, 2);
+        invoicesTable.addSecondaryIndex(INVOICE_ID_INDEX, 0);
+        purchasedItemsTable.addSecondaryIndex(PURCHASE_CLIENT_INDEX, 1);
+    }
+
+    private void setPartitionStatistics() {
+        invoicesTable.setPartitionStatistics(new int[]{0}, new int[0]);
+        purchasedItemsTable.setPartitionStatistics(new int[0], new int[]{1, 2});
+    }
+
+    private void setSequences() {
+        invoicesTable.setSequence(0);
+        clientsTable.setSequence(0);
+        itemsTable.setSequence(0);
+    }
+
+    /**
+     * Invoices ids are given by the user, check that the id is not used yet without scanning the table.
+     */
+    private void checkUniqueId(long invoiceId) throws IOException {
+        if (invoicesTable.getSecondaryIndex(INVOICE_ID_INDEX).contains(invoiceId)) {
+            throw new IllegalArgumentException("Invoice id already in use: " + invoiceId);
+        }
+    }
+
+    private void beginBatch() {
+        if (log != null) {
+            log.beginBatch();
         }
+    }
 
-        garbageCollectUnreferenced();
-        // TODO: 24.06.16 Flush
+    private void endBatch() throws IOException {
+        if (log != null) {
+            log.endBatch();
+        }
     }
 
-    private void getOrInsertClient(Client client) throws IOException {
+    private void getOrInsertClient(Transaction transaction, Client client) throws IOException {
         if (client.getId() > 0) {
             return;
         }
 
         Optional<Object[]> existing = findClient(client.getName());
+        if (!existing.isPresent()) {
+            existing = transaction.findStaged(clientsTable, r -> Objects.equals(r[1], client.getName()));
+        }
 
         long id = existing.isPresent() ?
                 (long) existing.get()[0] :
-                idIndexedInsert(clientsTable, getClientRecord(client));
+                idIndexedInsert(transaction, clientsTable, getClientRecord(client));
 
         client.setId(id);
+        transaction.onRollback(() -> client.setId(0));
     }
 
-    private void getOrInsertItem(Item item) throws IOException {
+    private void getOrInsertItem(Transaction transaction, Item item) throws IOException {
         if (item.getId() > 0) {
             return;
         }
 
         Optional<Object[]> existing = findItem(item.getName(), item.getPrice());
+        if (!existing.isPresent()) {
+            existing = transaction.findStaged(itemsTable,
+                    r -> Objects.equals(r[1], item.getName()) && r[2].equals(item.getPrice()));
+        }
 
         long id = existing.isPresent() ?
                 (long) existing.get()[0] :
-                idIndexedInsert(itemsTable, getItemRecord(item));
+                idIndexedInsert(transaction, itemsTable, getItemRecord(item));
 
         item.setId(id);
+        transaction.onRollback(() -> item.setId(0));
     }
 
 
     private Optional<Object[]> findClient(String clientName) throws IOException {
-        return clientsTable.queryFirst(r -> clientName.equals(r[1]));
+        return clientsTable.querySecondaryFirst(CLIENT_NAME_INDEX, clientName);
     }
 
     private Optional<Object[]> findItem(String itemName, double itemPrice) throws IOException {
-        return itemsTable.queryFirst(r -> itemName.equals(r[1]) && itemPrice == (double) r[2]);
+        return itemsTable.querySecondaryFirst(ITEM_NAME_PRICE_INDEX, itemName, itemPrice);
     }
 
     private Optional<Object[]> findPurchase(long invoiceId, long clientId, long itemId) throws IOException {
-        return purchasedItemsTable.queryFirst(r -> invoiceId == (long) r[0] && clientId == (long) r[1] && itemId == (long) r[2]);
+        return purchasedItemsTable.queryFirst(allOf(equalTo(0, invoiceId), equalTo(1, clientId), equalTo(2, itemId)));
     }
 
 
@@ -210,16 +480,21 @@ public class LocalRelationalManager implements ManagerInterface {
         parent.add(panel);
     }
 
-    private class InvoicesIterator implements IoIterator<Invoice> {
+    /**
+     * Iterator decoding the invoices and purchases into reused buffers, only the returned models are allocated.
+     */
+    private class InvoicesIterator implements IoIterator<Invoice>, AutoCloseable {
 
-        private final IoIterator<Object[]> invoicesIterator;
+        private final IndexIterator invoicesIterator;
 
         private final Map<Long, Item> itemsBuffer;
+        private final RowBuffer invoiceRow = new RowBuffer(INVOICE_SCHEMA.getColumnsCount());
+        private final RowBuffer purchaseRow = new RowBuffer(PURCHASE_SCHEMA.getColumnsCount());
 
 
-        private InvoicesIterator() throws IOException {
-            invoicesIterator = invoicesTable.iterator();
-            itemsBuffer = new HashMap<>();
+        private InvoicesIterator(IndexIterator invoicesIterator) {
+            this.invoicesIterator = invoicesIterator;
+            this.itemsBuffer = new HashMap<>();
         }
 
         @Override
@@ -229,20 +504,26 @@ public class LocalRelationalManager implements ManagerInterface {
 
         @Override
         public Invoice next() throws IOException {
-            Object[] nextInvoice = invoicesIterator.next();
-            long invoiceId = (long) nextInvoice[0];
+            invoicesIterator.next(invoiceRow);
+            long invoiceId = invoiceRow.getLong(0);
             List<PurchasedItem> purchases = new ArrayList<>();
 
-            IoIterator<Object[]> it = purchasedItemsTable.queryIndex(invoiceId);
-            while (it.hasNext()) {
-                Object[] purchase = it.next();
-                Client client = loadClient((long) purchase[1]);
-                Item item = getItem((long) purchase[2]);
+            try (IndexIterator it = purchasedItemsTable.queryIndex(invoiceId)) {
+                while (it.hasNext()) {
+                    it.next(purchaseRow);
+                    Client client = loadClient(purchaseRow.getLong(1));
+                    Item item = getItem(purchaseRow.getLong(2));
 
-                purchases.add(getPurchaseModel(client, item, purchase));
+                    purchases.add(getPurchaseModel(client, item, purchaseRow));
+                }
             }
 
-            return getInvoiceModel(purchases, nextInvoice);
+            return getInvoiceModel(purchases, invoiceRow);
+        }
+
+        @Override
+        public void close() {
+            invoicesIterator.close();
         }
 
         private Client loadClient(long clientId) throws IOException {
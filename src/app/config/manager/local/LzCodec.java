@@ -0,0 +1,156 @@
+package app.config.manager.local;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 codec, in the spirit of LZ4. The block is a sequence of tokens, each one made of a run of literals followed
+ * by a back-reference (2 bytes offset and a length) into the already decoded bytes. The last token only holds
+ * literals.
+ * <p>
+ * A token starts with a byte holding the literals count in its high nibble and the match length minus
+ * {@link #MIN_MATCH} in its low nibble. A nibble of 15 is followed by extra bytes added to it, until a byte lower than
+ * 255.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class LzCodec implements BlockCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    @Override
+    public byte getId() {
+        return 2;
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        byte[] encoded = new byte[length + length / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+
+        int end = offset + length;
+        int out = 0;
+        int anchor = offset;
+        int i = offset;
+        while (i <= end - MIN_MATCH) {
+            int h = hash(readInt(data, i));
+            int ref = table[h];
+            table[h] = i;
+
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(data, ref) != readInt(data, i)) {
+                i++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (i + matchLength < end && data[ref + matchLength] == data[i + matchLength]) {
+                matchLength++;
+            }
+
+            out = writeToken(data, anchor, i - anchor, matchLength - MIN_MATCH, encoded, out);
+            encoded[out++] = (byte) (i - ref);
+            encoded[out++] = (byte) ((i - ref) >>> 8);
+            out = writeLength(matchLength - MIN_MATCH, encoded, out);
+
+            i += matchLength;
+            anchor = i;
+        }
+
+        out = writeToken(data, anchor, end - anchor, 0, encoded, out);
+
+        return Arrays.copyOf(encoded, out);
+    }
+
+    @Override
+    public byte[] decode(byte[] data, int offset, int length, int decodedLength) throws IOException {
+        byte[] decoded = new byte[decodedLength];
+
+        int end = offset + length;
+        int in = offset;
+        int out = 0;
+        try {
+            while (out < decodedLength) {
+                int token = data[in++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = data[in++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (in + literals > end || out + literals > decodedLength) {
+                    throw new IOException("Corrupted block, literals out of bounds");
+                }
+
+                System.arraycopy(data, in, decoded, out, literals);
+                in += literals;
+                out += literals;
+                if (out == decodedLength) {
+                    break;
+                }
+
+                int matchOffset = (data[in++] & 0xFF) | (data[in++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = data[in++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                if (matchOffset == 0 || matchOffset > out || out + matchLength > decodedLength || in > end) {
+                    throw new IOException("Corrupted block, match out of bounds");
+                }
+
+                // Byte per byte, the match may overlap the bytes it produces
+                int ref = out - matchOffset;
+                for (int k = 0; k < matchLength; k++) {
+                    decoded[out++] = decoded[ref + k];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted block, unexpected end", e);
+        }
+
+        return decoded;
+    }
+
+    private static int writeToken(byte[] data, int literalsOffset, int literals, int matchLength, byte[] encoded, int out) {
+        encoded[out++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLength, 15));
+        out = writeLength(literals, encoded, out);
+
+        System.arraycopy(data, literalsOffset, encoded, out, literals);
+        return out + literals;
+    }
+
+    private static int writeLength(int length, byte[] encoded, int out) {
+        if (length < 15) {
+            return out;
+        }
+
+        length -= 15;
+        while (length >= 255) {
+            encoded[out++] = (byte) 255;
+            length -= 255;
+        }
+        encoded[out++] = (byte) length;
+
+        return out;
+    }
+
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,579 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.DataFile;
+import app.config.manager.storage.PartitionedStorage;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Storage holding all the partitions and metadata of a table in a single file of fixed-size pages, instead of a file
+ * per partition.
+ * <p>
+ * Each partition is encoded as the content of a {@link DirectoryStorage.PartitionFile} and stored in a chain of pages,
+ * every page starting with the index of the next one. The page directory maps the partitions and the metadata entries
+ * to their chain, it is itself stored in a chain. The first page holds two header slots, each pointing to the page
+ * directory of a generation. They are written alternately and checksummed.
+ * <p>
+ * Pages are never modified in place: a write stores the new chain and a new page directory in free pages, syncs them
+ * and then writes the header of the next generation over the oldest slot. A crash leaves either generation, the
+ * header of the previous one being still valid. Pages of the replaced chains are then added to the free-page list and
+ * reused by the next writes. The free-page list is rebuilt from the page directory when the file is opened, so that
+ * pages of interrupted writes are reclaimed.
+ * <p>
+ * Every write of a partition or a metadata entry is a generation of its own: it rewrites the whole page directory,
+ * whose size grows with the number of partitions, and syncs the file twice, once before and once after the header.
+ * The storage thus suits tables flushing a few partitions at a time. Tables writing many partitions per flush are
+ * better kept in a {@link DirectoryStorage}.
+ * <p>
+ * The file is accessed with positional reads and writes of a single channel, opened on first access.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PagedStorage implements PartitionedStorage, Closeable {
+
+    public static final String FILE_EXTENSION = ".pages";
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private static final int MAGIC = 0x50414745;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SLOTS = 2;
+    private static final int HEADER_SLOT_SIZE = 512;
+    private static final int HEADER_SIZE = 37;
+    private static final int FIRST_PAGE = 1;
+    private static final int LINK_SIZE = 4;
+    private static final int NO_PAGE = -1;
+
+    private final RecordSerializer serializer;
+    private final File file;
+    private final BlockCodec codec;
+    private final int sortKey;
+    private final int newPageSize;
+
+    private FileChannel channel;
+    private int pageSize;
+    private long generation;
+    private int pageCount;
+    private Chain directoryChain;
+    private final List<Chain> partitions = new ArrayList<>();
+    private final Map<String, Chain> metadata = new LinkedHashMap<>();
+    private final TreeSet<Integer> freePages = new TreeSet<>();
+    private int partitionsCountBuffer;
+
+    public PagedStorage(RecordSerializer serializer, File directory, String tableName) {
+        this(serializer, directory, tableName, BlockCodec.NONE, -1, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * @param serializer Serializer of the records
+     * @param directory  Directory holding the file of the table
+     * @param tableName  Name of the table, the file is named after it
+     * @param codec      Codec of the partitions written by this storage
+     * @param sortKey    Column stored along the offsets of the records, or {@code -1}
+     * @param pageSize   Size of the pages of a new file. Existing files keep their page size.
+     */
+    public PagedStorage(RecordSerializer serializer, File directory, String tableName, BlockCodec codec, int sortKey,
+                        int pageSize) {
+        if (pageSize < HEADER_SLOTS * HEADER_SLOT_SIZE) {
+            throw new IllegalArgumentException("Page size too small: " + pageSize);
+        }
+
+        this.serializer = serializer;
+        this.file = new File(directory, tableName + FILE_EXTENSION);
+        this.codec = codec;
+        this.sortKey = sortKey;
+        this.newPageSize = pageSize;
+    }
+
+    @Override
+    public synchronized @NotNull PagedPartition getPartition(int partitionIndex) {
+        if (partitionIndex < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        partitionsCountBuffer = Math.max(partitionsCountBuffer, partitionIndex + 1);
+        return new PagedPartition(partitionIndex);
+    }
+
+    @Override
+    public synchronized int getPartitionsCount() {
+        open();
+        return Math.max(partitionsCountBuffer, partitions.size());
+    }
+
+    @Override
+    public synchronized byte[] readMetadata(String name) throws IOException {
+        open();
+        Chain chain = metadata.get(name);
+        return chain == null ? null : readChain(chain).array();
+    }
+
+    @Override
+    public synchronized void writeMetadata(String name, byte[] data) throws IOException {
+        open();
+        Chain chain = writeChain(data, 0L);
+        Chain previous = metadata.put(name, chain);
+
+        try {
+            commit();
+        } catch (IOException | RuntimeException e) {
+            if (previous == null) {
+                metadata.remove(name);
+            } else {
+                metadata.put(name, previous);
+            }
+            release(chain);
+            throw e;
+        }
+        release(previous);
+    }
+
+    /**
+     * Partitions are fingerprinted by the length and checksum of their content, as stored in the page directory.
+     */
+    @Override
+    public synchronized long getPartitionFingerprint(int partitionIndex) {
+        open();
+        Chain chain = getChain(partitionIndex);
+        return chain == null ? 0L : chain.fingerprint;
+    }
+
+    /**
+     * Verify the checksums of all the partitions.
+     *
+     * @return The indexes of the corrupted partitions
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized List<Integer> verifyPartitions() throws IOException {
+        open();
+
+        List<Integer> corrupted = new ArrayList<>();
+        for (int p = 0; p < partitions.size(); p++) {
+            try {
+                read(p);
+            } catch (IOException e) {
+                corrupted.add(p);
+            }
+        }
+
+        return corrupted;
+    }
+
+    /**
+     * @return Number of pages of the file, including the header page
+     */
+    public synchronized int getPageCount() {
+        open();
+        return pageCount;
+    }
+
+    /**
+     * @return Number of pages that are not used by the current generation
+     */
+    public synchronized int getFreePageCount() {
+        open();
+        return freePages.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private synchronized List<Object[]> read(int partitionIndex) throws IOException {
+        open();
+        Chain chain = getChain(partitionIndex);
+        if (chain == null) {
+            return new ArrayList<>();
+        }
+
+        return DirectoryStorage.PartitionFile.decode(readChain(chain), serializer, null,
+                file + " #" + partitionIndex);
+    }
+
+    private synchronized void write(int partitionIndex, byte[] content) throws IOException {
+        open();
+        Chain chain = content == null ? null : writeChain(content, DirectoryStorage.PartitionFile.getFingerprint(content));
+        Chain previous = setChain(partitionIndex, chain);
+
+        try {
+            commit();
+        } catch (IOException | RuntimeException e) {
+            setChain(partitionIndex, previous);
+            release(chain);
+            throw e;
+        }
+        release(previous);
+    }
+
+    private Chain getChain(int partitionIndex) {
+        return partitionIndex < partitions.size() ? partitions.get(partitionIndex) : null;
+    }
+
+    private Chain setChain(int partitionIndex, Chain chain) {
+        while (partitions.size() <= partitionIndex) {
+            partitions.add(null);
+        }
+
+        Chain previous = partitions.set(partitionIndex, chain);
+        while (!partitions.isEmpty() && partitions.get(partitions.size() - 1) == null) {
+            partitions.remove(partitions.size() - 1);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Open the file and load the page directory of the last generation, if not done yet.
+     */
+    private void open() {
+        if (channel != null) {
+            return;
+        }
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            try {
+                load();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                channel = null;
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        partitions.clear();
+        metadata.clear();
+        freePages.clear();
+
+        ByteBuffer header = null;
+        for (int slot = 0; slot < HEADER_SLOTS; slot++) {
+            ByteBuffer candidate = readHeader(slot);
+            if (candidate != null && (header == null || candidate.getLong(9) > header.getLong(9))) {
+                header = candidate;
+            }
+        }
+
+        if (header == null) {
+            if (channel.size() > HEADER_SIZE) {
+                throw new IOException("No valid header in " + file);
+            }
+
+            // New file, or crash while writing its first header
+            pageSize = newPageSize;
+            generation = 0;
+            pageCount = FIRST_PAGE;
+            directoryChain = null;
+            writeHeader(generation, null);
+            return;
+        }
+
+        pageSize = header.getInt(5);
+        generation = header.getLong(9);
+        pageCount = header.getInt(17);
+        int directoryPage = header.getInt(21);
+        directoryChain = directoryPage == NO_PAGE ? null : loadChain(directoryPage, header.getInt(25), header.getInt(29));
+        if (directoryChain == null) {
+            return;
+        }
+
+        ByteBuffer directory = readChain(directoryChain);
+        if (checksum(directory, directory.limit()) != header.getInt(29)) {
+            throw new IOException("Checksum mismatch in page directory of " + file);
+        }
+
+        ByteBufferDataInput input = new ByteBufferDataInput(directory);
+        int partitionsCount = input.readInt();
+        for (int p = 0; p < partitionsCount; p++) {
+            int firstPage = input.readInt();
+            int length = input.readInt();
+            long fingerprint = input.readLong();
+            partitions.add(firstPage == NO_PAGE ? null : loadChain(firstPage, length, fingerprint));
+        }
+        int metadataCount = input.readInt();
+        for (int i = 0; i < metadataCount; i++) {
+            String name = input.readUTF();
+            int firstPage = input.readInt();
+            int length = input.readInt();
+            metadata.put(name, loadChain(firstPage, length, 0L));
+        }
+
+        for (int page = FIRST_PAGE; page < pageCount; page++) {
+            freePages.add(page);
+        }
+        removeUsed(directoryChain);
+        partitions.forEach(this::removeUsed);
+        metadata.values().forEach(this::removeUsed);
+    }
+
+    private void removeUsed(Chain chain) {
+        if (chain != null) {
+            for (int page : chain.pages) {
+                freePages.remove(page);
+            }
+        }
+    }
+
+    /**
+     * @return The header stored in the slot, or {@code null} if the slot is empty or corrupted
+     */
+    private ByteBuffer readHeader(int slot) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(header, (long) slot * HEADER_SLOT_SIZE) || header.getInt(0) != MAGIC || header.get(4) != VERSION ||
+                checksum(header, HEADER_SIZE - 4) != header.getInt(HEADER_SIZE - 4)) {
+            return null;
+        }
+
+        return header;
+    }
+
+    private void writeHeader(long newGeneration, Chain directory) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.putInt(pageSize);
+        header.putLong(newGeneration);
+        header.putInt(pageCount);
+        header.putInt(directory == null ? NO_PAGE : directory.firstPage());
+        header.putInt(directory == null ? 0 : directory.length);
+        header.putInt(directory == null ? 0 : (int) directory.fingerprint);
+        header.putInt(checksum(header, HEADER_SIZE - 4));
+        header.flip();
+
+        writeFully(header, (newGeneration % HEADER_SLOTS) * HEADER_SLOT_SIZE);
+        channel.force(false);
+    }
+
+    /**
+     * Write a new page directory and make it the current generation.
+     */
+    private void commit() throws IOException {
+        byte[] content = encodeDirectory();
+        Chain directory = writeChain(content, checksum(ByteBuffer.wrap(content), content.length));
+        try {
+            channel.force(false);
+            writeHeader(generation + 1, directory);
+        } catch (IOException | RuntimeException e) {
+            release(directory);
+            throw e;
+        }
+
+        generation++;
+        release(directoryChain);
+        directoryChain = directory;
+    }
+
+    private byte[] encodeDirectory() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeInt(partitions.size());
+        for (Chain chain : partitions) {
+            output.writeInt(chain == null ? NO_PAGE : chain.firstPage());
+            output.writeInt(chain == null ? 0 : chain.length);
+            output.writeLong(chain == null ? 0L : chain.fingerprint);
+        }
+        output.writeInt(metadata.size());
+        for (Map.Entry<String, Chain> entry : metadata.entrySet()) {
+            output.writeUTF(entry.getKey());
+            output.writeInt(entry.getValue().firstPage());
+            output.writeInt(entry.getValue().length);
+        }
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private int getPayloadSize() {
+        return pageSize - LINK_SIZE;
+    }
+
+    private int getPagesCount(int length) {
+        return Math.max(1, (length + getPayloadSize() - 1) / getPayloadSize());
+    }
+
+    /**
+     * Store content in free pages, growing the file if needed. The pages are not synced.
+     */
+    private Chain writeChain(byte[] content, long fingerprint) throws IOException {
+        int[] pages = new int[getPagesCount(content.length)];
+        for (int i = 0; i < pages.length; i++) {
+            Integer free = freePages.pollFirst();
+            pages[i] = free != null ? free : pageCount++;
+        }
+
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        for (int i = 0; i < pages.length; i++) {
+            int offset = i * getPayloadSize();
+            int length = Math.min(getPayloadSize(), content.length - offset);
+
+            // Pages are written whole, so that the file always ends on a page boundary
+            Arrays.fill(page.array(), (byte) 0);
+            page.clear();
+            page.putInt(i + 1 < pages.length ? pages[i + 1] : NO_PAGE);
+            page.put(content, offset, length);
+            page.rewind();
+            writeFully(page, (long) pages[i] * pageSize);
+        }
+
+        return new Chain(pages, content.length, fingerprint);
+    }
+
+    /**
+     * Follow the links of a chain stored in the file.
+     */
+    private Chain loadChain(int firstPage, int length, long fingerprint) throws IOException {
+        int[] pages = new int[getPagesCount(length)];
+        ByteBuffer link = ByteBuffer.allocate(LINK_SIZE);
+
+        int page = firstPage;
+        for (int i = 0; i < pages.length; i++) {
+            if (page < FIRST_PAGE || page >= pageCount) {
+                throw new IOException("Invalid page " + page + " in " + file);
+            }
+            pages[i] = page;
+
+            link.clear();
+            if (!readFully(link, (long) page * pageSize)) {
+                throw new EOFException("Truncated page " + page + " in " + file);
+            }
+            page = link.getInt(0);
+        }
+
+        return new Chain(pages, length, fingerprint);
+    }
+
+    private ByteBuffer readChain(Chain chain) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(chain.length);
+        for (int page : chain.pages) {
+            content.limit(Math.min(content.position() + getPayloadSize(), chain.length));
+            if (!readFully(content, (long) page * pageSize + LINK_SIZE)) {
+                throw new EOFException("Truncated page " + page + " in " + file);
+            }
+        }
+        content.flip();
+
+        return content;
+    }
+
+    private void release(Chain chain) {
+        if (chain != null) {
+            for (int page : chain.pages) {
+                freePages.add(page);
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if the end of the file is reached first
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        Crc32c crc = new Crc32c();
+        crc.update(buffer.array(), 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Pages holding an entry of the page directory. The page directory itself is a chain fingerprinted by its checksum.
+     */
+    private static class Chain {
+        private final int[] pages;
+        private final int length;
+        private final long fingerprint;
+
+        Chain(int[] pages, int length, long fingerprint) {
+            this.pages = pages;
+            this.length = length;
+            this.fingerprint = fingerprint;
+        }
+
+        int firstPage() {
+            return pages[0];
+        }
+    }
+
+    /**
+     * Partition stored in a chain of pages.
+     */
+    public class PagedPartition implements DataFile {
+
+        private final int partitionIndex;
+
+        private PagedPartition(int partitionIndex) {
+            this.partitionIndex = partitionIndex;
+        }
+
+        @Override
+        public @NotNull List<Object[]> read() throws IOException {
+            return PagedStorage.this.read(partitionIndex);
+        }
+
+        @Override
+        public void write(List<Object[]> values) throws IOException {
+            byte[] content = DirectoryStorage.PartitionFile.encode(values, serializer, codec, sortKey, null);
+            PagedStorage.this.write(partitionIndex, content);
+        }
+
+        /**
+         * Partitions are rewritten on append, as pages are never modified in place.
+         */
+        @Override
+        public void append(List<Object[]> currentValues, Object[] newRow) throws IOException {
+            List<Object[]> newValues = new ArrayList<>(currentValues);
+            newValues.add(newRow);
+            write(newValues);
+
+            currentValues.add(newRow);
+        }
+
+        @Override
+        public void delete() throws IOException {
+            PagedStorage.this.write(partitionIndex, null);
+        }
+    }
+}
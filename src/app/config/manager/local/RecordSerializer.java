@@ -1,5 +1,7 @@
 package app.config.manager.local;
 
+import app.config.manager.datafile.ColumnSink;
+
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -14,4 +16,17 @@ public interface RecordSerializer {
 
     Object[] deserialize(DataInput input) throws IOException;
 
+    /**
+     * Decode a record into a sink instead of materializing it. Serializers should override this method to give
+     * numeric and date values unboxed, the default implementation materializes the record.
+     *
+     * @param input Where to read the record
+     * @param sink  Receiver of the values of the record
+     *
+     * @throws IOException
+     */
+    default void deserialize(DataInput input, ColumnSink sink) throws IOException {
+        sink.setAll(deserialize(input));
+    }
+
 }
@@ -1,5 +1,8 @@
 package app.config.manager.local;
 
+import app.config.manager.datafile.ColumnSink;
+import app.config.manager.datafile.PartitionSchema;
+import app.config.manager.datafile.RowBuffer;
 import app.model.DateEnabled;
 import app.model.client.Client;
 import app.model.client.PurchasedItem;
@@ -13,6 +16,8 @@ import java.io.Serializable;
 import java.time.LocalDate;
 import java.util.List;
 
+import static app.config.manager.datafile.PartitionSchema.ColumnType.*;
+
 /**
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
  * @version 0.1 - created on 17.06.16.
@@ -24,10 +29,18 @@ public class RelationalModelHelper {
     public static final RecordSerializer ITEM_SERIALIZER = new ItemSerializer();
     public static final RecordSerializer PURCHASE_SERIALIZER = new PurchasedItemSerializer();
 
+    public static final PartitionSchema INVOICE_SCHEMA = new PartitionSchema(LONG, OBJECT, LONG, OBJECT);
+    public static final PartitionSchema CLIENT_SCHEMA = new PartitionSchema(LONG, OBJECT);
+    public static final PartitionSchema ITEM_SCHEMA = new PartitionSchema(LONG, OBJECT, DOUBLE, DOUBLE, OBJECT);
+    public static final PartitionSchema PURCHASE_SCHEMA = new PartitionSchema(LONG, LONG, LONG, INT, DATE, DATE, OBJECT);
+
+    // values() copies the array on every call
+    private static final DateEnabled[] DATE_ENABLED_VALUES = DateEnabled.values();
+
     //<editor-fold desc="Invoice" defaultstate="collapsed">
     public static Object[] getInvoiceRecord(Invoice invoice) {
         return new Object[] {
-                idOrNull(invoice.getId()),
+                invoice.getId(),
                 invoice.getAddress(),
                 invoice.getDate().toEpochDay(),
                 invoice.getPdfFileName()
@@ -44,25 +57,51 @@ public class RelationalModelHelper {
         return invoice;
     }
 
+    public static Invoice getInvoiceModel(List<PurchasedItem> purchases, RowBuffer record) {
+        Invoice invoice = new Invoice();
+        invoice.setId(record.getLong(0));
+        invoice.setAddress((String) record.getObject(1));
+        invoice.setDate(LocalDate.ofEpochDay(record.getLong(2)));
+        invoice.setPdfFileName((String) record.getObject(3));
+        invoice.getPurchases().setAll(purchases);
+        return invoice;
+    }
+
     private static class InvoiceSerializer extends NullableSerializer {
 
         @Override
         protected void serializeNotNullOnly(Object[] record, DataOutput output) throws IOException {
-            if (record[0] != null) output.writeLong((long) record[0]);
+            output.writeLong((long) record[0]);
             if (record[1] != null) output.writeUTF((String) record[1]);
             if (record[2] != null) output.writeLong((long) record[2]);
             if (record[3] != null) output.writeUTF((String) record[3]);
         }
 
         @Override
-        protected Object[] deserialize(DataInput input, boolean[] nullFields) throws IOException {
+        protected Object[] deserialize(DataInput input, int nullFields) throws IOException {
+            checkId(nullFields);
             return new Object[] {
-                    nullFields[0] ? null : input.readLong(),
-                    nullFields[1] ? null : input.readUTF(),
-                    nullFields[2] ? null : input.readLong(),
-                    nullFields[3] ? null : input.readUTF()
+                    input.readLong(),
+                    isNull(nullFields, 1) ? null : input.readUTF(),
+                    isNull(nullFields, 2) ? null : input.readLong(),
+                    isNull(nullFields, 3) ? null : input.readUTF()
             };
         }
+
+        @Override
+        protected void deserialize(DataInput input, int nullFields, ColumnSink sink) throws IOException {
+            checkId(nullFields);
+            sink.setLong(0, input.readLong());
+            readUTF(input, nullFields, 1, sink);
+            readLong(input, nullFields, 2, sink);
+            readUTF(input, nullFields, 3, sink);
+        }
+
+        private static void checkId(int nullFields) throws IOException {
+            if (isNull(nullFields, 0)) {
+                throw new IOException("Corrupted data, invoice without id");
+            }
+        }
     }
     //</editor-fold>
 
@@ -95,6 +134,12 @@ public class RelationalModelHelper {
                     input.readUTF()
             };
         }
+
+        @Override
+        public void deserialize(DataInput input, ColumnSink sink) throws IOException {
+            sink.setLong(0, input.readLong());
+            sink.setObject(1, input.readUTF());
+        }
     }
     //</editor-fold>
 
@@ -140,6 +185,15 @@ public class RelationalModelHelper {
                     dateEnabled(input.readByte())
             };
         }
+
+        @Override
+        public void deserialize(DataInput input, ColumnSink sink) throws IOException {
+            sink.setLong(0, input.readLong());
+            sink.setObject(1, input.readUTF());
+            sink.setDouble(2, input.readDouble());
+            sink.setDouble(3, input.readDouble());
+            sink.setObject(4, dateEnabled(input.readByte()));
+        }
     }
     //</editor-fold>
 
@@ -165,6 +219,15 @@ public class RelationalModelHelper {
         return purchase;
     }
 
+    public static PurchasedItem getPurchaseModel(Client client, Item item, RowBuffer record) {
+        PurchasedItem purchase = new PurchasedItem(client, item);
+        purchase.setItemCount(record.getInt(3));
+        purchase.setFromDate(record.getDate(4));
+        purchase.setToDate(record.getDate(5));
+        purchase.setDateEnabled((DateEnabled) record.getObject(6));
+        return purchase;
+    }
+
     private static class PurchasedItemSerializer implements RecordSerializer {
 
         @Override
@@ -190,6 +253,17 @@ public class RelationalModelHelper {
                     dateEnabled(input.readByte())
             };
         }
+
+        @Override
+        public void deserialize(DataInput input, ColumnSink sink) throws IOException {
+            sink.setLong(0, input.readLong());
+            sink.setLong(1, input.readLong());
+            sink.setLong(2, input.readLong());
+            sink.setInt(3, input.readInt());
+            sink.setEpochDay(4, input.readLong());
+            sink.setEpochDay(5, input.readLong());
+            sink.setObject(6, dateEnabled(input.readByte()));
+        }
     }
     //</editor-fold>
 
@@ -198,12 +272,11 @@ public class RelationalModelHelper {
     }
 
     private static DateEnabled dateEnabled(int ordinal) throws IOException {
-        DateEnabled[] values = DateEnabled.values();
-        if (ordinal < 0 || ordinal >= values.length) {
+        if (ordinal < 0 || ordinal >= DATE_ENABLED_VALUES.length) {
             throw new IOException("Corrupted data, invalid ordinal: " + ordinal);
         }
 
-        return values[ordinal];
+        return DATE_ENABLED_VALUES[ordinal];
     }
 
     private static abstract class NullableSerializer implements RecordSerializer {
@@ -226,18 +299,33 @@ public class RelationalModelHelper {
 
         @Override
         public final Object[] deserialize(DataInput input) throws IOException {
-            byte nullBitMap = input.readByte();
+            return deserialize(input, input.readUnsignedByte());
+        }
 
-            boolean[] isNull = new boolean[8];
-            for (int i = 0; i < 8; i++) {
-                isNull[i] = (nullBitMap & 0x1) == 1;
-                nullBitMap >>= 1;
-            }
+        @Override
+        public final void deserialize(DataInput input, ColumnSink sink) throws IOException {
+            deserialize(input, input.readUnsignedByte(), sink);
+        }
+
+        protected abstract Object[] deserialize(DataInput input, int nullFields) throws IOException;
 
-            return deserialize(input, isNull);
+        protected abstract void deserialize(DataInput input, int nullFields, ColumnSink sink) throws IOException;
+
+        protected static boolean isNull(int nullFields, int field) {
+            return (nullFields & 1 << field) != 0;
         }
 
-        protected abstract Object[] deserialize(DataInput input, boolean[] nullFields) throws IOException;
+        protected static void readLong(DataInput input, int nullFields, int field, ColumnSink sink) throws IOException {
+            if (isNull(nullFields, field)) {
+                sink.setObject(field, null);
+            } else {
+                sink.setLong(field, input.readLong());
+            }
+        }
+
+        protected static void readUTF(DataInput input, int nullFields, int field, ColumnSink sink) throws IOException {
+            sink.setObject(field, isNull(nullFields, field) ? null : input.readUTF());
+        }
 
     }
 }
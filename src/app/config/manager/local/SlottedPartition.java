@@ -0,0 +1,147 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ColumnSink;
+import app.config.manager.datafile.PartitionView;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * View over a slotted block of records: the serialized records, followed by the offset of each record and, optionally,
+ * the sort key of each record. Rows are decoded on access, the sort keys are read without decoding any row.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+class SlottedPartition extends AbstractList<Object[]> implements PartitionView, RandomAccess {
+
+    private final RecordSerializer serializer;
+    private final StringDictionary dictionary;
+    private final ByteBuffer block;
+    private final int count;
+    private final int sortKeyColumn;
+
+    private final int offsetsStart;
+    private final int keysStart;
+
+    /**
+     * @param serializer    Serializer of the records
+     * @param dictionary    Dictionary of the strings of the records, or {@code null} if they are stored as is
+     * @param block         The block, from its position to its limit
+     * @param count         Number of records in the block
+     * @param sortKeyColumn Column whose values are stored after the offsets, or {@code -1} if none
+     *
+     * @throws IOException If the block is too short for its tables
+     */
+    SlottedPartition(RecordSerializer serializer, StringDictionary dictionary, ByteBuffer block, int count,
+                     int sortKeyColumn) throws IOException {
+        this.serializer = serializer;
+        this.dictionary = dictionary;
+        this.block = block.slice();
+        this.count = count;
+        this.sortKeyColumn = sortKeyColumn;
+
+        this.keysStart = this.block.limit() - (sortKeyColumn >= 0 ? count * Long.BYTES : 0);
+        this.offsetsStart = keysStart - count * Integer.BYTES;
+        if (count < 0 || offsetsStart < 0) {
+            throw new IOException("Corrupted slotted block of " + count + " records");
+        }
+    }
+
+    @Override
+    public Object[] get(int index) {
+        ByteBufferDataInput input = new ByteBufferDataInput(block.duplicate(), dictionary);
+        try {
+            seek(input.getBuffer(), index);
+            return serializer.deserialize(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The decoder reuses a single input over the block, rows are decoded without allocating if the serializer
+     * supports it (see {@link RecordSerializer#deserialize(java.io.DataInput, ColumnSink)}).
+     */
+    @Override
+    public RowDecoder newDecoder() {
+        ByteBufferDataInput input = new ByteBufferDataInput(block.duplicate(), dictionary);
+
+        return (index, sink) -> {
+            try {
+                seek(input.getBuffer(), index);
+                serializer.deserialize(input, sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int getSortKeyColumn() {
+        return sortKeyColumn;
+    }
+
+    @Override
+    public long getSortKey(int row) {
+        checkIndex(row);
+        if (sortKeyColumn < 0) {
+            throw new IllegalStateException("Sort key not stored");
+        }
+
+        return block.getLong(keysStart + row * Long.BYTES);
+    }
+
+    @Override
+    public int search(long value) {
+        if (sortKeyColumn < 0) {
+            throw new IllegalStateException("Sort key not stored");
+        }
+
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (block.getLong(keysStart + mid * Long.BYTES) <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low > 0 && block.getLong(keysStart + (low - 1) * Long.BYTES) == value ? low - 1 : -low - 1;
+    }
+
+    /**
+     * Restrict the buffer to the bytes of a record.
+     */
+    private void seek(ByteBuffer buffer, int index) throws IOException {
+        checkIndex(index);
+
+        int start = block.getInt(offsetsStart + index * Integer.BYTES);
+        int end = index + 1 < count ?
+                block.getInt(offsetsStart + (index + 1) * Integer.BYTES) :
+                offsetsStart;
+
+        try {
+            buffer.limit(end);
+            buffer.position(start);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted offset for record " + index, e);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package app.config.manager.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-table dictionary of the strings written by the serializers. Records hold the id of their strings instead of the
+ * strings themselves, and reading returns the same {@code String} instance for every occurrence of a value, so that
+ * loading a table allocates one string per distinct value.
+ * <p>
+ * The dictionary is stored in a file where the strings are appended in id order. New strings are only appended once
+ * {@link #sync()} is called, which must happen before any record referencing them is written. Strings are never
+ * removed.
+ * <p>
+ * Reads do not lock the dictionary: they look up an immutable snapshot of the synced strings, replaced on each sync.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class StringDictionary {
+
+    private final File file;
+
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private volatile String[] synced;
+
+    public StringDictionary(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the id of a string, adding it to the dictionary if needed.
+     *
+     * @param value The string
+     *
+     * @return Its id
+     *
+     * @throws IOException
+     */
+    public synchronized int getId(String value) throws IOException {
+        load();
+
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            values.add(value);
+            ids.put(value, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * @param id Id of a string
+     *
+     * @return The shared instance of the string
+     *
+     * @throws IOException
+     */
+    public String getValue(int id) throws IOException {
+        String[] synced = this.synced;
+        if (synced == null) {
+            synchronized (this) {
+                load();
+                synced = this.synced;
+            }
+        }
+
+        if (id < 0 || id >= synced.length) {
+            throw new IOException("Corrupted data, unknown string id " + id + " in " + file);
+        }
+
+        return synced[id];
+    }
+
+    /**
+     * Append the strings added since the last call to the file, and sync it.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        load();
+        if (synced.length == values.size()) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (String value : values.subList(synced.length, values.size())) {
+            output.writeUTF(value);
+        }
+        output.flush();
+
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            stream.write(bytes.toByteArray());
+            stream.getFD().sync();
+        }
+        synced = values.toArray(new String[0]);
+    }
+
+    /**
+     * Write the id of a string, as a variable length integer.
+     *
+     * @param value  The string
+     * @param output Where to write its id
+     *
+     * @throws IOException
+     */
+    public void write(String value, DataOutput output) throws IOException {
+        int id = getId(value);
+        while ((id & ~0x7F) != 0) {
+            output.writeByte((id & 0x7F) | 0x80);
+            id >>>= 7;
+        }
+        output.writeByte(id);
+    }
+
+    /**
+     * Read a string written with {@link #write(String, DataOutput)}.
+     *
+     * @param input Where to read its id
+     *
+     * @return The shared instance of the string
+     *
+     * @throws IOException
+     */
+    public String read(DataInput input) throws IOException {
+        int id = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("Corrupted data, invalid string id");
+            }
+
+            byte b = input.readByte();
+            id |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return getValue(id);
+            }
+        }
+    }
+
+    /**
+     * @param output Output to wrap
+     *
+     * @return An output writing the strings given to {@link DataOutput#writeUTF(String)} as ids of this dictionary
+     */
+    public DataOutput encoding(DataOutput output) {
+        return new EncodingOutput(output);
+    }
+
+    /**
+     * Read the file on first use. A string partially appended by an interrupted sync is discarded.
+     */
+    private void load() throws IOException {
+        if (synced != null) {
+            return;
+        }
+
+        if (file.isFile()) {
+            ByteBufferDataInput input = new ByteBufferDataInput(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            ByteBuffer buffer = input.getBuffer();
+
+            int validLength = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    String value = input.readUTF();
+                    ids.put(value, values.size());
+                    values.add(value);
+                    validLength = buffer.position();
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+        }
+
+        synced = values.toArray(new String[0]);
+    }
+
+    private class EncodingOutput implements DataOutput {
+
+        private final DataOutput output;
+
+        EncodingOutput(DataOutput output) {
+            this.output = output;
+        }
+
+        @Override
+        public void writeUTF(String s) throws IOException {
+            StringDictionary.this.write(s, output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+        }
+
+        @Override
+        public void writeBoolean(boolean v) throws IOException {
+            output.writeBoolean(v);
+        }
+
+        @Override
+        public void writeByte(int v) throws IOException {
+            output.writeByte(v);
+        }
+
+        @Override
+        public void writeShort(int v) throws IOException {
+            output.writeShort(v);
+        }
+
+        @Override
+        public void writeChar(int v) throws IOException {
+            output.writeChar(v);
+        }
+
+        @Override
+        public void writeInt(int v) throws IOException {
+            output.writeInt(v);
+        }
+
+        @Override
+        public void writeLong(long v) throws IOException {
+            output.writeLong(v);
+        }
+
+        @Override
+        public void writeFloat(float v) throws IOException {
+            output.writeFloat(v);
+        }
+
+        @Override
+        public void writeDouble(double v) throws IOException {
+            output.writeDouble(v);
+        }
+
+        @Override
+        public void writeBytes(String s) throws IOException {
+            output.writeBytes(s);
+        }
+
+        @Override
+        public void writeChars(String s) throws IOException {
+            output.writeChars(s);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Insertions spanning several tables, applied all together or not at all.
+ * <p>
+ * Rows are staged in memory until {@link #commit()}, which inserts them table by table as a single batch (see {@link
+ * ClusteredIndex#insertAll(Iterable)}), so that every partition touched by the transaction is written once. With a
+ * {@link WriteAheadLog}, the rows of all the tables are logged under one commit record. Closing a transaction that was
+ * not committed discards the staged rows and runs the rollback actions, the tables are then left untouched.
+ * <p>
+ * If applying the rows fails at commit time (an I/O error of the storage, or of the log when the commit record is
+ * written), the rows already inserted are removed again, table by table in reverse order, and the rollback actions are
+ * run. A table fails to insert its rows as a whole, so only the tables before it are undone. With a log, the batch is
+ * aborted, which reverts the rows it holds, and none of them are committed. A table whose storage keeps failing while
+ * it is undone is left as after a crash and must be reopened.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class Transaction implements Closeable {
+
+    private final WriteAheadLog log;
+    private final Map<ClusteredIndex, List<Object[]>> inserts = new LinkedHashMap<>();
+    private final List<Runnable> rollbackActions = new ArrayList<>();
+    private boolean finished;
+
+    /**
+     * @param log Log of the tables, or {@code null} if they have none
+     */
+    public Transaction(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Stage the insertion of a row.
+     *
+     * @param table Table receiving the row
+     * @param row   The row
+     */
+    public void insert(ClusteredIndex table, Object[] row) {
+        checkActive();
+        inserts.computeIfAbsent(table, t -> new ArrayList<>()).add(row);
+    }
+
+    /**
+     * Look for a row staged by this transaction. Staged rows are not visible to the queries of the table yet.
+     *
+     * @param table Table receiving the row
+     * @param query Condition on the row
+     *
+     * @return The first staged row of the table matching the query
+     */
+    public Optional<Object[]> findStaged(ClusteredIndex table, Predicate<Object[]> query) {
+        return inserts.getOrDefault(table, Collections.emptyList()).stream()
+                .filter(query)
+                .findFirst();
+    }
+
+    /**
+     * Register an action undoing a side effect of this transaction outside the tables, like an id given to a model
+     * object. Actions are run in reverse order on rollback.
+     *
+     * @param action The action
+     */
+    public void onRollback(Runnable action) {
+        checkActive();
+        rollbackActions.add(action);
+    }
+
+    /**
+     * Apply the staged rows. If a table fails to apply its rows, the tables are restored and the transaction is rolled
+     * back.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        checkActive();
+        finished = true;
+
+        boolean batchOpen = log != null;
+        if (batchOpen) {
+            log.beginBatch();
+        }
+
+        List<ClusteredIndex> applied = new ArrayList<>();
+        try {
+            for (Map.Entry<ClusteredIndex, List<Object[]>> entry : inserts.entrySet()) {
+                entry.getKey().insertAll(entry.getValue());
+                applied.add(entry.getKey());
+            }
+
+            if (batchOpen) {
+                // A batch whose commit fails is reverted by the log
+                batchOpen = false;
+                log.endBatch();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (log == null) {
+                undo(applied, e);
+            } else if (batchOpen) {
+                abortBatch(e);
+            }
+            runRollbackActions();
+            throw e;
+        }
+    }
+
+    /**
+     * Discard the staged rows.
+     */
+    public void rollback() {
+        checkActive();
+        finished = true;
+
+        inserts.clear();
+        runRollbackActions();
+    }
+
+    /**
+     * Roll back the transaction if it was not committed.
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            rollback();
+        }
+    }
+
+    private void abortBatch(Exception failure) {
+        try {
+            log.abortBatch();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Remove the rows inserted in tables without a log.
+     */
+    private void undo(List<ClusteredIndex> applied, Exception failure) {
+        for (int i = applied.size() - 1; i >= 0; i--) {
+            ClusteredIndex table = applied.get(i);
+            int sortKey = table.getSortKey();
+            try {
+                for (Object[] row : inserts.get(table)) {
+                    table.removeIndexFirst((long) row[sortKey], r -> Arrays.equals(r, row));
+                }
+            } catch (IOException | RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private void runRollbackActions() {
+        for (int i = rollbackActions.size() - 1; i >= 0; i--) {
+            rollbackActions.get(i).run();
+        }
+    }
+
+    private void checkActive() {
+        if (finished) {
+            throw new IllegalStateException("Transaction already finished");
+        }
+    }
+}
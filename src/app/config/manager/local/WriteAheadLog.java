@@ -0,0 +1,537 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.MutationLog;
+import com.wx.util.future.IoSupplier;
+import com.wx.util.log.LogHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log shared by the tables of a data directory.
+ * <p>
+ * Mutations are appended as compact records (position, table name and serialized row) and made durable by a commit
+ * record followed by a single fsync. Mutations issued between {@link #beginBatch()} and {@link #endBatch()} are
+ * committed together. Batches belong to the thread that began them: the records of a batch are buffered apart from
+ * those of the other threads, which commit or abort independently. The mutations of a batch that is aborted, or whose
+ * commit fails, are reverted in the tables. Modified partitions are only written when the log is checkpointed, which
+ * happens lazily on a background thread once the log grows over a threshold. On {@link #recover()}, committed records
+ * are replayed into the registered tables, in the order of their positions. A table skips the records at or before
+ * the position held by its manifest, which it already applied before a crash. Positions are not reset when the log is
+ * emptied: they keep increasing past the position of any table that appends to the log.
+ * <p>
+ * The log is thread-safe. Tables append to it while holding their own lock, a checkpoint locks all the tables before
+ * the log so that no mutation happens while the partitions are written. Checkpoints wait for the open batches to end,
+ * so that uncommitted mutations are never written to the partitions.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger LOG = LogHelper.getLogger(WriteAheadLog.class);
+
+    public static final long DEFAULT_CHECKPOINT_THRESHOLD = 1 << 20;
+
+    private static final byte INSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte COMMIT = 3;
+
+    private final File file;
+    private final long checkpointThreshold;
+    private final Map<String, TableLog> tables = new LinkedHashMap<>();
+
+    private final Map<Thread, Batch> batches = new HashMap<>();
+    private FileChannel channel;
+    private long nextPosition = 1L;
+
+    private boolean checkpointScheduled;
+    private boolean closed;
+
+    public WriteAheadLog(File file) {
+        this(file, DEFAULT_CHECKPOINT_THRESHOLD);
+    }
+
+    public WriteAheadLog(File file, long checkpointThreshold) {
+        this.file = file;
+        this.checkpointThreshold = checkpointThreshold;
+    }
+
+    /**
+     * Attach a table to this log.
+     *
+     * @param name       Unique name of the table within this log
+     * @param serializer Serializer for the rows of the table
+     * @param index      The table
+     */
+    public synchronized void register(String name, RecordSerializer serializer, ClusteredIndex index) {
+        if (tables.containsKey(name)) {
+            throw new IllegalArgumentException("Table already registered: " + name);
+        }
+
+        TableLog tableLog = new TableLog(name, serializer, index);
+        tables.put(name, tableLog);
+        index.setMutationLog(tableLog);
+    }
+
+    /**
+     * Replay all the committed records of the log into the registered tables and checkpoint them. Records that were
+     * not followed by a commit record are discarded.
+     *
+     * @throws IOException
+     */
+    public void recover() throws IOException {
+        List<Record> committed = readCommitted();
+        committed.sort(Comparator.comparingLong(r -> r.position));
+
+        for (Record record : committed) {
+            raisePosition(record.position);
+
+            if (record.type == INSERT) {
+                record.table.index.redoInsert(record.row, record.position);
+            } else {
+                record.table.index.redoRemove(record.row, record.position);
+            }
+        }
+
+        checkpoint();
+    }
+
+    /**
+     * Begin a batch of the current thread. Batches may be nested, the records are committed when the outermost one
+     * ends.
+     */
+    public synchronized void beginBatch() {
+        batches.computeIfAbsent(Thread.currentThread(), t -> new Batch()).depth++;
+    }
+
+    /**
+     * End a batch of the current thread. If the batch is the outermost one, its records are committed. If the commit
+     * fails, the mutations of the batch are reverted as if it was aborted.
+     *
+     * @throws IOException
+     */
+    public void endBatch() throws IOException {
+        Batch batch;
+        IOException failure;
+        synchronized (this) {
+            batch = getBatch();
+            if (batch.depth > 1) {
+                batch.depth--;
+                return;
+            }
+
+            try {
+                commit(batch.records);
+                removeBatch(batch);
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        try {
+            undo(batch);
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        } finally {
+            synchronized (this) {
+                removeBatch(batch);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * End the outermost batch of the current thread without committing it. The mutations of the batch are reverted in
+     * the tables, in reverse order. A nested batch cannot be aborted alone.
+     *
+     * @throws IOException
+     */
+    public void abortBatch() throws IOException {
+        Batch batch;
+        synchronized (this) {
+            batch = getBatch();
+            if (batch.depth > 1) {
+                throw new IllegalStateException("Cannot abort a nested batch");
+            }
+        }
+
+        // The batch stays open while the tables are reverted, so that no checkpoint writes them meanwhile
+        try {
+            undo(batch);
+        } finally {
+            synchronized (this) {
+                removeBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Write all the partitions modified since the last checkpoint and empty the log. Waits for the batches of the other
+     * threads to end.
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        withoutBatches(() -> {
+            checkpointLocked();
+            return null;
+        });
+    }
+
+    public synchronized long getSize() throws IOException {
+        return getChannel().size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        withoutBatches(() -> {
+            if (channel != null) {
+                checkpointLocked();
+                channel.close();
+                channel = null;
+            }
+            closed = true;
+            return null;
+        });
+    }
+
+    private Batch getBatch() {
+        Batch batch = batches.get(Thread.currentThread());
+        if (batch == null) {
+            throw new IllegalStateException("No batch started");
+        }
+
+        return batch;
+    }
+
+    private void removeBatch(Batch batch) {
+        batch.depth = 0;
+        batches.remove(Thread.currentThread(), batch);
+        notifyAll();
+    }
+
+    /**
+     * Revert the mutations of a batch. Called without holding the lock of the log, since the tables lock themselves
+     * before the log.
+     */
+    private static void undo(Batch batch) throws IOException {
+        for (int i = batch.mutations.size() - 1; i >= 0; i--) {
+            Record record = batch.mutations.get(i);
+            if (record.type == INSERT) {
+                record.table.index.undoInsert(record.row);
+            } else {
+                record.table.index.undoRemove(record.row);
+            }
+        }
+        batch.mutations.clear();
+        batch.records.reset();
+    }
+
+    /**
+     * Run an action with all the tables and the log locked, once no batch is open. The batches are awaited without
+     * holding the locks of the tables, which the threads need to complete their batches.
+     */
+    private void withoutBatches(IoSupplier<Void> action) throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (batches.containsKey(Thread.currentThread())) {
+                    throw new IllegalStateException("Cannot checkpoint within a batch");
+                }
+
+                while (!batches.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the batches to end");
+                    }
+                }
+            }
+
+            boolean done = withTablesLocked(() -> {
+                synchronized (this) {
+                    // A batch may have begun before the tables were locked
+                    if (!batches.isEmpty()) {
+                        return false;
+                    }
+
+                    action.get();
+                    return true;
+                }
+            });
+            if (done) {
+                return;
+            }
+        }
+    }
+
+    private void checkpointLocked() throws IOException {
+        for (TableLog table : tables.values()) {
+            table.index.flush();
+        }
+
+        getChannel().truncate(0);
+        getChannel().force(true);
+    }
+
+    private void backgroundCheckpoint() {
+        try {
+            withTablesLocked(() -> {
+                synchronized (this) {
+                    checkpointScheduled = false;
+                    if (!closed && batches.isEmpty() && getChannel().size() > checkpointThreshold) {
+                        checkpointLocked();
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            // The records are still in the log, the checkpoint is scheduled again on the next commit
+            LOG.log(Level.WARNING, "Background checkpoint failed", e);
+        }
+    }
+
+    private <T> T withTablesLocked(IoSupplier<T> action) throws IOException {
+        List<TableLog> tables;
+        synchronized (this) {
+            tables = new ArrayList<>(this.tables.values());
+        }
+
+        return withTablesLocked(tables, 0, action);
+    }
+
+    private static <T> T withTablesLocked(List<TableLog> tables, int from, IoSupplier<T> action) throws IOException {
+        if (from == tables.size()) {
+            return action.get();
+        }
+
+        synchronized (tables.get(from).index) {
+            return withTablesLocked(tables, from + 1, action);
+        }
+    }
+
+    private synchronized void raisePosition(long position) {
+        nextPosition = Math.max(nextPosition, position + 1);
+    }
+
+    private synchronized long append(byte type, TableLog table, Object[] row) throws IOException {
+        long position = nextPosition++;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeLong(position);
+        output.writeUTF(table.name);
+        table.serializer.serialize(row, output);
+        output.flush();
+
+        Batch batch = batches.get(Thread.currentThread());
+        if (batch != null) {
+            writeRecord(batch.records, type, bytes.toByteArray());
+            batch.mutations.add(new Record(type, position, table, row));
+        } else {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            writeRecord(records, type, bytes.toByteArray());
+            commit(records);
+        }
+
+        return position;
+    }
+
+    private void commit(ByteArrayOutputStream pending) throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+
+        FileChannel channel = getChannel();
+        long size = channel.size();
+        try {
+            writeRecord(pending, COMMIT, new byte[0]);
+
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            channel.position(size);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // Drop the partial records so that a later commit does not make them count
+            try {
+                channel.truncate(size);
+            } catch (IOException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        }
+        pending.reset();
+
+        // Checkpointing needs the lock of every table while the caller holds one of them
+        if (channel.size() > checkpointThreshold && !checkpointScheduled) {
+            checkpointScheduled = true;
+
+            Thread thread = new Thread(this::backgroundCheckpoint, "WAL checkpoint");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte type, byte[] payload) throws IOException {
+        DataOutputStream output = new DataOutputStream(records);
+        output.writeByte(type);
+        output.writeInt(payload.length);
+        output.write(payload);
+        output.writeInt(checksum(type, payload));
+        output.flush();
+    }
+
+    private List<Record> readCommitted() throws IOException {
+        List<Record> committed = new ArrayList<>();
+        if (!file.isFile()) {
+            return committed;
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+        List<Record> uncommitted = new ArrayList<>();
+        try {
+            while (true) {
+                byte type = input.readByte();
+                int length = input.readInt();
+                if (length < 0 || length > input.available()) {
+                    break; // Torn tail
+                }
+
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                if (input.readInt() != checksum(type, payload)) {
+                    break; // Torn tail
+                }
+
+                if (type == COMMIT) {
+                    committed.addAll(uncommitted);
+                    uncommitted.clear();
+                } else {
+                    uncommitted.add(readRecord(type, payload));
+                }
+            }
+        } catch (EOFException e) {
+            // Torn tail
+        }
+
+        return committed;
+    }
+
+    private Record readRecord(byte type, byte[] payload) throws IOException {
+        if (type != INSERT && type != REMOVE) {
+            throw new IOException("Corrupted log, unknown record type: " + type);
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        long position = input.readLong();
+        String name = input.readUTF();
+
+        TableLog table = tables.get(name);
+        if (table == null) {
+            throw new IOException("Log references an unknown table: " + name);
+        }
+
+        return new Record(type, position, table, table.serializer.deserialize(input));
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        return channel;
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Records of a thread not committed yet, and the mutations they describe.
+     */
+    private static class Batch {
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private final List<Record> mutations = new ArrayList<>();
+        private int depth;
+    }
+
+    private static class Record {
+        private final byte type;
+        private final long position;
+        private final TableLog table;
+        private final Object[] row;
+
+        Record(byte type, long position, TableLog table, Object[] row) {
+            this.type = type;
+            this.position = position;
+            this.table = table;
+            this.row = row;
+        }
+    }
+
+    private class TableLog implements MutationLog {
+
+        private final String name;
+        private final RecordSerializer serializer;
+        private final ClusteredIndex index;
+        private boolean positioned;
+
+        TableLog(String name, RecordSerializer serializer, ClusteredIndex index) {
+            this.name = name;
+            this.serializer = serializer;
+            this.index = index;
+        }
+
+        @Override
+        public long logInsert(Object[] row) throws IOException {
+            return log(INSERT, row);
+        }
+
+        @Override
+        public long logRemove(Object[] row) throws IOException {
+            return log(REMOVE, row);
+        }
+
+        /**
+         * Called by the index while holding its lock.
+         */
+        private long log(byte type, Object[] row) throws IOException {
+            if (!positioned) {
+                // The log may have been emptied since the index stored its position
+                raisePosition(index.getLogPosition());
+                positioned = true;
+            }
+
+            return append(type, this, row);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package app.config.manager.storage;
+
+import app.config.manager.datafile.DataFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage keeping the partitions and metadata on the heap.
+ * <p>
+ * The storage may mirror another storage: partitions and metadata are then read from it the first time they are
+ * accessed, and every write is forwarded to it. Reads are served from the heap afterwards. The mirror must be
+ * {@linkplain PartitionedStorage#isAsynchronous() asynchronous}, like a {@code DirectoryStorage} wrapped in an {@code
+ * AsyncStorage}, so that this storage is a write-behind front for the disk: writes only encode the partitions before
+ * returning and {@link #sync()} waits for them to be durable. Writes are forwarded without holding the lock of this
+ * storage, the writes of a partition or a metadata entry are ordered by the owner of the storage, like a {@code
+ * ClusteredIndex} does under its monitor. Fingerprints and verification are those of the mirrored storage, so that
+ * metadata persisted along it remains valid.
+ * <p>
+ * Without mirror, nothing is persisted and partitions are fingerprinted by their number of modifications.
+ * <p>
+ * The whole table is kept in memory once read, this storage is meant for tables that fit in the heap.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class MemoryStorage implements PartitionedStorage {
+
+    private final PartitionedStorage mirror;
+
+    private final Map<Integer, List<Object[]>> partitions = new HashMap<>();
+    private final Map<Integer, Long> modifications = new HashMap<>();
+    private final Map<String, byte[]> metadata = new HashMap<>();
+    private int partitionsCountBuffer;
+
+    public MemoryStorage() {
+        this(null);
+    }
+
+    /**
+     * @param mirror Asynchronous storage the partitions are read from and written to, or {@code null}
+     */
+    public MemoryStorage(PartitionedStorage mirror) {
+        if (mirror != null && !mirror.isAsynchronous()) {
+            throw new IllegalArgumentException("The mirror must write asynchronously, wrap it in an AsyncStorage");
+        }
+
+        this.mirror = mirror;
+        this.partitionsCountBuffer = -1;
+    }
+
+    @Override
+    public synchronized @NotNull MemoryPartition getPartition(int partitionIndex) {
+        if (partitionIndex < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        partitionsCountBuffer = Math.max(getPartitionsCount(), partitionIndex + 1);
+        return new MemoryPartition(partitionIndex);
+    }
+
+    @Override
+    public synchronized int getPartitionsCount() {
+        if (partitionsCountBuffer < 0) {
+            partitionsCountBuffer = mirror == null ? 0 : mirror.getPartitionsCount();
+        }
+
+        return partitionsCountBuffer;
+    }
+
+    @Override
+    public synchronized byte[] readMetadata(String name) throws IOException {
+        if (!metadata.containsKey(name)) {
+            byte[] data = mirror == null ? null : mirror.readMetadata(name);
+            metadata.put(name, data);
+        }
+
+        byte[] data = metadata.get(name);
+        return data == null ? null : data.clone();
+    }
+
+    @Override
+    public void writeMetadata(String name, byte[] data) throws IOException {
+        if (mirror != null) {
+            mirror.writeMetadata(name, data);
+        }
+
+        synchronized (this) {
+            metadata.put(name, data.clone());
+        }
+    }
+
+    @Override
+    public synchronized long getPartitionFingerprint(int partitionIndex) {
+        if (mirror != null) {
+            return mirror.getPartitionFingerprint(partitionIndex);
+        }
+
+        return modifications.getOrDefault(partitionIndex, 0L);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (mirror != null) {
+            mirror.sync();
+        }
+    }
+
+    @Override
+    public List<Integer> verifyPartitions() throws IOException {
+        return mirror == null ? Collections.emptyList() : mirror.verifyPartitions();
+    }
+
+    private synchronized List<Object[]> getRows(int partitionIndex) throws IOException {
+        List<Object[]> rows = partitions.get(partitionIndex);
+        if (rows == null) {
+            rows = mirror == null ? new ArrayList<>() : new ArrayList<>(mirror.getPartition(partitionIndex).read());
+            partitions.put(partitionIndex, rows);
+        }
+
+        return rows;
+    }
+
+    private void setRows(int partitionIndex, List<Object[]> rows) throws IOException {
+        if (mirror != null) {
+            if (rows == null) {
+                mirror.getPartition(partitionIndex).delete();
+            } else {
+                mirror.getPartition(partitionIndex).write(rows);
+            }
+        }
+
+        synchronized (this) {
+            partitions.put(partitionIndex, rows == null ? new ArrayList<>() : new ArrayList<>(rows));
+            modifications.merge(partitionIndex, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Partition kept on the heap.
+     */
+    public class MemoryPartition implements DataFile {
+
+        private final int partitionIndex;
+
+        private MemoryPartition(int partitionIndex) {
+            this.partitionIndex = partitionIndex;
+        }
+
+        @Override
+        public @NotNull List<Object[]> read() throws IOException {
+            synchronized (MemoryStorage.this) {
+                return new ArrayList<>(getRows(partitionIndex));
+            }
+        }
+
+        @Override
+        public void write(List<Object[]> values) throws IOException {
+            setRows(partitionIndex, values);
+        }
+
+        @Override
+        public void append(List<Object[]> currentValues, Object[] newRow) throws IOException {
+            List<Object[]> newValues = new ArrayList<>(currentValues);
+            newValues.add(newRow);
+            write(newValues);
+
+            currentValues.add(newRow);
+        }
+
+        @Override
+        public void delete() throws IOException {
+            setRows(partitionIndex, null);
+        }
+    }
+}
@@ -3,6 +3,10 @@ package app.config.manager.storage;
 import app.config.manager.datafile.DataFile;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
  * @version 0.1 - created on 16.06.16.
@@ -14,4 +18,67 @@ public interface PartitionedStorage {
 
     int getPartitionsCount();
 
+    /**
+     * Read a metadata entry stored along the partitions.
+     *
+     * @param name Name of the entry
+     *
+     * @return The stored bytes or {@code null} if this storage does not persist metadata or if the entry does not exist
+     *
+     * @throws IOException
+     */
+    default byte[] readMetadata(String name) throws IOException {
+        return null;
+    }
+
+    /**
+     * Atomically replace a metadata entry stored along the partitions. Storages that do not persist metadata may
+     * ignore this call.
+     *
+     * @param name Name of the entry
+     * @param data Bytes to store
+     *
+     * @throws IOException
+     */
+    default void writeMetadata(String name, byte[] data) throws IOException {
+    }
+
+    /**
+     * Get a cheap value that changes whenever the given partition is modified. This is used to detect metadata that
+     * went stale (for instance after a crash between a partition write and a metadata write).
+     *
+     * @param partitionIndex Index of the partition
+     *
+     * @return Fingerprint of the partition
+     */
+    default long getPartitionFingerprint(int partitionIndex) {
+        return 0L;
+    }
+
+    /**
+     * @return {@code true} if writes return before they reach the underlying medium, {@link #sync()} waiting for them
+     */
+    default boolean isAsynchronous() {
+        return false;
+    }
+
+    /**
+     * Wait until all the writes issued so far are durable. Storages writing synchronously have nothing to wait for.
+     *
+     * @throws IOException If a write failed
+     */
+    default void sync() throws IOException {
+    }
+
+    /**
+     * Check the integrity of the stored partitions. Storages that cannot detect corruption report none.
+     *
+     * @return The indexes of the corrupted partitions
+     *
+     * @throws IOException
+     */
+    default List<Integer> verifyPartitions() throws IOException {
+        return Collections.emptyList();
+    }
+
 }
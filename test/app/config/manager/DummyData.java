@@ -148,6 +148,8 @@ public class DummyData {
     public static class DummyPartitionedStorage implements PartitionedStorage {
 
         private final Map<Integer, DummyDataFile> partitions = new HashMap<>();
+        private final Map<String, byte[]> metadata = new HashMap<>();
+        private int fingerprintCount;
 
         public long getMaxId() {
             return partitions.values().stream()
@@ -156,6 +158,10 @@ public class DummyData {
                     .max().orElse(0L);
         }
 
+        public int getFingerprintCount() {
+            return fingerprintCount;
+        }
+
         public Map<Integer, DummyDataFile> getPartitions() {
             return partitions;
         }
@@ -176,6 +182,23 @@ public class DummyData {
             return partitions.keySet().stream().mapToInt(i -> i + 1).max().orElse(0);
         }
 
+        @Override
+        public byte[] readMetadata(String name) throws IOException {
+            return metadata.get(name);
+        }
+
+        @Override
+        public void writeMetadata(String name, byte[] data) throws IOException {
+            metadata.put(name, data);
+        }
+
+        @Override
+        public long getPartitionFingerprint(int partitionIndex) {
+            fingerprintCount++;
+            DummyDataFile partition = partitions.get(partitionIndex);
+            return partition == null ? 0L : partition.writeCount + 31 * partition.deleteCount;
+        }
+
         @Override
         public String toString() {
             return partitions.entrySet().stream()
@@ -215,7 +238,7 @@ public class DummyData {
         @Override
         public @NotNull List<Object[]> read() throws IOException {
             readCount++;
-            return table;
+            return new ArrayList<>(table);
         }
 
         @Override
@@ -8,6 +8,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static app.config.manager.DummyData.*;
 import static org.junit.Assert.*;
@@ -178,6 +180,65 @@ public class ClusteredIndexTest {
         assertDataEquals(reverse(data.subList(5, 15)), read(manager.queryIndex(1)));
     }
 
+    @Test
+    public void sequence() throws IOException {
+        createManager(25, 25, 25, 25);
+        manager.setSequence(0);
+        assertEquals(100L, manager.nextSequenceValue());
+
+        Object[] row = DummyData.generateData(101).get(100);
+        row[0] = manager.nextSequenceValue();
+        manager.insert(row);
+        assertEquals(101L, manager.currentSequenceValue());
+        assertTrue(manager.removeFirst(r -> r[0].equals(row[0])));
+        manager.flush();
+
+        // The sequence is persisted and not recomputed from the remaining rows
+        manager = createManager(storage);
+        manager.setSequence(0);
+        assertEquals(102L, manager.nextSequenceValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sequenceAfterAccess() throws IOException {
+        createManager(10, 10);
+        manager.queryIndexFirst(0L);
+        manager.setSequence(0);
+    }
+
+    @Test
+    public void queryStatistics() throws IOException {
+        createManager(25, 25, 25, 25);
+        manager.setPartitionStatistics(new int[0], new int[]{0});
+        assertFalse(manager.queryFirst(ColumnPredicate.equalTo(0, -1L)).isPresent());
+
+        manager = createManager(storage);
+        manager.setPartitionStatistics(new int[0], new int[]{0});
+        int[] reads = new int[4];
+        for (int i = 0; i < 4; i++) {
+            reads[i] = storage.getPartition(i).getReadCount();
+        }
+
+        Object[] someRow = data.get(30);
+        ColumnPredicate query = ColumnPredicate.equalTo(0, someRow[0]);
+        assertArrayEquals(someRow, manager.queryFirst(query).get());
+        assertFalse(manager.queryFirst(ColumnPredicate.equalTo(0, -1L)).isPresent());
+
+        Object[] lowRow = data.get(3);
+        ColumnPredicate range = ColumnPredicate.between(SORT_KEY, (long) lowRow[SORT_KEY], (long) lowRow[SORT_KEY]);
+        assertEquals(lowRow[SORT_KEY], manager.queryFirst(range).get()[SORT_KEY]);
+
+        storage.assertReadWriteCount(0, reads[0] + 1, 0);
+        storage.assertReadWriteCount(1, reads[1] + 1, 0);
+        storage.assertReadWriteCount(2, reads[2], 0);
+        storage.assertReadWriteCount(3, reads[3], 0);
+
+        assertTrue(manager.removeFirst(query));
+        assertFalse(manager.queryFirst(query).isPresent());
+        data.remove(30);
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void nullSortKey() throws IOException {
         createManager(0);
@@ -285,10 +346,13 @@ public class ClusteredIndexTest {
         manager.insert(removedRow.removed);
 
         assertEquals(4, storage.getPartitionsCount());
-        assertDataEquals(data.subList(0, 100), storage.getPartition(0).getTable());
-        assertDataEquals(data.subList(100, 200), storage.getPartition(1).getTable());
-        assertDataEquals(data.subList(200, 300), storage.getPartition(2).getTable());
-        assertDataEquals(data.subList(300, 301), storage.getPartition(3).getTable());
+        assertDataEquals(data.subList(0, 51), storage.getPartition(0).getTable());
+        assertDataEquals(data.subList(51, 101), storage.getPartition(3).getTable());
+        assertDataEquals(data.subList(101, 201), storage.getPartition(1).getTable());
+        assertDataEquals(data.subList(201, 301), storage.getPartition(2).getTable());
+        storage.assertReadWriteCount(1, 1, 0);
+        storage.assertReadWriteCount(2, 1, 0);
+        assertDataEquals(reverse(data), readFromManager());
     }
 
     @Test
@@ -305,10 +369,11 @@ public class ClusteredIndexTest {
         manager.insert(removedRow.removed);
 
         assertEquals(4, storage.getPartitionsCount());
-        assertDataEquals(data.subList(0, 100), storage.getPartition(0).getTable());
-        assertDataEquals(data.subList(100, 101), storage.getPartition(1).getTable());
+        assertDataEquals(data.subList(0, 51), storage.getPartition(0).getTable());
+        assertDataEquals(data.subList(51, 101), storage.getPartition(1).getTable());
         assertDataEquals(Collections.emptyList(), storage.getPartition(2).getTable());
         assertDataEquals(data.subList(101, 201), storage.getPartition(3).getTable());
+        assertDataEquals(reverse(data), readFromManager());
     }
 
     @Test
@@ -329,15 +394,291 @@ public class ClusteredIndexTest {
         assertDataEquals(data.subList(101, 201), storage.getPartition(2).getTable());
     }
 
+    @Test
+    public void splitFullPartition() throws IOException {
+        data = generateData(401);
+        RemovedRow removedRow = new RemovedRow(data, 120);
+
+        createManager(
+                removedRow.remainderData.subList(0, 100),
+                removedRow.remainderData.subList(100, 200),
+                removedRow.remainderData.subList(200, 300),
+                removedRow.remainderData.subList(300, 400)
+        );
+        manager.insert(removedRow.removed);
+
+        assertEquals(5, storage.getPartitionsCount());
+        for (int i : new int[]{0, 2, 3}) {
+            assertEquals(0, storage.getPartition(i).getWriteCount());
+        }
+        storage.assertReadWriteCount(1, 1, 1);
+        storage.assertReadWriteCount(4, 0, 1);
+        assertDataEquals(data.subList(100, 151), storage.getPartition(1).getTable());
+        assertDataEquals(data.subList(151, 201), storage.getPartition(4).getTable());
+
+        assertDataEquals(reverse(data), readFromManager());
+        manager = createManager(storage);
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
+    @Test
+    public void mergeUnderfilled() throws IOException {
+        createManager(100, 30, 60);
+
+        for (int i = 0; i < 10; i++) {
+            Object[] row = data.remove(100);
+            assertTrue(manager.removeFirst(r -> r[0].equals(row[0])));
+        }
+
+        assertDataEquals(data.subList(100, 180), storage.getPartition(1).getTable());
+        assertDataEquals(Collections.emptyList(), storage.getPartition(2).getTable());
+        assertDataEquals(reverse(data), readFromManager());
+
+        manager = createManager(storage);
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
+    @Test
+    public void mergeWithAbandonedIterator() throws IOException {
+        createManager(100, 30, 60);
+        List<Object[]> before = reverse(data);
+
+        // Never closed
+        IoIterator<Object[]> it = manager.iterator();
+        assertArrayEquals(before.get(0), it.next());
+
+        for (int i = 0; i < 10; i++) {
+            Object[] row = data.remove(100);
+            assertTrue(manager.removeFirst(r -> r[0].equals(row[0])));
+        }
+
+        assertDataEquals(data.subList(100, 180), storage.getPartition(1).getTable());
+        assertDataEquals(Collections.emptyList(), storage.getPartition(2).getTable());
+        assertDataEquals(reverse(data), readFromManager());
+        assertDataEquals(before.subList(1, before.size()), read(it));
+    }
+
     @Test
     public void remove1() throws IOException {
         createManager(10);
 
         Object[] row = data.remove(3);
-        assertTrue(manager.removeFirst(r -> r[0] == row[0]));
+        assertTrue(manager.removeFirst(r -> r[0].equals(row[0])));
         assertDataEquals(reverse(data), readFromManager());
     }
 
+    @Test
+    public void queryRange() throws IOException {
+        createManager(100, 100, 100);
+
+        long from = (long) data.get(50)[SORT_KEY];
+        long to = (long) data.get(250)[SORT_KEY];
+
+        assertDataEquals(data.subList(50, 251), read(manager.queryRange(from, to, false)));
+        assertDataEquals(reverse(data.subList(50, 251)), read(manager.queryRange(from, to, true)));
+        assertDataEquals(data.subList(50, 51), read(manager.queryRange(from, from, false)));
+
+        assertDataEquals(data, read(manager.queryRange(Long.MIN_VALUE, Long.MAX_VALUE, false)));
+        assertDataEquals(reverse(data), read(manager.queryRange(Long.MIN_VALUE, Long.MAX_VALUE, true)));
+
+        assertFalse(manager.queryRange(to, from, false).hasNext());
+        assertFalse(manager.queryRange(Long.MIN_VALUE, -1, true).hasNext());
+        assertFalse(manager.queryRange(Long.MIN_VALUE, -1, false).hasNext());
+        assertFalse(manager.queryRange(1000, Long.MAX_VALUE, true).hasNext());
+        assertFalse(manager.queryRange(1000, Long.MAX_VALUE, false).hasNext());
+    }
+
+    @Test
+    public void queryRangeDuplicates() throws IOException {
+        data = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            data.add(new Object[]{(long) i, i < 5 ? 0L : i < 15 ? 1L : 2L});
+        }
+
+        storage = dummyStorage(data.subList(0, 10), data.subList(10, 20));
+        manager = new ClusteredIndex(storage, 10, 1);
+
+        assertDataEquals(data.subList(5, 15), read(manager.queryRange(1, 1, false)));
+        assertDataEquals(data.subList(5, 20), read(manager.queryRange(1, 2, false)));
+        assertDataEquals(reverse(data.subList(0, 15)), read(manager.queryRange(0, 1, true)));
+    }
+
+    @Test
+    public void queryRangeRemove() throws IOException {
+        createManager(10, 10, 10);
+
+        List<Object[]> expected = new ArrayList<>(data);
+        IoIterator<Object[]> it = manager.queryRange((long) data.get(5)[SORT_KEY], (long) data.get(24)[SORT_KEY], false);
+        for (int i = 5; it.hasNext(); i++) {
+            assertArrayEquals(data.get(i), it.next());
+            if (i % 2 == 0) {
+                it.remove();
+                expected.remove(data.get(i));
+            }
+        }
+
+        assertDataEquals(reverse(expected), readFromManager());
+    }
+
+    @Test
+    public void stream() throws IOException {
+        createManager(100, 0, 100, 100, 37);
+
+        assertDataEquals(data, manager.stream(false).collect(Collectors.toList()));
+        assertDataEquals(data, manager.stream(true).collect(Collectors.toList()));
+        assertEquals(data.size(), manager.stream(true).count());
+
+        long sum = data.stream().mapToLong(r -> (long) r[SORT_KEY]).sum();
+        assertEquals(sum, manager.stream(true).mapToLong(r -> (long) r[SORT_KEY]).sum());
+    }
+
+    @Test
+    public void spliteratorSplitsOnPartitions() throws IOException {
+        createManager(100, 100, 100, 37);
+
+        Spliterator<Object[]> suffix = manager.spliterator();
+        assertTrue(suffix.hasCharacteristics(Spliterator.SIZED | Spliterator.ORDERED));
+        assertEquals(337, suffix.getExactSizeIfKnown());
+
+        Spliterator<Object[]> prefix = suffix.trySplit();
+        assertEquals(200, prefix.getExactSizeIfKnown());
+        assertEquals(137, suffix.getExactSizeIfKnown());
+
+        assertTrue(prefix.tryAdvance(r -> assertArrayEquals(data.get(0), r)));
+        Spliterator<Object[]> current = prefix.trySplit();
+        assertEquals(99, current.getExactSizeIfKnown());
+        assertEquals(100, prefix.getExactSizeIfKnown());
+        assertNull(prefix.trySplit());
+
+        List<Object[]> read = new ArrayList<>();
+        current.forEachRemaining(read::add);
+        prefix.forEachRemaining(read::add);
+        suffix.forEachRemaining(read::add);
+        assertDataEquals(data.subList(1, data.size()), read);
+    }
+
+    @Test
+    public void streamAfterRemovals() throws IOException {
+        createManager(100, 100);
+
+        for (int i = 0; i < 10; i++) {
+            Object[] row = data.remove(i * 15);
+            assertTrue(manager.removeIndexFirst((long) row[SORT_KEY], r -> true));
+        }
+
+        assertEquals(data.size(), manager.spliterator().getExactSizeIfKnown());
+        assertDataEquals(data, manager.stream(true).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void iteratorReadsSnapshot() throws IOException {
+        createManager(100, 100, 100);
+        List<Object[]> expected = reverse(data);
+
+        IoIterator<Object[]> it = manager.iterator();
+        List<Object[]> read = new ArrayList<>();
+        read.add(it.next());
+
+        manager.insert(new Object[]{-1L, data.get(50)[SORT_KEY], "new"});
+        manager.insert(new Object[]{-2L, 1000L, "last"});
+        assertTrue(manager.removeIndexFirst((long) data.get(150)[SORT_KEY], r -> true));
+
+        it.forEachRemaining(read::add);
+        assertDataEquals(expected, read);
+        assertEquals(data.size() + 1, readFromManager().size());
+    }
+
+    @Test
+    public void compact() throws IOException {
+        data = generateData(220);
+
+        createManager(
+                data.subList(0, 20),
+                data.subList(20, 30),
+                Collections.emptyList(),
+                data.subList(30, 130),
+                data.subList(130, 150),
+                data.subList(150, 160),
+                data.subList(160, 220)
+        );
+
+        // An open iterator does not block compaction and keeps reading its snapshot
+        IndexIterator it = manager.iterator();
+        assertEquals(4, manager.compact(0.9, 4));
+        assertDataEquals(reverse(data), read(it));
+        it.close();
+
+        int passes = 0;
+        int writes = 0;
+        do {
+            int stepWrites = manager.compact(0.9, 4);
+            assertTrue(stepWrites <= 4);
+            writes += stepWrites;
+
+            if (manager.getCompactionProgress() == 0.0) {
+                passes = writes == 0 ? passes + 1 : 0;
+                writes = 0;
+            }
+        } while (passes < 1);
+
+        List<Integer> sizes = storage.getPartitions().values().stream()
+                .map(p -> p.getTable().size())
+                .filter(size -> size > 0)
+                .collect(Collectors.toList());
+        assertEquals(3, sizes.size());
+        for (int size : sizes) {
+            assertTrue(size <= 90);
+        }
+        assertDataEquals(reverse(data), readFromManager());
+
+        manager = createManager(storage);
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
+    @Test
+    public void streamReadsSnapshot() throws IOException {
+        createManager(100, 100, 100);
+        List<Object[]> expected = new ArrayList<>(data);
+
+        Stream<Object[]> stream = manager.stream(true);
+        manager.insert(new Object[]{-1L, data.get(250)[SORT_KEY], "new"});
+        assertTrue(manager.removeIndexFirst((long) data.get(10)[SORT_KEY], r -> true));
+        manager.repartition();
+
+        assertDataEquals(expected, stream.collect(Collectors.toList()));
+    }
+
+    @Test
+    public void concurrentReadersAndWriter() throws Exception {
+        createManager(100, 100);
+
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 300; i++) {
+                    manager.insert(new Object[]{1000L + i, (long) (i * 7) % 500, "w" + i});
+                }
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        writer.start();
+
+        do {
+            List<Object[]> snapshot = manager.stream(true).collect(Collectors.toList());
+            assertTrue(snapshot.size() >= 200);
+            for (int i = 1; i < snapshot.size(); i++) {
+                assertTrue((long) snapshot.get(i - 1)[SORT_KEY] <= (long) snapshot.get(i)[SORT_KEY]);
+            }
+            assertTrue(readFromManager().size() >= snapshot.size());
+        } while (writer.isAlive());
+
+        writer.join();
+        assertTrue(failures.isEmpty());
+        assertEquals(500, manager.stream(false).count());
+        assertEquals(500, readFromManager().size());
+    }
+
     @Test
     public void remove2() throws IOException {
         createManager(10);
@@ -371,6 +712,295 @@ public class ClusteredIndexTest {
         assertDataEquals(reverse(data), readFromManager());
     }
 
+    @Test
+    public void removalsAreCoalesced() throws IOException {
+        createManager(100, 100);
+
+        for (int index : new int[]{150, 120, 50, 40, 30}) {
+            Object[] row = data.remove(index);
+            assertTrue(manager.removeFirst(r -> r[0].equals(row[0])));
+        }
+        storage.assertReadWriteCount(0, 1, 0);
+        storage.assertReadWriteCount(1, 1, 0);
+
+        manager.flush();
+        storage.assertReadWriteCount(0, 1, 1);
+        storage.assertReadWriteCount(1, 1, 1);
+
+        manager.close();
+        storage.assertReadWriteCount(0, 1, 1);
+        storage.assertReadWriteCount(1, 1, 1);
+
+        manager = createManager(storage);
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
+    @Test
+    public void manifestLookup() throws IOException {
+        createManager(100, 100, 100, 100);
+
+        Object[] someRow = data.get(150);
+        assertArrayEquals(someRow, manager.queryIndexFirst((long) someRow[SORT_KEY]).get());
+
+        manager = createManager(storage);
+        assertArrayEquals(someRow, manager.queryIndexFirst((long) someRow[SORT_KEY]).get());
+
+        storage.assertReadWriteCount(0, 1, 0);
+        storage.assertReadWriteCount(1, 2, 0);
+        storage.assertReadWriteCount(2, 1, 0);
+        storage.assertReadWriteCount(3, 1, 0);
+    }
+
+    @Test
+    public void staleManifestIsRebuilt() throws IOException {
+        data = generateData(201);
+        RemovedRow removedRow = new RemovedRow(data, 75);
+
+        createManager(
+                removedRow.remainderData.subList(0, 100),
+                removedRow.remainderData.subList(100, 200)
+        );
+        manager.queryIndexFirst(0);
+
+        storage.getPartition(0).write(new ArrayList<>(removedRow.remainderData.subList(0, 50)));
+        storage.getPartition(1).write(new ArrayList<>(removedRow.remainderData.subList(50, 200)));
+        markManifestUnclean();
+
+        manager = createManager(storage);
+        manager.insert(removedRow.removed);
+
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
+    @Test
+    public void cleanManifestIsTrusted() throws IOException {
+        createManager(100, 100, 100);
+        Object[] row = new Object[]{-1L, data.get(150)[SORT_KEY], "new"};
+        manager.insert(row);
+
+        // Not closed, the partitions are checked against the manifest
+        int fingerprintsBefore = storage.getFingerprintCount();
+        manager = createManager(storage);
+        manager.queryIndexFirst(0);
+        assertTrue(storage.getFingerprintCount() > fingerprintsBefore);
+        manager.close();
+
+        // Closed, the manifest is trusted as is
+        fingerprintsBefore = storage.getFingerprintCount();
+        manager = createManager(storage);
+        assertTrue(manager.queryFirst(r -> r[0].equals(-1L)).isPresent());
+        assertEquals(fingerprintsBefore, storage.getFingerprintCount());
+    }
+
+    @Test
+    public void loggedFlushKeepsStoredPartitions() throws IOException {
+        createManager(100, 100);
+        manager.queryIndexFirst(0);
+
+        long[] position = {0L};
+        manager.setMutationLog(new MutationLog() {
+            @Override
+            public long logInsert(Object[] row) {
+                return ++position[0];
+            }
+
+            @Override
+            public long logRemove(Object[] row) {
+                return ++position[0];
+            }
+        });
+
+        List<Object[]> expected = new ArrayList<>(data);
+        expected.add(new Object[]{-1L, data.get(10)[SORT_KEY], "first"});
+        expected.add(new Object[]{-2L, data.get(150)[SORT_KEY], "second"});
+        manager.insert(expected.get(200));
+        manager.insert(expected.get(201));
+
+        // The second partition cannot be written
+        storage.getPartitions().put(3, new ExceptionDataFile());
+        try {
+            manager.flush();
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // The stored partitions were not overwritten, the stored manifest still describes them
+        ClusteredIndex reopened = createManager(storage);
+        assertEquals(0L, reopened.getLogPosition());
+        assertDataEquals(reverse(data), read(reopened.iterator()));
+
+        storage.getPartitions().remove(3);
+        manager.flush();
+        assertEquals(1, storage.getPartition(0).getDeleteCount());
+        assertEquals(1, storage.getPartition(1).getDeleteCount());
+
+        reopened = createManager(storage);
+        assertEquals(2L, reopened.getLogPosition());
+        assertDataEquals(sort(expected, 0), sort(read(reopened.iterator()), 0));
+    }
+
+    @Test
+    public void boundedCache() throws IOException {
+        createManager(25, 25, 25, 25);
+        PartitionCache cache = new PartitionCache(50);
+        manager = new ClusteredIndex(storage, 25, SORT_KEY, cache);
+
+        assertDataEquals(reverse(data), readFromManager());
+        assertTrue(cache.getCachedRowsCount() <= 50);
+        assertEquals(2, cache.getEvictionCount());
+
+        Object[] row = data.remove(80);
+        assertTrue(manager.removeFirst(r -> r[0].equals(row[0])));
+        assertEquals(0, storage.getPartition(3).getWriteCount());
+
+        readFromManager();
+        assertEquals(1, storage.getPartition(3).getWriteCount());
+        assertDataEquals(reverse(data), readFromManager());
+    }
+
+    @Test
+    public void secondaryIndex() throws IOException {
+        createManager(100, 100, 100);
+        manager.addSecondaryIndex("id", 0);
+
+        Object[] someRow = data.get(150);
+        assertArrayEquals(someRow, manager.querySecondaryFirst("id", someRow[0]).get());
+
+        Object[] newRow = new Object[]{-1L, someRow[SORT_KEY], "new"};
+        manager.insert(newRow);
+        assertDataEquals(Collections.singletonList(newRow), manager.querySecondary("id", -1L));
+
+        assertTrue(manager.removeFirst(r -> r[0].equals(someRow[0])));
+        assertFalse(manager.querySecondaryFirst("id", someRow[0]).isPresent());
+        assertArrayEquals(newRow, manager.querySecondaryFirst("id", -1L).get());
+
+        // The index is only written on flush
+        assertNull(storage.readMetadata("index.id"));
+        manager.close();
+        assertNotNull(storage.readMetadata("index.id"));
+
+        manager = createManager(storage);
+        manager.addSecondaryIndex("id", 0);
+
+        int readsBefore = totalReads();
+        Object[] otherRow = data.get(250);
+        assertArrayEquals(otherRow, manager.querySecondaryFirst("id", otherRow[0]).get());
+        assertEquals(readsBefore + 1, totalReads());
+        assertFalse(manager.querySecondaryFirst("id", someRow[0]).isPresent());
+    }
+
+    @Test
+    public void staleSecondaryIndexIsRebuilt() throws IOException {
+        createManager(100, 100);
+        manager.addSecondaryIndex("id", 0);
+        manager.querySecondaryFirst("id", 0L);
+
+        Object[] externalRow = new Object[]{-1L, data.get(50)[SORT_KEY], "external"};
+        List<Object[]> partition = new ArrayList<>(data.subList(0, 100));
+        partition.add(51, externalRow);
+        storage.getPartition(0).write(partition);
+        markManifestUnclean();
+
+        manager = createManager(storage);
+        manager.addSecondaryIndex("id", 0);
+        assertArrayEquals(externalRow, manager.querySecondaryFirst("id", -1L).get());
+    }
+
+    @Test
+    public void secondaryIndexRebuiltAfterCompaction() throws IOException {
+        data = generateData(220);
+
+        createManager(
+                data.subList(0, 20),
+                data.subList(20, 30),
+                Collections.emptyList(),
+                data.subList(30, 130),
+                data.subList(130, 150),
+                data.subList(150, 160),
+                data.subList(160, 220)
+        );
+        for (int i = 0; i < 10; i++) {
+            manager.compact(0.9, 4);
+        }
+        manager.close();
+
+        // A partition freed by the compaction is not part of the table, whatever it still holds
+        PartitionManifest manifest = PartitionManifest.deserialize(storage.readMetadata("manifest"));
+        Set<Integer> directory = new HashSet<>();
+        for (int partitionIndex : manifest.getDirectory()) {
+            directory.add(partitionIndex);
+        }
+        int freeIndex = 0;
+        while (directory.contains(freeIndex)) {
+            freeIndex++;
+        }
+        assertTrue(freeIndex < storage.getPartitionsCount());
+        storage.getPartition(freeIndex).getTable().add(new Object[]{-1L, 0L, "freed"});
+        int freedReads = storage.getPartition(freeIndex).getReadCount();
+
+        manager = createManager(storage);
+        manager.addSecondaryIndex("id", 0);
+        for (Object[] row : data) {
+            assertArrayEquals(row, manager.querySecondaryFirst("id", row[0]).get());
+        }
+        assertFalse(manager.querySecondaryFirst("id", -1L).isPresent());
+        assertEquals(freedReads, storage.getPartition(freeIndex).getReadCount());
+    }
+
+    @Test
+    public void insertAll() throws IOException {
+        List<Object[]> allData = generateData(400);
+
+        List<Object[]> existing = new ArrayList<>();
+        List<Object[]> batch = new ArrayList<>();
+        for (int i = 0; i < allData.size(); i++) {
+            (i % 2 == 0 ? existing : batch).add(allData.get(i));
+        }
+        Collections.shuffle(batch, new Random(0));
+
+        createManager(existing.subList(0, 100), existing.subList(100, 200));
+        manager.insertAll(batch);
+
+        assertDataEquals(reverse(allData), readFromManager());
+        assertEquals(4, storage.getPartitionsCount());
+        for (int i = 0; i < 4; i++) {
+            storage.assertReadWriteCount(i, i < 2 ? 1 : 0, 1);
+        }
+    }
+
+    @Test
+    public void insertAllAtEnd() throws IOException {
+        createManager(100, 50);
+
+        List<Object[]> batch = new ArrayList<>();
+        for (long i = 0; i < 120; i++) {
+            batch.add(new Object[]{-i, Long.MAX_VALUE - i, "new"});
+        }
+        manager.insertAll(batch);
+
+        data.addAll(reverse(batch));
+        assertDataEquals(reverse(data), readFromManager());
+        storage.assertReadWriteCount(0, 1, 0);
+        storage.assertReadWriteCount(1, 1, 1);
+        storage.assertReadWriteCount(2, 0, 1);
+    }
+
+    /**
+     * Make the manifest look like the manager crashed while writing the partitions.
+     */
+    private void markManifestUnclean() throws IOException {
+        PartitionManifest manifest = PartitionManifest.deserialize(storage.readMetadata("manifest"));
+        manifest.setClean(false);
+        storage.writeMetadata("manifest", manifest.serialize());
+    }
+
+    private int totalReads() {
+        return storage.getPartitions().values().stream()
+                .mapToInt(DummyDataFile::getReadCount)
+                .sum();
+    }
+
     private static class RemovedRow {
         private final List<Object[]> remainderData;
         private final Object[] removed;
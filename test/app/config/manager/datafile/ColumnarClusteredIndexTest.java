@@ -0,0 +1,20 @@
+package app.config.manager.datafile;
+
+import app.config.manager.DummyData.DummyPartitionedStorage;
+
+import static app.config.manager.datafile.PartitionSchema.ColumnType.*;
+
+/**
+ * Run the {@link ClusteredIndexTest} suite with partitions cached as {@link ColumnarPartition}.
+ *
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class ColumnarClusteredIndexTest extends ClusteredIndexTest {
+
+    @Override
+    protected ClusteredIndex createManager(DummyPartitionedStorage storage) {
+        return new ClusteredIndex(storage, 100, 1, new PartitionCache(),
+                new PartitionSchema(LONG, LONG, OBJECT));
+    }
+}
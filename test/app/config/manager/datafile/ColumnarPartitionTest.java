@@ -0,0 +1,81 @@
+package app.config.manager.datafile;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static app.config.manager.DummyData.assertDataEquals;
+import static app.config.manager.datafile.PartitionSchema.ColumnType.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class ColumnarPartitionTest {
+
+    private static final PartitionSchema SCHEMA = new PartitionSchema(LONG, INT, DOUBLE, DATE, OBJECT);
+
+    private static Object[] row(long key) {
+        return new Object[]{key, (int) key * 2, key / 2.0, LocalDate.ofEpochDay(key), key % 3 == 0 ? null : "r" + key};
+    }
+
+    @Test
+    public void listOperations() {
+        List<Object[]> expected = new ArrayList<>();
+        ColumnarPartition partition = new ColumnarPartition(SCHEMA, 0, 1);
+
+        for (long i = 0; i < 50; i++) {
+            expected.add(row(i));
+            partition.add(row(i));
+        }
+        assertDataEquals(expected, partition);
+
+        expected.add(10, row(100));
+        partition.add(10, row(100));
+        expected.remove(0);
+        partition.remove(0);
+        expected.set(5, row(-5));
+        partition.set(5, row(-5));
+        assertDataEquals(expected, partition);
+
+        expected.subList(20, 30).clear();
+        partition.subList(20, 30).clear();
+        assertDataEquals(expected, partition);
+        assertEquals(expected.size(), partition.size());
+
+        partition.clear();
+        assertTrue(partition.isEmpty());
+    }
+
+    @Test
+    public void search() {
+        ColumnarPartition partition = new ColumnarPartition(SCHEMA, 0);
+        for (long key : new long[]{1, 3, 3, 3, 7}) {
+            partition.add(row(key));
+        }
+
+        assertEquals(3, partition.search(3));
+        assertEquals(4, partition.search(7));
+        assertEquals(-1, partition.search(0));
+        assertEquals(-2, partition.search(2));
+        assertEquals(-5, partition.search(5));
+        assertEquals(-6, partition.search(8));
+        assertEquals(7, partition.getSortKey(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullPrimitive() {
+        Object[] row = row(1);
+        row[1] = null;
+
+        new ColumnarPartition(SCHEMA, 0).add(row);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonLongSortKey() {
+        new ColumnarPartition(SCHEMA, 1);
+    }
+}
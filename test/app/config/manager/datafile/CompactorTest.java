@@ -0,0 +1,82 @@
+package app.config.manager.datafile;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static app.config.manager.DummyData.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class CompactorTest {
+
+    private static final int SORT_KEY = 1;
+
+    private List<Object[]> data;
+
+    /**
+     * A table of 20 partitions holding 10 rows each.
+     */
+    private ClusteredIndex fragmentedTable() {
+        data = new ArrayList<>();
+        DummyPartitionedStorage storage = dummyStorage(SORT_KEY, data,
+                10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10);
+
+        return new ClusteredIndex(storage, 100, SORT_KEY);
+    }
+
+    private static List<Object[]> readAll(ClusteredIndex index) throws IOException {
+        List<Object[]> result = new ArrayList<>();
+        try (IndexIterator it = index.iterator()) {
+            it.forEachRemaining(result::add);
+        }
+        Collections.reverse(result);
+
+        return result;
+    }
+
+    @Test
+    public void step() throws IOException {
+        ClusteredIndex index = fragmentedTable();
+        List<Double> progress = new ArrayList<>();
+
+        try (Compactor compactor = new Compactor(index, 0.5, 5)) {
+            compactor.setProgressListener(progress::add);
+
+            assertEquals(5, compactor.step());
+            assertEquals(5, compactor.step());
+            assertEquals(10, compactor.getWritesCount());
+        }
+
+        // Each step packs 5 partitions into one, and goes on with the next ones
+        assertEquals(2, progress.size());
+        assertEquals(1.0 / 16, progress.get(0), 1e-9);
+        assertEquals(2.0 / 12, progress.get(1), 1e-9);
+        assertDataEquals(data, readAll(index));
+    }
+
+    @Test
+    public void background() throws Exception {
+        ClusteredIndex index = fragmentedTable();
+
+        try (Compactor compactor = new Compactor(index, 0.5, 4)) {
+            compactor.start(1, TimeUnit.MILLISECONDS);
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (compactor.getWritesCount() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(compactor.getWritesCount() >= 20);
+        }
+
+        assertDataEquals(data, readAll(index));
+    }
+}
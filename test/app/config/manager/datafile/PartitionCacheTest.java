@@ -0,0 +1,184 @@
+package app.config.manager.datafile;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static app.config.manager.DummyData.generateData;
+import static org.junit.Assert.*;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PartitionCacheTest {
+
+    private final Object owner = new Object();
+    private final Map<Integer, List<Object[]>> writtenBack = new HashMap<>();
+
+    private void put(PartitionCache cache, int partitionIndex, int rows) throws IOException {
+        cache.put(owner, partitionIndex, new ArrayList<>(generateData(rows)), writtenBack::put);
+    }
+
+    @Test
+    public void lruEviction() throws IOException {
+        PartitionCache cache = new PartitionCache(30);
+
+        put(cache, 0, 10);
+        put(cache, 1, 10);
+        put(cache, 2, 10);
+        assertNotNull(cache.get(owner, 0));
+
+        put(cache, 3, 10);
+
+        assertNotNull(cache.get(owner, 0));
+        assertNull(cache.get(owner, 1));
+        assertNotNull(cache.get(owner, 2));
+        assertNotNull(cache.get(owner, 3));
+
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(4, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(30, cache.getCachedRowsCount());
+    }
+
+    @Test
+    public void pinnedAreNotEvicted() throws IOException {
+        PartitionCache cache = new PartitionCache(10);
+
+        put(cache, 0, 10);
+        cache.pin(owner, 0);
+        put(cache, 1, 10);
+
+        assertNotNull(cache.get(owner, 0));
+        assertNotNull(cache.get(owner, 1));
+
+        cache.unpin(owner, 0);
+        put(cache, 2, 10);
+
+        assertNull(cache.get(owner, 0));
+        assertNull(cache.get(owner, 1));
+        assertNotNull(cache.get(owner, 2));
+    }
+
+    @Test
+    public void dirtyAreWrittenBack() throws IOException {
+        PartitionCache cache = new PartitionCache(10);
+
+        put(cache, 0, 10);
+        List<Object[]> partition = cache.get(owner, 0);
+        assertTrue(cache.markDirty(owner, 0));
+        assertFalse(cache.markDirty(owner, 1));
+
+        put(cache, 1, 10);
+
+        assertSame(partition, writtenBack.get(0));
+        assertFalse(writtenBack.containsKey(1));
+    }
+
+    @Test
+    public void writeBackDoesNotBlockOtherOwners() throws Exception {
+        PartitionCache cache = new PartitionCache(10);
+        Object otherOwner = new Object();
+        boolean[] otherPut = {false};
+
+        // Another owner uses the cache while the partition is written back
+        cache.put(owner, 0, new ArrayList<>(generateData(10)), (partitionIndex, partition) -> {
+            Thread other = new Thread(() -> {
+                try {
+                    cache.put(otherOwner, 0, new ArrayList<>(), writtenBack::put);
+                    otherPut[0] = true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            other.start();
+            try {
+                other.join(5000);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            writtenBack.put(partitionIndex, partition);
+        });
+        assertTrue(cache.markDirty(owner, 0));
+
+        synchronized (owner) {
+            put(cache, 1, 10);
+        }
+
+        // The partition being written back is pinned, the other owner evicts the clean one
+        assertTrue(otherPut[0]);
+        assertTrue(writtenBack.containsKey(0));
+        assertNull(cache.peek(owner, 0));
+        assertNull(cache.peek(owner, 1));
+        assertNotNull(cache.peek(otherOwner, 0));
+        assertEquals(0, cache.getCachedRowsCount());
+    }
+
+    @Test
+    public void dirtyOfOtherOwnersAreWrittenBack() throws Exception {
+        PartitionCache cache = new PartitionCache(10);
+        Object otherOwner = new Object();
+        Map<Integer, List<Object[]>> otherWrittenBack = new ConcurrentHashMap<>();
+
+        cache.put(otherOwner, 0, new ArrayList<>(generateData(10)), otherWrittenBack::put);
+        List<Object[]> partition = cache.get(otherOwner, 0);
+        assertTrue(cache.markDirty(otherOwner, 0));
+
+        put(cache, 0, 10);
+
+        // Written back under the monitor of its owner, then evicted
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getCachedRowsCount() > 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertSame(partition, otherWrittenBack.get(0));
+        assertEquals(10, cache.getCachedRowsCount());
+        assertNull(cache.get(otherOwner, 0));
+        assertNotNull(cache.get(owner, 0));
+    }
+
+    @Test
+    public void resizedPartitionsAreCounted() throws IOException {
+        PartitionCache cache = new PartitionCache(30);
+
+        put(cache, 0, 10);
+        put(cache, 1, 10);
+        cache.get(owner, 0).addAll(generateData(10));
+        cache.resized(owner, 0);
+        assertEquals(30, cache.getCachedRowsCount());
+
+        put(cache, 2, 10);
+        assertNull(cache.get(owner, 1));
+        assertEquals(30, cache.getCachedRowsCount());
+
+        put(cache, 3, 10);
+        assertNull(cache.get(owner, 0));
+        assertEquals(20, cache.getCachedRowsCount());
+
+        cache.invalidate(owner);
+        assertEquals(0, cache.getCachedRowsCount());
+    }
+
+    @Test
+    public void ownersAreSeparated() throws IOException {
+        PartitionCache cache = new PartitionCache(100);
+        Object otherOwner = new Object();
+
+        put(cache, 0, 10);
+        assertNull(cache.get(otherOwner, 0));
+
+        cache.invalidate(otherOwner);
+        assertNotNull(cache.get(owner, 0));
+
+        cache.invalidate(owner);
+        assertNull(cache.get(owner, 0));
+    }
+}
@@ -0,0 +1,176 @@
+package app.config.manager.datafile;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PartitionManifestTest {
+
+    private static List<Object[]> partition(long... keys) {
+        List<Object[]> partition = new ArrayList<>();
+        for (long key : keys) {
+            partition.add(new Object[]{key});
+        }
+
+        return partition;
+    }
+
+    private static PartitionManifest manifest(List<Object[]>... partitions) {
+        PartitionManifest manifest = new PartitionManifest();
+        for (int i = 0; i < partitions.length; i++) {
+            manifest.update(i, partitions[i], 0, i);
+            manifest.insertLogical(i, i);
+        }
+
+        return manifest;
+    }
+
+    @Test
+    public void search() {
+        PartitionManifest manifest = manifest(
+                partition(10, 20),
+                partition(30, 40),
+                Collections.emptyList(),
+                partition(50, 60)
+        );
+
+        assertEquals(-1, manifest.searchPartitionFor(5));
+        assertEquals(0, manifest.searchPartitionFor(10));
+        assertEquals(0, manifest.searchPartitionFor(15));
+        assertEquals(-2, manifest.searchPartitionFor(25));
+        assertEquals(1, manifest.searchPartitionFor(40));
+        assertEquals(-3, manifest.searchPartitionFor(45));
+        assertEquals(3, manifest.searchPartitionFor(55));
+        assertEquals(-5, manifest.searchPartitionFor(70));
+    }
+
+    @Test
+    public void searchDuplicatesAcrossPartitions() {
+        PartitionManifest manifest = manifest(
+                partition(1, 2, 2),
+                partition(2, 2, 3)
+        );
+
+        assertEquals(1, manifest.searchPartitionFor(2));
+        assertEquals(0, manifest.searchPartitionFor(1));
+    }
+
+    @Test
+    public void searchEmpty() {
+        assertEquals(-1, manifest().searchPartitionFor(0));
+        assertEquals(-1, manifest(Collections.emptyList()).searchPartitionFor(0));
+    }
+
+    @Test
+    public void serialization() throws IOException {
+        PartitionManifest manifest = manifest(
+                partition(10, 20),
+                Collections.emptyList(),
+                partition(50, 60)
+        );
+
+        PartitionManifest read = PartitionManifest.deserialize(manifest.serialize());
+
+        assertEquals(3, read.getPartitionsCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(manifest.getRowCount(i), read.getRowCount(i));
+            assertEquals(manifest.getMinKey(i), read.getMinKey(i));
+            assertEquals(manifest.getMaxKey(i), read.getMaxKey(i));
+            assertEquals(manifest.getFingerprint(i), read.getFingerprint(i));
+        }
+        assertArrayEquals(manifest.getDirectory(), read.getDirectory());
+        assertFalse(read.isClean());
+
+        manifest.setClean(true);
+        assertTrue(PartitionManifest.deserialize(manifest.serialize()).isClean());
+    }
+
+    @Test
+    public void statistics() throws IOException {
+        PartitionManifest manifest = new PartitionManifest(new int[]{1}, new int[]{2});
+        manifest.update(0, Arrays.asList(new Object[]{10L, 5L, "a"}, new Object[]{20L, 7L, "b"}), 0, 1);
+        manifest.update(1, Collections.emptyList(), 0, 2);
+        manifest.insertLogical(0, 0);
+        manifest.insertLogical(1, 1);
+
+        for (PartitionManifest m : new PartitionManifest[]{manifest, PartitionManifest.deserialize(manifest.serialize())}) {
+            assertArrayEquals(new int[]{1}, m.getZoneMapColumns());
+            assertArrayEquals(new int[]{2}, m.getBloomFilterColumns());
+
+            PartitionStatistics statistics = m.getStatistics(0, 0);
+            assertTrue(statistics.getZoneMap(0).mayContain(15L, 15L));
+            assertFalse(statistics.getZoneMap(0).mayContain(21L, null));
+            assertTrue(statistics.getZoneMap(1).mayContain(6L, 6L));
+            assertFalse(statistics.getZoneMap(1).mayContain(null, 4L));
+            assertTrue(statistics.getBloomFilter(2).mightContain("b"));
+            assertFalse(statistics.getBloomFilter(2).mightContain("c"));
+            assertNull(statistics.getZoneMap(2));
+            assertNull(statistics.getBloomFilter(1));
+
+            assertFalse(m.getStatistics(1, 0).getZoneMap(0).mayContain(null, null));
+            assertFalse(m.getStatistics(1, 0).getBloomFilter(2).mightContain("a"));
+        }
+    }
+
+    @Test
+    public void sequence() throws IOException {
+        PartitionManifest manifest = new PartitionManifest(new int[0], new int[0], 1);
+        manifest.update(0, Arrays.asList(new Object[]{1L, 12L}, new Object[]{2L, null}, new Object[]{3L, 7L}), 0, 1);
+        assertEquals(1, manifest.getSequenceColumn());
+        assertEquals(12L, manifest.getSequence());
+        assertEquals(13L, manifest.nextSequenceValue());
+
+        // Removing the highest values does not lower the sequence
+        manifest.update(0, Collections.singletonList(new Object[]{3L, 7L}), 0, 2);
+        assertEquals(14L, PartitionManifest.deserialize(manifest.serialize()).nextSequenceValue());
+
+        PartitionManifest onSortKey = new PartitionManifest(new int[0], new int[0], 0);
+        onSortKey.update(0, partition(4, 9), 0, 1);
+        onSortKey.update(1, Collections.emptyList(), 0, 2);
+        assertEquals(10L, onSortKey.nextSequenceValue());
+
+        assertEquals(-1, manifest(partition(4, 9)).getSequenceColumn());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void withoutSequence() {
+        manifest(partition(4, 9)).nextSequenceValue();
+    }
+
+    @Test
+    public void directory() {
+        PartitionManifest manifest = manifest(
+                partition(10, 20),
+                partition(50, 60)
+        );
+        manifest.update(2, partition(30, 40), 0, 2);
+        manifest.insertLogical(1, 2);
+
+        assertArrayEquals(new int[]{0, 2, 1}, manifest.getDirectory());
+        assertEquals(1, manifest.getLogicalIndex(2));
+        assertEquals(3, manifest.getFreePartition());
+
+        assertEquals(1, manifest.searchPartitionFor(35));
+        assertEquals(-3, manifest.searchPartitionFor(45));
+        assertEquals(2, manifest.searchPartitionFor(55));
+
+        manifest.removeLogical(0);
+        assertEquals(-1, manifest.getLogicalIndex(0));
+        assertEquals(0, manifest.getFreePartition());
+        assertEquals(-1, manifest.searchPartitionFor(15));
+    }
+}
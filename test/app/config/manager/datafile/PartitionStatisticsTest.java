@@ -0,0 +1,148 @@
+package app.config.manager.datafile;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static app.config.manager.DummyData.generateData;
+import static app.config.manager.datafile.ColumnPredicate.allOf;
+import static app.config.manager.datafile.ColumnPredicate.between;
+import static app.config.manager.datafile.ColumnPredicate.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PartitionStatisticsTest {
+
+    private static List<Object[]> column(Object... values) {
+        List<Object[]> rows = new ArrayList<>();
+        for (Object value : values) {
+            rows.add(new Object[]{value});
+        }
+
+        return rows;
+    }
+
+    @Test
+    public void zoneMap() throws IOException {
+        ZoneMap longs = ZoneMap.of(column(10L, null, 30L, 20L), 0);
+        assertTrue(longs.mayContain(10L, 10L));
+        assertTrue(longs.mayContain(25L, 25L));
+        assertTrue(longs.mayContain(null, 10L));
+        assertTrue(longs.mayContain(30L, null));
+        assertFalse(longs.mayContain(31L, null));
+        assertFalse(longs.mayContain(null, 9L));
+        assertFalse(longs.mayContain(0L, 5L));
+
+        ZoneMap doubles = ZoneMap.of(column(-1.5, 2.5), 0);
+        assertTrue(doubles.mayContain(0.0, 0.0));
+        assertFalse(doubles.mayContain(-3.0, -2.0));
+        assertFalse(doubles.mayContain(2.75, null));
+
+        ZoneMap dates = ZoneMap.of(column(LocalDate.of(2016, 1, 1), LocalDate.of(2016, 12, 31)), 0);
+        assertTrue(dates.mayContain(LocalDate.of(2016, 6, 1), null));
+        assertFalse(dates.mayContain(LocalDate.of(2017, 1, 1), null));
+
+        assertFalse(ZoneMap.empty().mayContain(null, null));
+        assertFalse(ZoneMap.of(column(null, null), 0).mayContain(0L, 0L));
+
+        // Mismatching or unsupported types never exclude a partition
+        assertTrue(longs.mayContain(100.0, 100.0));
+        assertTrue(ZoneMap.of(column("a", "b"), 0).mayContain("z", "z"));
+
+        for (ZoneMap zoneMap : new ZoneMap[]{longs, doubles, dates}) {
+            ZoneMap read = roundTrip(zoneMap);
+            assertTrue(read.mayContain(null, null));
+        }
+        assertFalse(roundTrip(longs).mayContain(31L, null));
+        assertFalse(roundTrip(doubles).mayContain(2.75, null));
+    }
+
+    @Test
+    public void bloomFilter() throws IOException {
+        List<Object[]> rows = generateData(200);
+        for (int column = 0; column < 3; column++) {
+            BloomFilter filter = BloomFilter.of(rows, column);
+            BloomFilter read = roundTrip(filter);
+
+            for (Object[] row : rows) {
+                assertTrue(filter.mightContain(row[column]));
+                assertTrue(read.mightContain(row[column]));
+            }
+        }
+
+        BloomFilter ids = BloomFilter.of(rows, 0);
+        int falsePositives = 0;
+        for (long i = 1000; i < 2000; i++) {
+            if (ids.mightContain(i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50);
+
+        assertFalse(BloomFilter.empty().mightContain(0L));
+        assertFalse(BloomFilter.of(Collections.emptyList(), 0).mightContain("a"));
+        assertTrue(BloomFilter.of(column((Object) null), 0).mightContain(null));
+    }
+
+    @Test
+    public void predicates() {
+        List<Object[]> rows = new ArrayList<>();
+        for (long i = 0; i < 50; i++) {
+            rows.add(new Object[]{i, "name" + i});
+        }
+        PartitionStatistics statistics = new PartitionStatistics() {
+            @Override
+            public ZoneMap getZoneMap(int column) {
+                return column == 0 ? ZoneMap.of(rows, 0) : null;
+            }
+
+            @Override
+            public BloomFilter getBloomFilter(int column) {
+                return column == 1 ? BloomFilter.of(rows, 1) : null;
+            }
+        };
+
+        assertTrue(equalTo(0, 10L).mayMatch(statistics));
+        assertFalse(equalTo(0, 60L).mayMatch(statistics));
+        assertTrue(equalTo(1, "name10").mayMatch(statistics));
+        assertFalse(equalTo(1, "unknown").mayMatch(statistics));
+        assertTrue(equalTo(2, "no statistics").mayMatch(statistics));
+
+        assertTrue(between(0, 40L, 60L).mayMatch(statistics));
+        assertFalse(between(0, 50L, null).mayMatch(statistics));
+
+        assertTrue(allOf(equalTo(0, 10L), equalTo(1, "name10")).mayMatch(statistics));
+        assertFalse(allOf(equalTo(0, 10L), equalTo(1, "unknown")).mayMatch(statistics));
+        assertFalse(equalTo(0, 60L).and(r -> true).mayMatch(statistics));
+
+        Object[] row = {10L, "name10"};
+        assertTrue(allOf(equalTo(0, 10L), between(0, 5L, 15L), equalTo(1, "name10")).test(row));
+        assertFalse(allOf(equalTo(0, 10L), equalTo(1, "name11")).test(row));
+        assertFalse(between(0, 11L, null).test(row));
+        assertFalse(equalTo(0, 10L).and(r -> false).test(row));
+    }
+
+    private static ZoneMap roundTrip(ZoneMap zoneMap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        zoneMap.write(new DataOutputStream(bytes));
+        return ZoneMap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static BloomFilter roundTrip(BloomFilter filter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(bytes));
+        return BloomFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
@@ -0,0 +1,235 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.IndexIterator;
+import app.config.manager.storage.PartitionedStorage;
+import app.config.manager.storage.PartitionedStorageTest;
+import com.wx.io.file.FileUtil;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static app.config.manager.DummyData.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class AsyncStorageTest extends PartitionedStorageTest {
+
+    private static final int SORT_KEY = 1;
+
+    @BeforeClass
+    public static void createTmpDir() throws IOException {
+        Path path = Files.createTempDirectory("invoicefx_test_async_storage");
+        tmpDir = path.toFile();
+    }
+
+    @AfterClass
+    public static void removeTmpDir() {
+        FileUtil.deleteDir(tmpDir);
+    }
+
+    @After
+    public void clearTmpDir() throws IOException {
+        syncStorages();
+        storages.clear();
+        for (File file : tmpDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static File tmpDir;
+
+    private final List<AsyncStorage> storages = new ArrayList<>();
+
+    /**
+     * Storages opened by the tests see the writes of the previous ones once synced.
+     */
+    @Override
+    protected PartitionedStorage getPartitionedStorage(RecordSerializer serializer) {
+        try {
+            syncStorages();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        AsyncStorage storage = new AsyncStorage(new DirectoryStorage(serializer, tmpDir, "test", false, BlockCodec.NONE, SORT_KEY));
+        storages.add(storage);
+        return storage;
+    }
+
+    private void syncStorages() throws IOException {
+        for (AsyncStorage storage : storages) {
+            storage.sync();
+        }
+    }
+
+    @Test
+    public void pendingWrites() throws IOException {
+        List<Object[]> data = sort(generateData(50), SORT_KEY);
+        AsyncStorage storage = (AsyncStorage) getPartitionedStorage(DUMMY_SERIALIZER);
+        DirectoryStorage directory = new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "test", false, BlockCodec.NONE, SORT_KEY);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) {
+            futures.add(storage.getPartition(0).writeAsync(data.subList(0, i + 1)));
+        }
+        storage.writeMetadata("test", new byte[]{1});
+        long fingerprint = storage.getPartitionFingerprint(0);
+
+        // Queued writes are visible before they complete
+        assertDataEquals(data, storage.getPartition(0).read());
+        assertArrayEquals(new byte[]{1}, storage.readMetadata("test"));
+
+        storage.flush().join();
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+        }
+        assertDataEquals(data, directory.getPartition(0).read());
+        assertArrayEquals(new byte[]{1}, directory.readMetadata("test"));
+        assertEquals(fingerprint, directory.getPartitionFingerprint(0));
+
+        storage.getPartition(0).delete();
+        assertEquals(0L, storage.getPartitionFingerprint(0));
+        assertTrue(storage.getPartition(0).read().isEmpty());
+        storage.sync();
+        assertTrue(directory.getPartition(0).read().isEmpty());
+    }
+
+    @Test
+    public void failure() throws IOException {
+        File missing = new File(tmpDir, "missing");
+        AsyncStorage storage = new AsyncStorage(new DirectoryStorage(DUMMY_SERIALIZER, missing, "test"));
+
+        CompletableFuture<Void> future = storage.getPartition(0).writeAsync(generateData(10));
+        try {
+            storage.sync();
+            fail("Failure not reported");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertTrue(future.isCompletedExceptionally());
+
+        // Failures are reported once
+        storage.sync();
+    }
+
+    @Test
+    public void pendingPartitionsCount() throws IOException {
+        BlockingStorage directory = new BlockingStorage();
+        AsyncStorage storage = new AsyncStorage(directory);
+        for (int i = 0; i < 4; i++) {
+            storage.getPartition(i).write(generateData(5));
+        }
+        storage.sync();
+
+        // Queued writes are counted before they are done
+        storage.writeMetadata(BlockingStorage.BLOCK, new byte[0]);
+        storage.getPartition(3).delete();
+        storage.getPartition(2).delete();
+        storage.getPartition(0).delete();
+        assertEquals(2, storage.getPartitionsCount());
+
+        storage.getPartition(2).write(generateData(5));
+        assertEquals(3, storage.getPartitionsCount());
+        storage.getPartition(4).write(generateData(5));
+        assertEquals(5, storage.getPartitionsCount());
+        storage.getPartition(4).delete();
+        assertEquals(3, storage.getPartitionsCount());
+
+        directory.unblock();
+        storage.sync();
+    }
+
+    @Test
+    public void rewriteKeepsQueueOrder() throws IOException {
+        List<Object[]> data = sort(generateData(20), SORT_KEY);
+        BlockingStorage directory = new BlockingStorage();
+        AsyncStorage storage = new AsyncStorage(directory);
+
+        // A partition rewritten after a metadata entry was queued is still written before it
+        storage.writeMetadata(BlockingStorage.BLOCK, new byte[0]);
+        storage.getPartition(0).write(data.subList(0, 10));
+        storage.writeMetadata("manifest", new byte[]{1});
+        storage.getPartition(0).write(data);
+        directory.unblock();
+        storage.sync();
+
+        assertEquals(Collections.singletonList(data.size()), directory.partitionSizes);
+    }
+
+    @Test
+    public void clusteredIndex() throws IOException {
+        List<Object[]> data = generateData(300);
+
+        ClusteredIndex index = open();
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        index.close();
+
+        List<Object[]> result = new ArrayList<>();
+        try (IndexIterator it = open().iterator()) {
+            it.forEachRemaining(result::add);
+        }
+        Collections.reverse(result);
+
+        assertDataEquals(sort(data, SORT_KEY), result);
+    }
+
+    /**
+     * Directory storage whose writer is held by the write of a metadata entry, and which records the size of its first
+     * partition when the other metadata entries are written.
+     */
+    private static class BlockingStorage extends DirectoryStorage {
+
+        private static final String BLOCK = "block";
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final List<Integer> partitionSizes = Collections.synchronizedList(new ArrayList<>());
+
+        BlockingStorage() {
+            super(DUMMY_SERIALIZER, tmpDir, "test", false, BlockCodec.NONE, SORT_KEY);
+        }
+
+        void unblock() {
+            blocked.countDown();
+        }
+
+        @Override
+        public void writeMetadata(String name, byte[] data) throws IOException {
+            if (name.equals(BLOCK)) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            } else {
+                partitionSizes.add(getPartition(0).read().size());
+            }
+            super.writeMetadata(name, data);
+        }
+    }
+
+    private ClusteredIndex open() {
+        return new ClusteredIndex(getPartitionedStorage(DUMMY_SERIALIZER), 10, SORT_KEY);
+    }
+}
@@ -0,0 +1,118 @@
+package app.config.manager.local;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static app.config.manager.DummyData.DUMMY_SERIALIZER;
+import static app.config.manager.DummyData.generateData;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class BlockCodecTest {
+
+    private static final BlockCodec[] CODECS = {BlockCodec.NONE, BlockCodec.DEFLATE, BlockCodec.LZ};
+
+    @Test
+    public void forId() throws IOException {
+        for (BlockCodec codec : CODECS) {
+            assertEquals(codec, BlockCodec.forId(codec.getId()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownId() throws IOException {
+        BlockCodec.forId(42);
+    }
+
+    @Test
+    public void roundTripEmpty() throws IOException {
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    public void roundTripRandom() throws IOException {
+        Random random = new Random(42);
+        for (int length : new int[]{1, 3, 4, 15, 16, 300, 100_000}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertRoundTrip(data);
+        }
+    }
+
+    @Test
+    public void roundTripRepetitive() throws IOException {
+        byte[] data = new byte[70_000];
+        Arrays.fill(data, (byte) 7);
+        assertRoundTrip(data);
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 13);
+        }
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void compressRecords() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (Object[] row : generateData(400)) {
+            DUMMY_SERIALIZER.serialize(row, output);
+        }
+        output.flush();
+
+        byte[] data = bytes.toByteArray();
+        assertRoundTrip(data);
+
+        assertTrue(BlockCodec.LZ.encode(data, 0, data.length).length < data.length);
+        assertTrue(BlockCodec.DEFLATE.encode(data, 0, data.length).length < data.length);
+    }
+
+    @Test
+    public void offset() throws IOException {
+        byte[] data = "abcdabcdabcdabcdabcd".getBytes("UTF-8");
+        for (BlockCodec codec : CODECS) {
+            byte[] encoded = codec.encode(data, 4, 12);
+
+            byte[] shifted = new byte[encoded.length + 3];
+            System.arraycopy(encoded, 0, shifted, 3, encoded.length);
+
+            assertArrayEquals(Arrays.copyOfRange(data, 4, 16), codec.decode(shifted, 3, encoded.length, 12));
+        }
+    }
+
+    @Test
+    public void corruptedBlock() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 10);
+        }
+
+        for (BlockCodec codec : CODECS) {
+            byte[] encoded = codec.encode(data, 0, data.length);
+            try {
+                codec.decode(encoded, 0, encoded.length / 2, data.length);
+                fail("Truncated block decoded with " + codec.getId());
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static void assertRoundTrip(byte[] data) throws IOException {
+        for (BlockCodec codec : CODECS) {
+            byte[] encoded = codec.encode(data, 0, data.length);
+            assertArrayEquals(data, codec.decode(encoded, 0, encoded.length, data.length));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.DataFile;
+
+import static app.config.manager.DummyData.DUMMY_SERIALIZER;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class CompressedMappedPartitionFileTest extends CompressedPartitionFileTest {
+
+    @Override
+    protected DataFile getDataFile() {
+        return new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER, true, BlockCodec.LZ);
+    }
+
+}
@@ -0,0 +1,58 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.DataFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static app.config.manager.DummyData.DUMMY_SERIALIZER;
+import static app.config.manager.DummyData.assertDataEquals;
+import static app.config.manager.DummyData.generateData;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class CompressedPartitionFileTest extends PartitionFileTest {
+
+    @Override
+    protected DataFile getDataFile() {
+        return new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER, false, BlockCodec.LZ);
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        List<Object[]> data = generateData(400);
+
+        new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER).write(data);
+        long rawLength = tmpFile.length();
+
+        getDataFile().write(data);
+        assertTrue(tmpFile.length() < rawLength);
+        assertDataEquals(data, getDataFile().read());
+    }
+
+    @Test
+    public void mixedCodecs() throws IOException {
+        List<Object[]> data = generateData(100);
+
+        for (BlockCodec codec : new BlockCodec[]{BlockCodec.NONE, BlockCodec.DEFLATE, BlockCodec.LZ}) {
+            new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER, false, codec).write(data);
+
+            assertDataEquals(data, getDataFile().read());
+            assertDataEquals(data, new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER, true).read());
+
+            Object[] newRow = generateData(1).get(0);
+            List<Object[]> expected = new ArrayList<>(data);
+            expected.add(newRow);
+
+            List<Object[]> current = new ArrayList<>(data);
+            new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER, false, BlockCodec.NONE).append(current, newRow);
+            assertDataEquals(expected, getDataFile().read());
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package app.config.manager.local;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class Crc32cTest {
+
+    @Test
+    public void checkValue() {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0xE3069283L, crc.getValue());
+
+        crc.reset();
+        assertEquals(0L, crc.getValue());
+    }
+
+    @Test
+    public void incremental() {
+        byte[] data = new byte[1000];
+        new Random(42).nextBytes(data);
+
+        Crc32c expected = new Crc32c();
+        expected.update(data);
+
+        Crc32c bytes = new Crc32c();
+        for (byte b : data) {
+            bytes.update(b);
+        }
+        assertEquals(expected.getValue(), bytes.getValue());
+
+        Crc32c chunks = new Crc32c();
+        chunks.update(data, 0, 13);
+        chunks.update(data, 13, 500);
+        chunks.update(data, 513, data.length - 513);
+        assertEquals(expected.getValue(), chunks.getValue());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        Crc32c buffer = new Crc32c();
+        buffer.update(direct);
+        assertEquals(expected.getValue(), buffer.getValue());
+        assertEquals(0, direct.remaining());
+    }
+}
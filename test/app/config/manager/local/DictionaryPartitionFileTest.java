@@ -0,0 +1,81 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.DataFile;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static app.config.manager.DummyData.DUMMY_SERIALIZER;
+import static app.config.manager.DummyData.assertDataEquals;
+import static app.config.manager.DummyData.generateData;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class DictionaryPartitionFileTest extends PartitionFileTest {
+
+    private StringDictionary dictionary;
+
+    @After
+    public void clearDictionary() throws IOException {
+        Files.deleteIfExists(getDictionaryFile().toPath());
+    }
+
+    private File getDictionaryFile() {
+        return new File(tmpFile.getParentFile(), "strings_" + tmpFile.getName());
+    }
+
+    @Override
+    protected DataFile getDataFile() {
+        if (dictionary == null) {
+            dictionary = new StringDictionary(getDictionaryFile());
+        }
+
+        return new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER, false, BlockCodec.NONE, -1, dictionary);
+    }
+
+    @Test
+    public void sharedStrings() throws IOException {
+        List<Object[]> data = new ArrayList<>();
+        for (Object[] row : generateData(200)) {
+            row[2] = "Address " + (long) row[0] % 5;
+            data.add(row);
+        }
+
+        new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER).write(data);
+        long rawLength = tmpFile.length();
+
+        getDataFile().write(data);
+        assertTrue(tmpFile.length() < rawLength);
+
+        // A new dictionary reads the strings back from its file
+        dictionary = null;
+        List<Object[]> read = getDataFile().read();
+        assertDataEquals(data, read);
+        for (int i = 5; i < read.size(); i++) {
+            assertSame(read.get(i - 5)[2], read.get(i)[2]);
+        }
+    }
+
+    @Test
+    public void missingDictionary() throws IOException {
+        getDataFile().write(generateData(10));
+        assertTrue(getPartitionFile().verify());
+
+        try {
+            new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER).read();
+            fail("Dictionary encoded partition read without its dictionary");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
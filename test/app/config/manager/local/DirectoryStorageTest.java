@@ -6,11 +6,18 @@ import com.wx.io.file.FileUtil;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static app.config.manager.DummyData.DUMMY_SERIALIZER;
+import static app.config.manager.DummyData.generateData;
+import static org.junit.Assert.assertEquals;
 
 /**
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
@@ -43,4 +50,22 @@ public class DirectoryStorageTest extends PartitionedStorageTest {
     protected PartitionedStorage getPartitionedStorage(RecordSerializer serializer) {
         return new DirectoryStorage(serializer, tmpDir, "test");
     }
+
+    @Test
+    public void verifyPartitions() throws IOException {
+        PartitionedStorage storage = getPartitionedStorage(DUMMY_SERIALIZER);
+        for (int p = 0; p < 8; p++) {
+            storage.getPartition(p).write(generateData(10));
+        }
+        assertEquals(Collections.emptyList(), storage.verifyPartitions());
+
+        for (int p : new int[]{2, 5}) {
+            File file = new File(tmpDir, "test_" + p + ".part");
+            byte[] content = Files.readAllBytes(file.toPath());
+            content[content.length / 2] ^= 1;
+            Files.write(file.toPath(), content);
+        }
+
+        assertEquals(Arrays.asList(2, 5), storage.verifyPartitions());
+    }
 }
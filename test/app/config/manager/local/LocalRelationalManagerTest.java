@@ -3,6 +3,8 @@ package app.config.manager.local;
 import app.config.manager.DummyData;
 import app.config.manager.DataGenerator;
 import app.config.manager.datafile.ClusteredIndex;
+import app.model.client.Client;
+import app.model.client.PurchasedItem;
 import app.model.invoice.Invoice;
 import com.wx.io.file.FileUtil;
 import com.wx.util.future.IoIterator;
@@ -15,12 +17,20 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static app.model.ModelAssert.assertInvoiceEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
@@ -83,4 +93,164 @@ public class LocalRelationalManagerTest {
 
         assertInvoiceEquals(invoices, read);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void addNewInvoices() throws IOException {
+        LocalRelationalManager manager = createManager();
+
+        List<Invoice> invoices = DataGenerator.generateInvoice(200);
+        manager.addNewInvoices(invoices);
+
+        List<Invoice> read = collect(manager.getAllInvoices());
+        Collections.sort(invoices, Comparator.comparing(Invoice::getDate).reversed());
+
+        assertInvoiceEquals(invoices, read);
+    }
+
+    @Test
+    public void persistence() throws IOException {
+        LocalRelationalManager manager = new LocalRelationalManager(tmpDir);
+
+        List<Invoice> invoices = DataGenerator.generateInvoice(50);
+        Collections.sort(invoices, Comparator.comparing(Invoice::getDate));
+
+        for (Invoice invoice : invoices) {
+            manager.addNewInvoice(invoice);
+        }
+
+        List<Invoice> read = collect(new LocalRelationalManager(tmpDir).getAllInvoices());
+        Collections.reverse(invoices);
+
+
+        assertInvoiceEquals(invoices, read);
+    }
+
+    @Test
+    public void invoicesOfPeriod() throws IOException {
+        LocalRelationalManager manager = createManager();
+
+        List<Invoice> invoices = DataGenerator.generateInvoice(100);
+        Collections.sort(invoices, Comparator.comparing(Invoice::getDate));
+
+        for (Invoice invoice : invoices) {
+            manager.addNewInvoice(invoice);
+        }
+
+        LocalDate from = invoices.get(20).getDate();
+        LocalDate to = invoices.get(70).getDate();
+        List<Invoice> ofPeriod = invoices.stream()
+                .filter(i -> !i.getDate().isBefore(from) && !i.getDate().isAfter(to))
+                .collect(Collectors.toList());
+        Collections.reverse(ofPeriod);
+
+        assertInvoiceEquals(ofPeriod, collect(manager.getInvoices(from, to)));
+        assertTrue(collect(manager.getInvoices(to.plusDays(1), from)).isEmpty());
+    }
+
+    @Test
+    public void invoicesOfClient() throws IOException {
+        LocalRelationalManager manager = createManager();
+
+        List<Invoice> invoices = DataGenerator.generateInvoice(100);
+        Collections.sort(invoices, Comparator.comparing(Invoice::getDate));
+
+        for (Invoice invoice : invoices) {
+            manager.addNewInvoice(invoice);
+        }
+
+        long clientId = invoices.stream()
+                .filter(i -> !i.getPurchases().isEmpty())
+                .findFirst().get()
+                .getPurchases().get(0).getClient().getId();
+        List<Invoice> ofClient = invoices.stream()
+                .filter(i -> i.getPurchases().stream().anyMatch(p -> p.getClient().getId() == clientId))
+                .collect(Collectors.toList());
+        Collections.reverse(ofClient);
+
+        assertInvoiceEquals(ofClient, collect(manager.getInvoices(clientId)));
+
+
+        for (Invoice invoice : ofClient) {
+            manager.removeInvoice(invoice);
+        }
+
+        List<Invoice> remaining = new ArrayList<>(invoices);
+        remaining.removeAll(ofClient);
+        Collections.reverse(remaining);
+
+        assertTrue(collect(manager.getInvoices(clientId)).isEmpty());
+        assertInvoiceEquals(remaining, collect(manager.getAllInvoices()));
+    }
+
+    @Test
+    public void uniqueIds() throws IOException {
+        LocalRelationalManager manager = new LocalRelationalManager(tmpDir);
+
+        List<Invoice> invoices = DataGenerator.generateInvoice(20);
+        manager.addNewInvoices(invoices.subList(0, 10));
+        long maxId = invoices.subList(0, 10).stream().mapToLong(Invoice::getId).max().getAsLong();
+        assertEquals(maxId + 1, manager.suggestInvoiceId());
+
+        try {
+            manager.addNewInvoice(invoices.get(3));
+            fail("Duplicate id accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            manager.addNewInvoices(Arrays.asList(invoices.get(10), invoices.get(10)));
+            fail("Duplicate id accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        manager.close();
+
+        // Ids of clients and items keep growing after reopening
+        manager = new LocalRelationalManager(tmpDir);
+        assertEquals(maxId + 1, manager.suggestInvoiceId());
+        Set<String> existingClients = new HashSet<>();
+        long maxClientId = 0L;
+        for (Invoice invoice : invoices.subList(0, 10)) {
+            for (PurchasedItem purchase : invoice.getPurchases()) {
+                existingClients.add(purchase.getClient().getName());
+                maxClientId = Math.max(maxClientId, purchase.getClient().getId());
+            }
+        }
+
+        manager.addNewInvoices(invoices.subList(10, 20));
+        for (Invoice invoice : invoices.subList(10, 20)) {
+            for (PurchasedItem purchase : invoice.getPurchases()) {
+                Client client = purchase.getClient();
+                assertTrue(existingClients.contains(client.getName()) || client.getId() > maxClientId);
+            }
+        }
+        assertEquals(20, collect(manager.getAllInvoices()).size());
+        manager.close();
+    }
+
+    @Test
+    public void rollback() throws IOException {
+        LocalRelationalManager manager = createManager();
+
+        List<Invoice> invoices = DataGenerator.generateInvoice(2);
+        Invoice invalid = invoices.get(1);
+        invalid.getPurchases().add(new PurchasedItem(null, DataGenerator.getRandomItem()));
+
+        try {
+            manager.addNewInvoices(invoices);
+            fail("Invalid purchase accepted");
+        } catch (NullPointerException e) {
+            // Expected
+        }
+
+        assertTrue(collect(manager.getAllInvoices()).isEmpty());
+        for (Invoice invoice : invoices) {
+            for (PurchasedItem purchase : invoice.getPurchases()) {
+                assertTrue(purchase.getClient() == null || purchase.getClient().getId() == 0);
+            }
+        }
+
+        manager.addNewInvoice(invoices.get(0));
+        assertInvoiceEquals(invoices.subList(0, 1), collect(manager.getAllInvoices()));
+    }
+}
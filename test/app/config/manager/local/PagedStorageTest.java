@@ -0,0 +1,166 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.IndexIterator;
+import app.config.manager.storage.PartitionedStorage;
+import app.config.manager.storage.PartitionedStorageTest;
+import com.wx.io.file.FileUtil;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static app.config.manager.DummyData.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class PagedStorageTest extends PartitionedStorageTest {
+
+    private static final int SORT_KEY = 1;
+    private static final int PAGE_SIZE = 1024;
+
+    @BeforeClass
+    public static void createTmpDir() throws IOException {
+        Path path = Files.createTempDirectory("invoicefx_test_paged_storage");
+        tmpDir = path.toFile();
+    }
+
+    @AfterClass
+    public static void removeTmpDir() {
+        FileUtil.deleteDir(tmpDir);
+    }
+
+    @After
+    public void clearTmpDir() throws IOException {
+        for (PagedStorage storage : storages) {
+            storage.close();
+        }
+        storages.clear();
+        for (File file : tmpDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static File tmpDir;
+
+    private final List<PagedStorage> storages = new ArrayList<>();
+
+    @Override
+    protected PartitionedStorage getPartitionedStorage(RecordSerializer serializer) {
+        PagedStorage storage = new PagedStorage(serializer, tmpDir, "test", BlockCodec.NONE, SORT_KEY, PAGE_SIZE);
+        storages.add(storage);
+        return storage;
+    }
+
+    private PagedStorage open() {
+        return (PagedStorage) getPartitionedStorage(DUMMY_SERIALIZER);
+    }
+
+    @Test
+    public void pageReuse() throws IOException {
+        List<Object[]> data = sort(generateData(100), SORT_KEY);
+        PagedStorage storage = open();
+
+        storage.getPartition(0).write(data);
+        storage.getPartition(1).write(data.subList(0, 10));
+        int pageCount = storage.getPageCount();
+        assertTrue(pageCount > 3);
+
+        // Rewritten partitions reuse the pages of their previous version
+        for (int i = 0; i < 20; i++) {
+            storage.getPartition(0).write(data);
+            storage.getPartition(1).write(data.subList(0, 10 + i % 2));
+            storage.writeMetadata("test", new byte[]{(byte) i});
+        }
+        assertTrue(storage.getPageCount() <= 2 * pageCount + 2);
+        assertEquals(new File(tmpDir, "test" + PagedStorage.FILE_EXTENSION).length(),
+                (long) storage.getPageCount() * PAGE_SIZE);
+
+        storage.getPartition(0).delete();
+        assertTrue(storage.getFreePageCount() >= pageCount - 3);
+
+        PagedStorage reopened = open();
+        assertEquals(storage.getFreePageCount(), reopened.getFreePageCount());
+        assertEquals(storage.getPartitionFingerprint(1), reopened.getPartitionFingerprint(1));
+        assertTrue(reopened.getPartition(0).read().isEmpty());
+        assertDataEquals(data.subList(0, 11), reopened.getPartition(1).read());
+        assertArrayEquals(new byte[]{19}, reopened.readMetadata("test"));
+    }
+
+    @Test
+    public void tornHeader() throws IOException {
+        List<Object[]> data = sort(generateData(50), SORT_KEY);
+        PagedStorage storage = open();
+        storage.getPartition(0).write(data.subList(0, 20));
+        long fingerprint = storage.getPartitionFingerprint(0);
+        storage.getPartition(0).write(data);
+        storage.close();
+
+        // The last header is corrupted, the previous generation is read
+        try (RandomAccessFile file = new RandomAccessFile(new File(tmpDir, "test" + PagedStorage.FILE_EXTENSION), "rw")) {
+            file.seek(0);
+            file.writeInt(0);
+        }
+
+        PagedStorage reopened = open();
+        assertEquals(fingerprint, reopened.getPartitionFingerprint(0));
+        assertDataEquals(data.subList(0, 20), reopened.getPartition(0).read());
+
+        reopened.getPartition(1).write(data);
+        assertDataEquals(data, open().getPartition(1).read());
+    }
+
+    @Test
+    public void verifyPartitions() throws IOException {
+        PagedStorage storage = open();
+        for (int p = 0; p < 4; p++) {
+            storage.getPartition(p).write(generateData(10));
+        }
+        assertEquals(Collections.emptyList(), storage.verifyPartitions());
+        storage.close();
+
+        File file = new File(tmpDir, "test" + PagedStorage.FILE_EXTENSION);
+        byte[] content = Files.readAllBytes(file.toPath());
+        // Each write takes a page for the partition and one for the page directory, freeing the previous directory:
+        // the second partition is stored in the third page after the header
+        content[3 * PAGE_SIZE + 100] ^= 1;
+        Files.write(file.toPath(), content);
+
+        assertEquals(Arrays.asList(1), open().verifyPartitions());
+    }
+
+    @Test
+    public void clusteredIndex() throws IOException {
+        List<Object[]> data = generateData(300);
+
+        ClusteredIndex index = new ClusteredIndex(open(), 10, SORT_KEY);
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        index.close();
+
+        List<Object[]> result = new ArrayList<>();
+        try (IndexIterator it = new ClusteredIndex(open(), 10, SORT_KEY).iterator()) {
+            it.forEachRemaining(result::add);
+        }
+        Collections.reverse(result);
+
+        assertDataEquals(sort(data, SORT_KEY), result);
+        assertEquals(1, tmpDir.listFiles().length);
+    }
+}
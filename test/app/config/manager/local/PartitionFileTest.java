@@ -2,16 +2,27 @@ package app.config.manager.local;
 
 import app.config.manager.datafile.DataFile;
 import app.config.manager.datafile.DataFileTest;
+import com.wx.io.Accessor;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static app.config.manager.DummyData.DUMMY_SERIALIZER;
+import static app.config.manager.DummyData.assertDataEquals;
+import static app.config.manager.DummyData.generateData;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
@@ -34,11 +45,82 @@ public class PartitionFileTest extends DataFileTest {
         }
     }
 
-    private File tmpFile;
+    protected File tmpFile;
+
+    protected DirectoryStorage.PartitionFile getPartitionFile() {
+        return (DirectoryStorage.PartitionFile) getDataFile();
+    }
 
     @Override
     protected DataFile getDataFile() {
         return new DirectoryStorage.PartitionFile(tmpFile, DUMMY_SERIALIZER);
     }
 
+    @Test
+    public void readLegacyFormat() throws IOException {
+        List<Object[]> data = generateData(10);
+        try (Accessor accessor = new Accessor().setOut(tmpFile)) {
+            for (Object[] row : data) {
+                DUMMY_SERIALIZER.serialize(row, accessor);
+            }
+        }
+
+        assertDataEquals(data, getDataFile().read());
+
+        // Legacy files are fingerprinted by their content, not their modification date
+        long fingerprint = getPartitionFile().getFingerprint();
+        assertEquals(fingerprint, getPartitionFile().getFingerprint());
+        byte[] content = Files.readAllBytes(tmpFile.toPath());
+        content[content.length - 1] ^= 1;
+        Files.write(tmpFile.toPath(), content);
+        assertNotEquals(fingerprint, getPartitionFile().getFingerprint());
+        content[content.length - 1] ^= 1;
+        Files.write(tmpFile.toPath(), content);
+        assertEquals(fingerprint, getPartitionFile().getFingerprint());
+
+        Object[] newRow = generateData(1).get(0);
+        List<Object[]> expected = new ArrayList<>(data);
+        expected.add(newRow);
+
+        getDataFile().append(data, newRow);
+        assertDataEquals(expected, getDataFile().read());
+    }
+
+    @Test
+    public void corruptedFile() throws IOException {
+        getDataFile().write(generateData(10));
+        assertTrue(getPartitionFile().verify());
+
+        byte[] content = Files.readAllBytes(tmpFile.toPath());
+        content[content.length / 2] ^= 1;
+        Files.write(tmpFile.toPath(), content);
+
+        assertFalse(getPartitionFile().verify());
+        try {
+            getDataFile().read();
+            fail("Corruption not detected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void truncatedFile() throws IOException {
+        getDataFile().write(generateData(10));
+
+        byte[] content = Files.readAllBytes(tmpFile.toPath());
+        Files.write(tmpFile.toPath(), Arrays.copyOf(content, content.length - 7));
+
+        assertFalse(getPartitionFile().verify());
+    }
+
+    @Test
+    public void atomicWrite() throws IOException {
+        getDataFile().write(generateData(10));
+        getDataFile().append(generateData(10), generateData(1).get(0));
+
+        File[] files = tmpFile.getParentFile().listFiles((dir, name) -> name.startsWith(tmpFile.getName()));
+        assertEquals(1, files.length);
+    }
+
 }
@@ -0,0 +1,179 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.IndexIterator;
+import app.config.manager.datafile.PartitionCache;
+import app.config.manager.datafile.RowBuffer;
+import app.model.DateEnabled;
+import com.wx.io.file.FileUtil;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static app.config.manager.local.RelationalModelHelper.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class RecordDecodingTest {
+
+    private static final int ROWS = 2000;
+    private static final int SCANS = 20;
+
+    @BeforeClass
+    public static void createTmpDir() throws IOException {
+        Path path = Files.createTempDirectory("invoicefx_test_record_decoding");
+        tmpDir = path.toFile();
+    }
+
+    @AfterClass
+    public static void removeTmpDir() {
+        FileUtil.deleteDir(tmpDir);
+    }
+
+    @After
+    public void clearTmpDir() throws IOException {
+        for (File file : tmpDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static File tmpDir;
+
+    @Test
+    public void serializers() throws IOException {
+        DateEnabled dateEnabled = DateEnabled.values()[0];
+
+        assertDecoding(INVOICE_SERIALIZER, new Object[]{1L, "Address", 17000L, "invoice.pdf"});
+        assertDecoding(INVOICE_SERIALIZER, new Object[]{1L, null, 17000L, null});
+        assertDecoding(CLIENT_SERIALIZER, new Object[]{2L, "Client"});
+        assertDecoding(ITEM_SERIALIZER, new Object[]{3L, "Item", 10.5, 0.08, dateEnabled});
+        assertDecoding(PURCHASE_SERIALIZER, new Object[]{1L, 2L, 3L, 4,
+                LocalDate.of(2016, 6, 1), LocalDate.of(2016, 6, 4), dateEnabled});
+    }
+
+    @Test
+    public void allocationFreeScan() throws IOException {
+        com.sun.management.ThreadMXBean threads = getThreadMXBean();
+
+        ClusteredIndex index = open();
+        index.insertAll(generatePurchases());
+        index.flush();
+
+        // Columnar partitions, as left by the insertion
+        long columnar = allocatedPerRow(threads, index);
+        assertTrue("Allocated " + columnar + " bytes per row", columnar < 8);
+
+        // Slotted partitions, as read from the files
+        ClusteredIndex reopened = open();
+        long slotted = allocatedPerRow(threads, reopened);
+        assertTrue("Allocated " + slotted + " bytes per row", slotted < 8);
+
+        // Materializing the rows does allocate
+        long materialized = measure(threads, () -> {
+            try (IndexIterator it = reopened.iterator()) {
+                while (it.hasNext()) {
+                    it.next();
+                }
+            }
+        }) / (SCANS * ROWS);
+        assertTrue("Allocated " + materialized + " bytes per row", materialized > 64);
+    }
+
+    private ClusteredIndex open() {
+        DirectoryStorage storage = new DirectoryStorage(PURCHASE_SERIALIZER, tmpDir, "purchases", false, BlockCodec.NONE, 0);
+        return new ClusteredIndex(storage, 100, 0, new PartitionCache(), PURCHASE_SCHEMA);
+    }
+
+    private static List<Object[]> generatePurchases() {
+        DateEnabled dateEnabled = DateEnabled.values()[0];
+        LocalDate date = LocalDate.of(2016, 6, 1);
+
+        List<Object[]> purchases = new ArrayList<>();
+        for (long i = 0; i < ROWS; i++) {
+            purchases.add(new Object[]{i / 3, 1000 + i % 17, 2000 + i % 29, (int) i,
+                    date.plusDays(i), date.plusDays(i + 3), dateEnabled});
+        }
+
+        return purchases;
+    }
+
+    private static long allocatedPerRow(com.sun.management.ThreadMXBean threads, ClusteredIndex index) throws IOException {
+        RowBuffer row = new RowBuffer(PURCHASE_SCHEMA.getColumnsCount());
+        long[] sum = new long[1];
+
+        long allocated = measure(threads, () -> {
+            try (IndexIterator it = index.iterator()) {
+                while (it.hasNext()) {
+                    it.next(row);
+                    sum[0] += row.getLong(0) + row.getInt(3) + row.getEpochDay(4);
+                }
+            }
+        });
+        assertTrue(sum[0] > 0);
+
+        return allocated / (SCANS * ROWS);
+    }
+
+    /**
+     * @return The bytes allocated by the current thread over {@link #SCANS} runs, after as many warm up runs
+     */
+    private static long measure(com.sun.management.ThreadMXBean threads, Scan scan) throws IOException {
+        for (int i = 0; i < SCANS; i++) {
+            scan.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < SCANS; i++) {
+            scan.run();
+        }
+
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        return threads;
+    }
+
+    private static void assertDecoding(RecordSerializer serializer, Object[] record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.serialize(record, new DataOutputStream(bytes));
+
+        RowBuffer row = new RowBuffer(record.length);
+        serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), row);
+        assertArrayEquals(record, row.toRow());
+
+        assertArrayEquals(record, serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        assertEquals(record.length, row.getColumnsCount());
+    }
+
+    private interface Scan {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,175 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.ColumnarPartition;
+import app.config.manager.datafile.IndexIterator;
+import app.config.manager.datafile.PartitionSchema;
+import app.config.manager.datafile.PartitionView;
+import app.config.manager.datafile.RowBuffer;
+import com.wx.io.file.FileUtil;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static app.config.manager.DummyData.*;
+import static app.config.manager.datafile.PartitionSchema.ColumnType.LONG;
+import static app.config.manager.datafile.PartitionSchema.ColumnType.OBJECT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class SlottedPartitionTest {
+
+    private static final int SORT_KEY = 1;
+
+    @BeforeClass
+    public static void createTmpDir() throws IOException {
+        Path path = Files.createTempDirectory("invoicefx_test_slotted_partition");
+        tmpDir = path.toFile();
+    }
+
+    @AfterClass
+    public static void removeTmpDir() {
+        FileUtil.deleteDir(tmpDir);
+    }
+
+    @After
+    public void clearTmpDir() throws IOException {
+        for (File file : tmpDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static File tmpDir;
+
+    private PartitionView write(List<Object[]> data, BlockCodec codec, int sortKey) throws IOException {
+        DirectoryStorage.PartitionFile file = new DirectoryStorage.PartitionFile(new File(tmpDir, "test.part"),
+                DUMMY_SERIALIZER, true, codec, sortKey);
+        file.write(data);
+
+        List<Object[]> read = file.read();
+        assertTrue(read instanceof PartitionView);
+        return (PartitionView) read;
+    }
+
+    @Test
+    public void randomAccess() throws IOException {
+        List<Object[]> data = sort(generateData(100), SORT_KEY);
+
+        for (BlockCodec codec : new BlockCodec[]{BlockCodec.NONE, BlockCodec.LZ}) {
+            PartitionView view = write(data, codec, SORT_KEY);
+            assertEquals(SORT_KEY, view.getSortKeyColumn());
+            assertEquals(data.size(), view.size());
+
+            for (int i = data.size() - 1; i >= 0; i -= 7) {
+                assertArrayEquals(data.get(i), view.get(i));
+                assertEquals(data.get(i)[SORT_KEY], view.getSortKey(i));
+            }
+            assertDataEquals(data, view);
+        }
+    }
+
+    @Test
+    public void search() throws IOException {
+        List<Object[]> data = sort(generateData(100), SORT_KEY);
+        PartitionView view = write(data, BlockCodec.NONE, SORT_KEY);
+
+        for (int i = 0; i < data.size(); i++) {
+            long value = (long) data.get(i)[SORT_KEY];
+            int found = view.search(value);
+            assertEquals(value, view.getSortKey(found));
+            assertTrue(found == data.size() - 1 || view.getSortKey(found + 1) > value);
+        }
+
+        assertEquals(-1, view.search(Long.MIN_VALUE));
+        assertEquals(-data.size() - 1, view.search(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void withoutSortKey() throws IOException {
+        List<Object[]> data = generateData(10);
+        PartitionView view = write(data, BlockCodec.NONE, -1);
+
+        assertEquals(-1, view.getSortKeyColumn());
+        assertDataEquals(data, view);
+
+        view.search(0);
+    }
+
+    @Test
+    public void decoder() throws IOException {
+        List<Object[]> data = sort(generateData(100), SORT_KEY);
+        PartitionView view = write(data, BlockCodec.LZ, SORT_KEY);
+
+        PartitionView.RowDecoder decoder = view.newDecoder();
+        RowBuffer row = new RowBuffer(3);
+        for (int i = data.size() - 1; i >= 0; i -= 3) {
+            decoder.decode(i, row);
+            assertArrayEquals(data.get(i), row.toRow());
+            assertEquals(data.get(i)[SORT_KEY], row.getLong(SORT_KEY));
+        }
+
+        PartitionSchema schema = new PartitionSchema(LONG, LONG, OBJECT);
+        assertDataEquals(data, new ColumnarPartition(schema, SORT_KEY, view));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() throws IOException {
+        write(generateData(10), BlockCodec.NONE, SORT_KEY).add(generateData(1).get(0));
+    }
+
+    @Test
+    public void clusteredIndex() throws IOException {
+        List<Object[]> data = generateData(300);
+
+        ClusteredIndex index = open();
+        index.insertAll(data.subList(0, 200));
+        for (Object[] row : data.subList(200, 300)) {
+            index.insert(row);
+        }
+        index.close();
+
+        index = open();
+        List<Object[]> expected = sort(data, SORT_KEY);
+        assertDataEquals(expected, readAll(index));
+
+        Object[] removed = expected.remove(123);
+        assertTrue(index.removeIndexFirst((long) removed[SORT_KEY], r -> r == removed || r[0].equals(removed[0])));
+
+        long value = (long) expected.get(42)[SORT_KEY];
+        try (IndexIterator it = index.queryIndex(value)) {
+            assertEquals(value, it.next()[SORT_KEY]);
+        }
+        index.close();
+
+        assertDataEquals(expected, readAll(open()));
+    }
+
+    private ClusteredIndex open() {
+        return new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "test", true, BlockCodec.NONE, SORT_KEY),
+                10, SORT_KEY);
+    }
+
+    private static List<Object[]> readAll(ClusteredIndex index) throws IOException {
+        List<Object[]> result = new ArrayList<>();
+        try (IndexIterator it = index.iterator()) {
+            it.forEachRemaining(result::add);
+        }
+        Collections.reverse(result);
+
+        return result;
+    }
+}
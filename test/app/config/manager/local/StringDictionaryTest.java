@@ -0,0 +1,136 @@
+package app.config.manager.local;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class StringDictionaryTest {
+
+    @Before
+    public void createTmpFile() throws IOException {
+        tmpFile = Files.createTempFile("invoicefx_test_dictionary", ".strings").toFile();
+    }
+
+    @After
+    public void clearTmpFile() throws IOException {
+        Files.deleteIfExists(tmpFile.toPath());
+    }
+
+    private File tmpFile;
+
+    @Test
+    public void ids() throws IOException {
+        StringDictionary dictionary = new StringDictionary(tmpFile);
+        assertEquals(0, dictionary.getId("a"));
+        assertEquals(1, dictionary.getId("b"));
+        assertEquals(0, dictionary.getId(new String("a")));
+        dictionary.sync();
+
+        assertEquals("b", dictionary.getValue(1));
+        assertSame(dictionary.getValue(0), dictionary.getValue(0));
+
+        dictionary = new StringDictionary(tmpFile);
+        assertEquals("a", dictionary.getValue(0));
+        assertEquals(1, dictionary.getId("b"));
+        assertEquals(2, dictionary.getId("c"));
+    }
+
+    @Test
+    public void readsDoNotLock() throws Exception {
+        StringDictionary dictionary = new StringDictionary(tmpFile);
+        dictionary.getId("a");
+        dictionary.sync();
+
+        // Appends hold the lock of the dictionary, reads go through the synced strings
+        synchronized (dictionary) {
+            CompletableFuture<String> read = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return dictionary.getValue(0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            assertEquals("a", read.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unsyncedId() throws IOException {
+        StringDictionary dictionary = new StringDictionary(tmpFile);
+        int id = dictionary.getId("a");
+
+        new StringDictionary(tmpFile).getValue(id);
+    }
+
+    @Test
+    public void encoding() throws IOException {
+        StringDictionary dictionary = new StringDictionary(tmpFile);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (int i = 0; i < 20_000; i++) {
+            dictionary.encoding(output).writeUTF("value " + i);
+        }
+        dictionary.encoding(output).writeUTF("value 0");
+        output.writeInt(42);
+        dictionary.sync();
+
+        // Ids are variable length integers
+        assertEquals(128 + 2 * (16384 - 128) + 3 * (20_000 - 16384) + 1 + 4, bytes.size());
+
+        dictionary = new StringDictionary(tmpFile);
+        ByteBufferDataInput input = new ByteBufferDataInput(ByteBuffer.wrap(bytes.toByteArray()), dictionary);
+        for (int i = 0; i < 20_000; i++) {
+            assertEquals("value " + i, input.readUTF());
+        }
+        assertSame(dictionary.getValue(0), input.readUTF());
+        assertEquals(42, input.readInt());
+    }
+
+    @Test
+    public void interruptedSync() throws IOException {
+        StringDictionary dictionary = new StringDictionary(tmpFile);
+        dictionary.getId("a");
+        dictionary.getId("b");
+        dictionary.sync();
+
+        try (RandomAccessFile file = new RandomAccessFile(tmpFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        dictionary = new StringDictionary(tmpFile);
+        assertEquals("a", dictionary.getValue(0));
+        assertEquals(1, dictionary.getId("c"));
+        dictionary.sync();
+
+        dictionary = new StringDictionary(tmpFile);
+        assertEquals("c", dictionary.getValue(1));
+        assertEquals(3 + 3, tmpFile.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedId() throws IOException {
+        byte[] id = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+        new StringDictionary(tmpFile).read(new DataInputStream(new ByteArrayInputStream(id)));
+    }
+}
@@ -0,0 +1,218 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.IndexIterator;
+import com.wx.io.file.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static app.config.manager.DummyData.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class TransactionTest {
+
+    private static final int SORT_KEY = 1;
+
+    @BeforeClass
+    public static void createTmpDir() throws IOException {
+        Path path = Files.createTempDirectory("invoicefx_test_transaction");
+        tmpDir = path.toFile();
+    }
+
+    @AfterClass
+    public static void removeTmpDir() {
+        FileUtil.deleteDir(tmpDir);
+    }
+
+    @After
+    public void clearTmpDir() throws IOException {
+        for (File file : tmpDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static File tmpDir;
+
+    private static List<Object[]> readAll(ClusteredIndex index) throws IOException {
+        List<Object[]> result = new ArrayList<>();
+        try (IndexIterator it = index.iterator()) {
+            it.forEachRemaining(result::add);
+        }
+        Collections.reverse(result);
+
+        return result;
+    }
+
+    @Test
+    public void commit() throws IOException {
+        List<Object[]> data = sort(generateData(40), SORT_KEY);
+        DummyPartitionedStorage firstStorage = new DummyPartitionedStorage();
+        DummyPartitionedStorage secondStorage = new DummyPartitionedStorage();
+        ClusteredIndex first = new ClusteredIndex(firstStorage, 100, SORT_KEY);
+        ClusteredIndex second = new ClusteredIndex(secondStorage, 100, SORT_KEY);
+
+        try (Transaction transaction = new Transaction(null)) {
+            for (Object[] row : data) {
+                transaction.insert(first, row);
+            }
+            transaction.insert(second, data.get(0));
+
+            assertTrue(transaction.findStaged(first, r -> r == data.get(7)).isPresent());
+            assertFalse(transaction.findStaged(second, r -> r == data.get(7)).isPresent());
+            assertEquals(0, firstStorage.getPartitionsCount());
+
+            transaction.commit();
+        }
+
+        // Each touched partition is written once for the whole transaction
+        firstStorage.assertReadWriteCount(0, 0, 1);
+        secondStorage.assertReadWriteCount(0, 0, 1);
+        assertDataEquals(data, readAll(first));
+        assertDataEquals(data.subList(0, 1), readAll(second));
+    }
+
+    @Test
+    public void rollback() throws IOException {
+        ClusteredIndex index = new ClusteredIndex(new DummyPartitionedStorage(), 100, SORT_KEY);
+        boolean[] rolledBack = {false};
+
+        try (Transaction transaction = new Transaction(null)) {
+            transaction.insert(index, generateData(1).get(0));
+            transaction.onRollback(() -> rolledBack[0] = true);
+        }
+
+        assertTrue(rolledBack[0]);
+        assertTrue(readAll(index).isEmpty());
+    }
+
+    @Test
+    public void failedCommit() throws IOException {
+        List<Object[]> data = sort(generateData(40), SORT_KEY);
+        DummyPartitionedStorage firstStorage = new DummyPartitionedStorage();
+        ClusteredIndex first = new ClusteredIndex(firstStorage, 10, SORT_KEY);
+        first.insertAll(data.subList(0, 20));
+        ClusteredIndex failing = new ClusteredIndex(dummyStorage((List<Object[]>) null), 10, SORT_KEY);
+        boolean[] rolledBack = {false};
+
+        try (Transaction transaction = new Transaction(null)) {
+            for (Object[] row : data.subList(20, 40)) {
+                transaction.insert(first, row);
+            }
+            transaction.insert(failing, data.get(0));
+            transaction.onRollback(() -> rolledBack[0] = true);
+
+            transaction.commit();
+            fail("Commit succeeded");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // The rows of the first table are removed again, in memory and in its storage
+        List<Object[]> expected = sort(new ArrayList<>(data.subList(0, 20)), 0);
+        assertTrue(rolledBack[0]);
+        assertDataEquals(expected, sort(readAll(first), 0));
+        assertDataEquals(expected, sort(readAll(new ClusteredIndex(firstStorage, 10, SORT_KEY)), 0));
+    }
+
+    @Test
+    public void failedCommitKeepsEqualRows() throws IOException {
+        List<Object[]> data = sort(generateData(10), SORT_KEY);
+        DummyPartitionedStorage storage = new DummyPartitionedStorage();
+        ClusteredIndex failing = new ClusteredIndex(storage, 100, SORT_KEY);
+        failing.insertAll(data);
+        storage.getPartitions().put(0, new DummyDataFile() {
+            @Override
+            public @NotNull List<Object[]> read() throws IOException {
+                return new ArrayList<>(data);
+            }
+
+            @Override
+            public void write(List<Object[]> values) throws IOException {
+                throw new IOException();
+            }
+        });
+
+        try (Transaction transaction = new Transaction(null)) {
+            transaction.insert(failing, data.get(3).clone());
+            transaction.commit();
+            fail("Commit succeeded");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // The row that failed to be inserted does not take an equal row with it
+        assertDataEquals(data, readAll(failing));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finished() throws IOException {
+        Transaction transaction = new Transaction(null);
+        transaction.commit();
+        transaction.insert(new ClusteredIndex(new DummyPartitionedStorage(), 100, SORT_KEY), generateData(1).get(0));
+    }
+
+    @Test
+    public void logged() throws IOException {
+        List<Object[]> data = sort(generateData(30), SORT_KEY);
+
+        WriteAheadLog log = new WriteAheadLog(new File(tmpDir, "test.wal"));
+        ClusteredIndex first = new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "first"), 10, SORT_KEY);
+        ClusteredIndex second = new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "second"), 10, SORT_KEY);
+        log.register("first", DUMMY_SERIALIZER, first);
+        log.register("second", DUMMY_SERIALIZER, second);
+        log.recover();
+
+        try (Transaction transaction = new Transaction(log)) {
+            for (Object[] row : data) {
+                transaction.insert(first, row);
+                transaction.insert(second, row);
+            }
+            transaction.commit();
+        }
+        long committedSize = log.getSize();
+        assertTrue(committedSize > 0);
+
+        // Rows of a table failing to apply are not committed for the other tables either
+        ClusteredIndex failing = new ClusteredIndex(dummyStorage((List<Object[]>) null), 10, SORT_KEY);
+        log.register("failing", DUMMY_SERIALIZER, failing);
+        try (Transaction transaction = new Transaction(log)) {
+            transaction.insert(first, generateData(31).get(30));
+            transaction.insert(failing, generateData(31).get(30));
+            transaction.commit();
+            fail("Commit succeeded");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(committedSize, log.getSize());
+        assertDataEquals(sort(new ArrayList<>(data), 0), sort(readAll(first), 0));
+
+        // Recover the committed rows from the log only
+        first = new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "first"), 10, SORT_KEY);
+        second = new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "second"), 10, SORT_KEY);
+        log = new WriteAheadLog(new File(tmpDir, "test.wal"));
+        log.register("first", DUMMY_SERIALIZER, first);
+        log.register("second", DUMMY_SERIALIZER, second);
+        log.recover();
+
+        assertDataEquals(data, readAll(first));
+        assertDataEquals(data, readAll(second));
+    }
+}
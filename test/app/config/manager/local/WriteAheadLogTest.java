@@ -0,0 +1,266 @@
+package app.config.manager.local;
+
+import app.config.manager.datafile.ClusteredIndex;
+import com.wx.io.file.FileUtil;
+import com.wx.util.future.IoIterator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static app.config.manager.DummyData.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class WriteAheadLogTest {
+
+    private static final int SORT_KEY = 1;
+
+    @BeforeClass
+    public static void createTmpDir() throws IOException {
+        Path path = Files.createTempDirectory("invoicefx_test_write_ahead_log");
+        tmpDir = path.toFile();
+    }
+
+    @AfterClass
+    public static void removeTmpDir() {
+        FileUtil.deleteDir(tmpDir);
+    }
+
+    @After
+    public void clearTmpDir() throws IOException {
+        for (File file : tmpDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static File tmpDir;
+
+    private ClusteredIndex index;
+    private WriteAheadLog log;
+
+    private void open() throws IOException {
+        index = new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "test"), 10, SORT_KEY);
+        log = new WriteAheadLog(new File(tmpDir, "test.wal"));
+        log.register("test", DUMMY_SERIALIZER, index);
+        log.recover();
+    }
+
+    private List<Object[]> readAll() throws IOException {
+        List<Object[]> result = new ArrayList<>();
+        IoIterator<Object[]> it = index.iterator();
+        it.forEachRemaining(result::add);
+        Collections.reverse(result);
+
+        return result;
+    }
+
+    private int partitionFilesCount() {
+        return tmpDir.listFiles((dir, name) -> name.endsWith(".part")).length;
+    }
+
+    @Test
+    public void replayCommitted() throws IOException {
+        List<Object[]> data = sort(generateData(50), SORT_KEY);
+
+        open();
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        assertEquals(0, partitionFilesCount());
+
+        open();
+        assertDataEquals(data, readAll());
+    }
+
+    @Test
+    public void discardUncommitted() throws IOException {
+        List<Object[]> data = sort(generateData(20), SORT_KEY);
+
+        open();
+        log.beginBatch();
+        for (Object[] row : data.subList(0, 10)) {
+            index.insert(row);
+        }
+        log.endBatch();
+
+        log.beginBatch();
+        for (Object[] row : data.subList(10, 20)) {
+            index.insert(row);
+        }
+
+        open();
+        assertDataEquals(data.subList(0, 10), readAll());
+    }
+
+    @Test
+    public void batchesPerThread() throws Exception {
+        List<Object[]> data = sort(generateData(21), SORT_KEY);
+
+        open();
+        log.beginBatch();
+        for (Object[] row : data.subList(0, 10)) {
+            index.insert(row);
+        }
+
+        // Another thread aborting its batch does not discard the records of this one
+        IOException[] failure = {null};
+        Thread other = new Thread(() -> {
+            try {
+                log.beginBatch();
+                for (Object[] row : data.subList(10, 20)) {
+                    index.insert(row);
+                }
+                log.abortBatch();
+
+                index.insert(data.get(20));
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure[0]);
+        log.endBatch();
+
+        List<Object[]> expected = new ArrayList<>(data.subList(0, 10));
+        expected.add(data.get(20));
+
+        open();
+        assertDataEquals(sort(expected, 0), sort(readAll(), 0));
+    }
+
+    @Test
+    public void abortedBatchIsUndone() throws IOException {
+        List<Object[]> data = sort(generateData(30), SORT_KEY);
+
+        open();
+        for (Object[] row : data.subList(0, 20)) {
+            index.insert(row);
+        }
+
+        log.beginBatch();
+        for (Object[] row : data.subList(20, 30)) {
+            index.insert(row);
+        }
+        assertTrue(index.removeFirst(r -> r == data.get(5)));
+        log.abortBatch();
+
+        // The aborted mutations are not written by the checkpoint
+        assertDataEquals(data.subList(0, 20), readAll());
+        log.checkpoint();
+
+        open();
+        assertDataEquals(data.subList(0, 20), readAll());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void abortNestedBatch() throws IOException {
+        open();
+        log.beginBatch();
+        log.beginBatch();
+        log.abortBatch();
+    }
+
+    @Test
+    public void replayRemovals() throws IOException {
+        List<Object[]> data = sort(generateData(30), SORT_KEY);
+
+        open();
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        log.checkpoint();
+        assertEquals(0, log.getSize());
+
+        Object[] removed = data.remove(12);
+        index.removeFirst(r -> r[0] == removed[0]);
+
+        open();
+        assertDataEquals(data, readAll());
+    }
+
+    @Test
+    public void replayDuplicates() throws IOException {
+        List<Object[]> data = sort(generateData(20), SORT_KEY);
+        data.add(11, data.get(10));
+
+        open();
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        log.checkpoint();
+
+        // Equal rows are distinct mutations, they are told apart by their position
+        data.add(5, data.get(5));
+        data.add(5, data.get(5));
+        index.insert(data.get(5));
+        index.insert(data.get(5));
+        assertTrue(index.removeFirst(r -> r == data.get(10)));
+        data.remove(10);
+
+        open();
+        assertDataEquals(data, readAll());
+        open();
+        assertDataEquals(data, readAll());
+    }
+
+    @Test
+    public void backgroundCheckpoint() throws Exception {
+        List<Object[]> data = sort(generateData(50), SORT_KEY);
+
+        index = new ClusteredIndex(new DirectoryStorage(DUMMY_SERIALIZER, tmpDir, "test"), 10, SORT_KEY);
+        log = new WriteAheadLog(new File(tmpDir, "test.wal"), 256);
+        log.register("test", DUMMY_SERIALIZER, index);
+        log.recover();
+
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (log.getSize() > 256 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(log.getSize() <= 256);
+        assertTrue(partitionFilesCount() > 0);
+        log.close();
+
+        open();
+        assertDataEquals(data, readAll());
+    }
+
+    @Test
+    public void checkpointIsIdempotent() throws IOException {
+        List<Object[]> data = sort(generateData(30), SORT_KEY);
+        Path logFile = new File(tmpDir, "test.wal").toPath();
+        Path logCopy = new File(tmpDir, "copy.wal").toPath();
+
+        open();
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        Files.copy(logFile, logCopy);
+        log.checkpoint();
+        assertEquals(3, partitionFilesCount());
+
+        Files.move(logCopy, logFile, StandardCopyOption.REPLACE_EXISTING);
+
+        open();
+        assertDataEquals(data, readAll());
+    }
+}
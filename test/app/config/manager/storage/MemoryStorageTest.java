@@ -0,0 +1,114 @@
+package app.config.manager.storage;
+
+import app.config.manager.DummyData.DummyPartitionedStorage;
+import app.config.manager.datafile.ClusteredIndex;
+import app.config.manager.datafile.IndexIterator;
+import app.config.manager.local.RecordSerializer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static app.config.manager.DummyData.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Raffaele Canale (<a href="mailto:raffaelecanale@gmail.com?subject=InvoiceFX">raffaelecanale@gmail.com</a>)
+ * @version 0.1 - created on 18.10.26.
+ */
+public class MemoryStorageTest extends PartitionedStorageTest {
+
+    private static final int SORT_KEY = 1;
+
+    /**
+     * Stands for an asynchronous storage, its writes are done before they return.
+     */
+    private final DummyPartitionedStorage mirror = new DummyPartitionedStorage() {
+        @Override
+        public boolean isAsynchronous() {
+            return true;
+        }
+    };
+
+    @Override
+    protected PartitionedStorage getPartitionedStorage(RecordSerializer serializer) {
+        return new MemoryStorage(mirror);
+    }
+
+    @Test
+    public void mirrored() throws IOException {
+        List<Object[]> data = sort(generateData(20), SORT_KEY);
+        mirror.getPartition(0).write(data.subList(0, 10));
+        mirror.writeMetadata("test", new byte[]{1});
+
+        MemoryStorage storage = new MemoryStorage(mirror);
+        assertEquals(1, storage.getPartitionsCount());
+        for (int i = 0; i < 3; i++) {
+            assertDataEquals(data.subList(0, 10), storage.getPartition(0).read());
+            assertArrayEquals(new byte[]{1}, storage.readMetadata("test"));
+        }
+        // Partitions are only read once from the mirror
+        mirror.assertReadWriteCount(0, 1, 1);
+
+        storage.getPartition(1).write(data.subList(10, 20));
+        assertDataEquals(data.subList(10, 20), storage.getPartition(1).read());
+        mirror.assertReadWriteCount(1, 0, 1);
+        assertDataEquals(data.subList(10, 20), mirror.getPartition(1).getTable());
+        assertEquals(mirror.getPartitionFingerprint(1), storage.getPartitionFingerprint(1));
+
+        storage.getPartition(0).delete();
+        assertTrue(storage.getPartition(0).read().isEmpty());
+        assertEquals(1, mirror.getPartition(0).getDeleteCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void synchronousMirror() {
+        new MemoryStorage(new DummyPartitionedStorage());
+    }
+
+    @Test
+    public void memoryOnly() throws IOException {
+        List<Object[]> data = sort(generateData(20), SORT_KEY);
+        MemoryStorage storage = new MemoryStorage();
+        assertEquals(0, storage.getPartitionsCount());
+        assertEquals(0L, storage.getPartitionFingerprint(0));
+
+        storage.getPartition(0).write(data);
+        long fingerprint = storage.getPartitionFingerprint(0);
+        assertNotEquals(0L, fingerprint);
+
+        // Reads are copies that do not alter the stored partition
+        List<Object[]> rows = storage.getPartition(0).read();
+        rows.clear();
+        assertDataEquals(data, storage.getPartition(0).read());
+
+        storage.getPartition(0).append(rows, data.get(0));
+        assertNotEquals(fingerprint, storage.getPartitionFingerprint(0));
+        assertDataEquals(data.subList(0, 1), storage.getPartition(0).read());
+        assertEquals(1, storage.getPartitionsCount());
+    }
+
+    @Test
+    public void clusteredIndex() throws IOException {
+        List<Object[]> data = generateData(300);
+
+        ClusteredIndex index = new ClusteredIndex(new MemoryStorage(mirror), 10, SORT_KEY);
+        for (Object[] row : data) {
+            index.insert(row);
+        }
+        index.close();
+
+        List<Object[]> result = new ArrayList<>();
+        try (IndexIterator it = new ClusteredIndex(new MemoryStorage(mirror), 10, SORT_KEY).iterator()) {
+            it.forEachRemaining(result::add);
+        }
+        Collections.reverse(result);
+
+        assertDataEquals(sort(data, SORT_KEY), result);
+    }
+}
@@ -10,7 +10,9 @@ import java.util.List;
 import static app.config.manager.DummyData.DUMMY_SERIALIZER;
 import static app.config.manager.DummyData.assertDataEquals;
 import static app.config.manager.DummyData.generateData;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -52,4 +54,17 @@ public abstract class PartitionedStorageTest {
         assertDataEquals(data.subList(1, 2), getPartitionedStorage(DUMMY_SERIALIZER).getPartition(1).read());
     }
 
+    @Test
+    public void metadata() throws IOException {
+        PartitionedStorage storage = getPartitionedStorage(DUMMY_SERIALIZER);
+        assertNull(storage.readMetadata("test"));
+
+        storage.writeMetadata("test", new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, getPartitionedStorage(DUMMY_SERIALIZER).readMetadata("test"));
+
+        storage.writeMetadata("test", new byte[]{4});
+        assertArrayEquals(new byte[]{4}, getPartitionedStorage(DUMMY_SERIALIZER).readMetadata("test"));
+        assertEquals(0, storage.getPartitionsCount());
+    }
+
 }
\ No newline at end of file